@@ -0,0 +1,79 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// compares DNSCodec with the string based codec it replaced, run with -prof gc to see the allocation rate
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final MethodHandle PARSE_PACKET = ServerMethods.method("DNSUtils", "parsePacket",
+            MethodType.methodType(Object.class, byte[].class));
+    private static final MethodHandle ECHO_MESSAGE = ServerMethods.method("DNSUtils", "echoMessage",
+            MethodType.methodType(Object.class, Object.class));
+    private static final MethodHandle LEGACY_PARSE = ServerMethods.method("LegacyDNSUtils", "parsePacket",
+            MethodType.methodType(Object.class, byte[].class));
+    private static final MethodHandle LEGACY_SERIALIZE = ServerMethods.method("LegacyDNSUtils", "dnsMessageToByteArray",
+            MethodType.methodType(byte[].class, Object.class));
+    private static final MethodHandle CODEC_DECODE = ServerMethods.method("DNSCodec", "decode",
+            MethodType.methodType(Object.class, ByteBuffer.class));
+    private static final MethodHandle CODEC_ENCODE = ServerMethods.method("DNSCodec", "encode",
+            MethodType.methodType(int.class, Object.class, ByteBuffer.class));
+
+    private byte[] request;
+    private Object response;
+    private ByteBuffer out;
+
+    @Setup
+    public void setup() throws Throwable {
+
+        request = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 01 00 00 02 00 00 00 00 00 00 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                        + "05 63 68 65 63 6b 0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+        response = (Object) ECHO_MESSAGE.invokeExact((Object) PARSE_PACKET.invokeExact(request));
+        out = ByteBuffer.allocate(512);
+    }
+
+    @Benchmark
+    public Object parseLegacy() throws Throwable {
+
+        return (Object) LEGACY_PARSE.invokeExact(request);
+    }
+
+    @Benchmark
+    public Object parseCodec() throws Throwable {
+
+        return (Object) CODEC_DECODE.invokeExact(ByteBuffer.wrap(request));
+    }
+
+    @Benchmark
+    public byte[] serializeLegacy() throws Throwable {
+
+        return (byte[]) LEGACY_SERIALIZE.invokeExact(response);
+    }
+
+    @Benchmark
+    public int serializeCodec() throws Throwable {
+
+        return (int) CODEC_ENCODE.invokeExact(response, out.clear());
+    }
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// sample time mode reports p50 / p99 next to the mean, add -prof gc for the allocation rate
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    private static final MethodHandle PARSE_PACKET = ServerMethods.method("DNSUtils", "parsePacket",
+            MethodType.methodType(Object.class, byte[].class));
+    private static final MethodHandle ECHO_MESSAGE = ServerMethods.method("DNSUtils", "echoMessage",
+            MethodType.methodType(Object.class, Object.class));
+    private static final MethodHandle TO_BYTE_ARRAY = ServerMethods.method("DNSUtils", "dnsMessageToByteArray",
+            MethodType.methodType(byte[].class, Object.class));
+
+    private byte[] singleQuestion;
+    private byte[] multiQuestion;
+    private byte[] compressedAnswers;
+    private Object request;
+    private Object response;
+
+    @Setup
+    public void setup() throws Throwable {
+
+        HexFormat hex = HexFormat.ofDelimiter(" ");
+        singleQuestion = hex.parseHex("04 d2 01 00 00 01 00 00 00 00 00 00 "
+                + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+        multiQuestion = hex.parseHex("04 d2 01 00 00 03 00 00 00 00 00 00 "
+                + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                + "05 63 68 65 63 6b c0 0c 00 01 00 01 "
+                + "03 77 77 77 c0 0c 00 01 00 01");
+        compressedAnswers = hex.parseHex("04 d2 81 80 00 01 00 03 00 00 00 00 "
+                + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                + "c0 0c 00 01 00 01 00 00 00 3c 00 04 7f 00 00 01 "
+                + "c0 0c 00 01 00 01 00 00 00 3c 00 04 7f 00 00 02 "
+                + "03 77 77 77 c0 0c 00 01 00 01 00 00 01 2c 00 04 7f 00 00 03");
+
+        request = (Object) PARSE_PACKET.invokeExact(multiQuestion);
+        response = (Object) ECHO_MESSAGE.invokeExact(request);
+    }
+
+    @Benchmark
+    public Object parseSingleQuestion() throws Throwable {
+
+        return (Object) PARSE_PACKET.invokeExact(singleQuestion);
+    }
+
+    @Benchmark
+    public Object parseMultiQuestion() throws Throwable {
+
+        return (Object) PARSE_PACKET.invokeExact(multiQuestion);
+    }
+
+    @Benchmark
+    public Object parseCompressedAnswers() throws Throwable {
+
+        return (Object) PARSE_PACKET.invokeExact(compressedAnswers);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Throwable {
+
+        return (byte[]) TO_BYTE_ARRAY.invokeExact(response);
+    }
+
+    @Benchmark
+    public Object echoMessage() throws Throwable {
+
+        return (Object) ECHO_MESSAGE.invokeExact(request);
+    }
+}
@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// a query through RequestHandler, the path DNSServer runs for every datagram, against a stub upstream on loopback
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final MethodHandle PARSE_PACKET = ServerMethods.method("DNSUtils", "parsePacket",
+            MethodType.methodType(Object.class, byte[].class));
+    private static final MethodHandle ECHO_MESSAGE = ServerMethods.method("DNSUtils", "echoMessage",
+            MethodType.methodType(Object.class, Object.class));
+    private static final MethodHandle TO_BYTE_ARRAY = ServerMethods.method("DNSUtils", "dnsMessageToByteArray",
+            MethodType.methodType(byte[].class, Object.class));
+    private static final MethodHandle HANDLE = ServerMethods.method("RequestHandler", "handle",
+            MethodType.methodType(byte[].class, Object.class, byte[].class));
+
+    private DatagramSocket stubUpstream;
+    private Object forwardingHandler;
+    private Object passthroughHandler;
+    private Object echoHandler;
+    private byte[] request;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        stubUpstream = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread.ofVirtual().start(this::serveStub);
+
+        Object pool = ServerMethods.newInstance("UpstreamPool", 4, 1000, 2);
+        LongSupplier clock = System::currentTimeMillis;
+        Object upstream = ServerMethods.newInstance("Upstream", stubUpstream.getLocalSocketAddress(), clock);
+        Object selector = ServerMethods.newInstance("UpstreamSelector", List.of(upstream), clock);
+        Object forwarder = ServerMethods.newInstance("DNSForwarder", selector, pool, 1000, false, 256, null,
+                ServerMethods.newInstance("Metrics"), 0, 1000);
+        forwardingHandler = ServerMethods.newInstance("RequestHandler", forwarder, null, false,
+                ServerMethods.newInstance("Metrics"), null);
+        passthroughHandler = ServerMethods.newInstance("RequestHandler", forwarder, null, true,
+                ServerMethods.newInstance("Metrics"), null);
+        echoHandler = ServerMethods.newInstance("RequestHandler", null, null, false,
+                ServerMethods.newInstance("Metrics"), null);
+
+        request = HexFormat.ofDelimiter(" ").parseHex("04 d2 01 00 00 02 00 00 00 00 00 00 "
+                + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                + "05 63 68 65 63 6b c0 0c 00 01 00 01");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        stubUpstream.close();
+    }
+
+    @Benchmark
+    public byte[] forwardedQuery() throws Throwable {
+
+        return (byte[]) HANDLE.invokeExact(forwardingHandler, request);
+    }
+
+    @Benchmark
+    public byte[] passthroughQuery() throws Throwable {
+
+        return (byte[]) HANDLE.invokeExact(passthroughHandler, request);
+    }
+
+    @Benchmark
+    public byte[] echoQuery() throws Throwable {
+
+        return (byte[]) HANDLE.invokeExact(echoHandler, request);
+    }
+
+    private void serveStub() {
+
+        byte[] buf = new byte[512];
+        while (!stubUpstream.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                stubUpstream.receive(packet);
+                Object query = (Object) PARSE_PACKET.invokeExact(Arrays.copyOf(buf, packet.getLength()));
+                byte[] reply = (byte[]) TO_BYTE_ARRAY.invokeExact((Object) ECHO_MESSAGE.invokeExact(query));
+                stubUpstream.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                return;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+// JMH refuses benchmarks in the default package and named packages cannot import the server classes,
+// so benchmarks reach them through method handles with the server types erased to Object
+final class ServerMethods {
+
+    private ServerMethods() {
+    }
+
+    // erasedType has the receiver as its first parameter for instance methods
+    static MethodHandle method(String className, String methodName, MethodType erasedType) {
+
+        try {
+            Class<?> owner = Class.forName(className);
+            for (Method method : owner.getMethods()) {
+                int receiver = Modifier.isStatic(method.getModifiers()) ? 0 : 1;
+                if (method.getName().equals(methodName)
+                        && method.getParameterCount() + receiver == erasedType.parameterCount()) {
+                    return MethodHandles.publicLookup().unreflect(method).asType(erasedType);
+                }
+            }
+            throw new NoSuchMethodException(className + "." + methodName);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot resolve " + className + "." + methodName, e);
+        }
+    }
+
+    static Object newInstance(String className, Object... args) {
+
+        try {
+            for (Constructor<?> constructor : Class.forName(className).getConstructors()) {
+                if (constructor.getParameterCount() == args.length) {
+                    return constructor.newInstance(args);
+                }
+            }
+            throw new NoSuchMethodException(className + ".<init>");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot create " + className, e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object enumValue(String className, String name) {
+
+        try {
+            return Enum.valueOf((Class<? extends Enum>) Class.forName(className), name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("cannot resolve " + className, e);
+        }
+    }
+}
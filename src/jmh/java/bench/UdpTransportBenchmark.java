@@ -0,0 +1,100 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// echo queries through a running DNSServer over loopback, a window of queries is in flight at once
+// so the server sees bursts the batched transport can drain in one go
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpTransportBenchmark {
+
+    private static final int WINDOW = 64;
+    private static final int PORT = 20530;
+
+    private static final MethodHandle START = ServerMethods.method("DNSServer", "start",
+            MethodType.methodType(void.class, Object.class));
+    private static final MethodHandle CLOSE = ServerMethods.method("DNSServer", "close",
+            MethodType.methodType(void.class, Object.class));
+    private static final MethodHandle NEW_BUFFER_POOL = ServerMethods.method("DNSServer", "newBufferPool",
+            MethodType.methodType(Object.class, int.class, int.class));
+
+    @Param({"SOCKET", "NIO"})
+    public String transport;
+
+    private Object server;
+    private DatagramSocket client;
+    private byte[] request;
+    private final byte[] responseBuf = new byte[512];
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Object handler = ServerMethods.newInstance("RequestHandler", null, null, false,
+                ServerMethods.newInstance("Metrics"), null);
+        server = ServerMethods.newInstance("DNSServer", handler, PORT, 1, 64, 4096, 0, 0, null,
+                ServerMethods.enumValue("DNSServer$Transport", transport), (Object) NEW_BUFFER_POOL.invokeExact(64, 4096));
+        START.invokeExact(server);
+
+        client = new DatagramSocket();
+        client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT));
+        client.setSoTimeout(1000);
+        request = HexFormat.ofDelimiter(" ").parseHex("04 d2 01 00 00 01 00 00 00 00 00 00 "
+                + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+
+        client.close();
+        CLOSE.invokeExact(server);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public int echoWindow() throws IOException {
+
+        for (int i = 0; i < WINDOW; i++) {
+            client.send(new DatagramPacket(request, request.length));
+        }
+        int received = 0;
+        try {
+            for (; received < WINDOW; received++) {
+                client.receive(new DatagramPacket(responseBuf, responseBuf.length));
+            }
+        } catch (SocketTimeoutException e) {
+            // a lost datagram costs the window a timeout, which shows up in the score
+        }
+        return received;
+    }
+}
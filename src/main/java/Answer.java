@@ -2,13 +2,39 @@ public record Answer (
         String resource,
         int realLength,
         byte[] ttl,
-        byte[] ip
+        byte[] rdata, // raw RDATA, names in it are stored uncompressed
+        int type,
+        int answerClass
 ){
 
+    public Answer(String resource, int realLength, byte[] ttl, byte[] rdata) {
+        this(resource, realLength, ttl, rdata, RecordType.A, RecordType.CLASS_IN);
+    }
+
     public static Answer defaultAnswer(String resource) {
         return new Answer(resource,
                 resource.length(),
                 new byte[] {0, 0, 0, 60}, // hardcode TTL to 60
                 new byte[] {124, 8, 0, 1}); // hardcode IP to 124.168.0.1
     }
+
+    public long ttlSeconds() {
+        return ((ttl[0] & 0xFFL) << 24) | ((ttl[1] & 0xFFL) << 16) | ((ttl[2] & 0xFFL) << 8) | (ttl[3] & 0xFFL);
+    }
+
+    // how long a negative answer carrying this SOA may be cached, the lower of its TTL and MINIMUM (RFC 2308)
+    public long negativeTtlSeconds() {
+        long minimum = ((rdata[rdata.length - 4] & 0xFFL) << 24) | ((rdata[rdata.length - 3] & 0xFFL) << 16)
+                | ((rdata[rdata.length - 2] & 0xFFL) << 8) | (rdata[rdata.length - 1] & 0xFFL);
+        return Math.min(ttlSeconds(), minimum);
+    }
+
+    public Answer withTtl(long seconds) {
+        byte[] newTtl = {(byte) (seconds >> 24), (byte) (seconds >> 16), (byte) (seconds >> 8), (byte) seconds};
+        return new Answer(resource, realLength, newTtl, rdata, type, answerClass);
+    }
+
+    public Answer withResource(String newResource) {
+        return new Answer(newResource, realLength, ttl, rdata, type, answerClass);
+    }
 }
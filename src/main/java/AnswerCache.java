@@ -0,0 +1,339 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+
+public class AnswerCache {
+
+    // NXDOMAIN / NODATA replies without an SOA in the authority section are cached this long
+    static final long NEGATIVE_TTL_SECONDS = 60;
+    // TTL of answers served past their expiry (RFC 8767)
+    static final long STALE_TTL_SECONDS = 30;
+    // rough per-entry overhead of the map node, key, entry and answer list
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+    private static final int ANSWER_OVERHEAD_BYTES = 80;
+
+    private final Segment[] segments;
+    private final LongSupplier clock;
+    // share of the original TTL left at which a hot entry is refreshed, 0 disables prefetching
+    private final double prefetchFraction;
+    // hits an entry needs during its lifetime to count as hot
+    private final int prefetchMinHits;
+    // how long expired entries are kept to answer with when upstream fails, 0 drops them on expiry
+    private final long staleWindowMillis;
+
+    public record Key(String name, int type, int questionClass) {
+
+        static Key of(Question question) {
+            return new Key(question.question().toLowerCase(), question.type(), question.questionClass());
+        }
+    }
+
+    // hits and prefetching are the only mutable parts, a refreshed answer replaces the whole entry
+    private record Entry(byte responseCode, List<Answer> answers, List<Answer> authorities, List<Answer> additionals,
+                         long storedAtMillis, long expiresAtMillis, int sizeBytes,
+                         AtomicInteger hits, AtomicBoolean prefetching) {
+    }
+
+    // an entry as the cache snapshot saves and restores it
+    public record StoredAnswer(Key key, byte responseCode, List<Answer> answers, List<Answer> authorities,
+                               List<Answer> additionals, long storedAtMillis, long expiresAtMillis) {
+    }
+
+    public interface StoredAnswerWriter {
+
+        void write(StoredAnswer answer) throws IOException;
+    }
+
+    public AnswerCache(long maxBytes, int segmentCount, double prefetchFraction, int prefetchMinHits,
+                       long staleWindowMillis, LongSupplier clock) {
+
+        this.clock = clock;
+        this.prefetchFraction = prefetchFraction;
+        this.prefetchMinHits = prefetchMinHits;
+        this.staleWindowMillis = staleWindowMillis;
+        // independent LRU segments keep lock contention low, each gets an equal share of the budget
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(maxBytes / segmentCount);
+        }
+    }
+
+    public DNSMessage get(Question question) {
+
+        return get(question, null);
+    }
+
+    // prefetch is asked to refresh a hot entry close to expiry and returns the refresh, or null when it did
+    // not start one; the entry is handed out either way and only one refresh per entry runs at a time
+    public DNSMessage get(Question question, Function<Question, CompletableFuture<DNSMessage>> prefetch) {
+
+        Key key = Key.of(question);
+        Entry entry = segmentFor(key).get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        long now = clock.getAsLong();
+        if (now >= entry.expiresAtMillis()) {
+            if (now >= entry.expiresAtMillis() + staleWindowMillis) {
+                segmentFor(key).remove(key, entry);
+            }
+            return null;
+        }
+
+        int hits = entry.hits().incrementAndGet();
+        if (prefetch != null && shouldPrefetch(entry, hits, now) && entry.prefetching().compareAndSet(false, true)) {
+            // the flag comes down once the refresh is over, whatever came of it: a stored answer replaced the
+            // entry anyway, and after a failure, no budget or an answer put() would not keep (SERVFAIL, TTL 0)
+            // a later hit may try again
+            CompletableFuture<DNSMessage> refresh = prefetch.apply(question);
+            if (refresh == null) {
+                entry.prefetching().set(false);
+            } else {
+                refresh.whenComplete((answer, e) -> entry.prefetching().set(false));
+            }
+        }
+
+        // hand out the TTL that is left, not the one we got from upstream
+        return toMessage(question, entry, ttl -> Math.max(0, ttl - (now - entry.storedAtMillis()) / 1000));
+    }
+
+    public boolean servesStale() {
+
+        return staleWindowMillis > 0;
+    }
+
+    // the last known answer for when upstream does not come through, expired or not, as long as it is
+    // within the stale window; expired records go out with a short TTL so clients ask again soon
+    public DNSMessage getStale(Question question) {
+
+        Key key = Key.of(question);
+        Entry entry = segmentFor(key).get(key);
+        long now = clock.getAsLong();
+        if (entry == null || now >= entry.expiresAtMillis() + staleWindowMillis) {
+            return null;
+        }
+        if (now < entry.expiresAtMillis()) {
+            return toMessage(question, entry, ttl -> Math.max(0, ttl - (now - entry.storedAtMillis()) / 1000));
+        }
+        return toMessage(question, entry, ttl -> Math.min(ttl, STALE_TTL_SECONDS));
+    }
+
+    private static DNSMessage toMessage(Question question, Entry entry, LongUnaryOperator ttl) {
+
+        List<Answer> answers = withTtl(entry.answers(), ttl);
+        return new DNSMessage.Builder()
+                .queryIndicator(true)
+                .responseCode(entry.responseCode())
+                .questionCount(1)
+                .answerRecordCount(answers.size())
+                .questions(List.of(question))
+                .answers(answers)
+                .authorities(withTtl(entry.authorities(), ttl))
+                .additionals(withTtl(entry.additionals(), ttl))
+                .build();
+    }
+
+    private boolean shouldPrefetch(Entry entry, int hits, long now) {
+
+        long lifetime = entry.expiresAtMillis() - entry.storedAtMillis();
+        return prefetchFraction > 0
+                && hits >= prefetchMinHits
+                && entry.expiresAtMillis() - now <= lifetime * prefetchFraction;
+    }
+
+    private static List<Answer> withTtl(List<Answer> records, LongUnaryOperator ttl) {
+
+        return records.stream()
+                .map(record -> record.withTtl(ttl.applyAsLong(record.ttlSeconds())))
+                .toList();
+    }
+
+    public void put(Question question, DNSMessage reply) {
+
+        byte responseCode = reply.getResponseCode();
+        if (responseCode != DNSUtils.RCODE_NO_ERROR && responseCode != DNSUtils.RCODE_NAME_ERROR) {
+            // SERVFAIL, REFUSED and friends are not worth remembering
+            return;
+        }
+
+        List<Answer> answers = reply.getAnswers();
+        long ttlSeconds = answers.isEmpty()
+                ? negativeTtlSeconds(reply)
+                : answers.stream().mapToLong(Answer::ttlSeconds).min().orElse(0);
+        if (ttlSeconds == 0) {
+            return;
+        }
+
+        Key key = Key.of(question);
+        long now = clock.getAsLong();
+        segmentFor(key).put(key, entry(key, responseCode, answers, reply.getAuthorities(), reply.getAdditionals(),
+                now, now + ttlSeconds * 1000));
+    }
+
+    // false when the entry is no longer usable, its TTLs keep counting down from when it was first stored;
+    // an answer stored since, while the snapshot was being read, is kept
+    public boolean restore(StoredAnswer stored) {
+
+        if (clock.getAsLong() >= stored.expiresAtMillis() + staleWindowMillis) {
+            return false;
+        }
+        Key key = stored.key();
+        segmentFor(key).putIfNewer(key, entry(key, stored.responseCode(), stored.answers(), stored.authorities(),
+                stored.additionals(), stored.storedAtMillis(), stored.expiresAtMillis()));
+        return true;
+    }
+
+    // usable entries stored at or after storedSinceMillis, least recently used first so restoring them in
+    // order keeps the LRU order; segments are copied one at a time so the writer does not hold up requests
+    public void writeEntries(long storedSinceMillis, StoredAnswerWriter writer) throws IOException {
+
+        long now = clock.getAsLong();
+        for (Segment segment : segments) {
+            for (Map.Entry<Key, Entry> cached : segment.storedSince(storedSinceMillis)) {
+                Entry entry = cached.getValue();
+                if (now < entry.expiresAtMillis() + staleWindowMillis) {
+                    writer.write(new StoredAnswer(cached.getKey(), entry.responseCode(), entry.answers(),
+                            entry.authorities(), entry.additionals(), entry.storedAtMillis(),
+                            entry.expiresAtMillis()));
+                }
+            }
+        }
+    }
+
+    private static Entry entry(Key key, byte responseCode, List<Answer> answers, List<Answer> authorities,
+                               List<Answer> additionals, long storedAtMillis, long expiresAtMillis) {
+
+        int sizeBytes = ENTRY_OVERHEAD_BYTES + 2 * key.name().length()
+                + sizeBytes(answers) + sizeBytes(authorities) + sizeBytes(additionals);
+        return new Entry(responseCode, answers, authorities, additionals, storedAtMillis, expiresAtMillis, sizeBytes,
+                new AtomicInteger(), new AtomicBoolean());
+    }
+
+    private static long negativeTtlSeconds(DNSMessage reply) {
+
+        // the SOA upstream sent along with NXDOMAIN / NODATA says how long to remember it (RFC 2308)
+        return reply.getAuthorities().stream()
+                .filter(record -> record.type() == RecordType.SOA)
+                .mapToLong(Answer::negativeTtlSeconds)
+                .findFirst()
+                .orElse(NEGATIVE_TTL_SECONDS);
+    }
+
+    private static int sizeBytes(List<Answer> records) {
+
+        int size = 0;
+        for (Answer record : records) {
+            size += ANSWER_OVERHEAD_BYTES + 2 * record.resource().length() + record.rdata().length;
+        }
+        return size;
+    }
+
+    // a smaller budget evicts the least recently used entries right away, a larger one keeps everything
+    public void setMaxBytes(long maxBytes) {
+
+        for (Segment segment : segments) {
+            segment.resize(maxBytes / segments.length);
+        }
+    }
+
+    public int size() {
+
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(Key key) {
+
+        // the segment comes from the high bits of a mixed hash, the map inside the segment picks its bucket
+        // from the low bits of the plain one; sharing those bits would leave most buckets of every segment empty
+        long mixed = (key.hashCode() * 0x9E3779B97F4A7C15L) >>> 32;
+        return segments[(int) (mixed * segments.length >>> 32)];
+    }
+
+    private static class Segment {
+
+        private long maxBytes;
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes;
+
+        Segment(long maxBytes) {
+
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Entry get(Key key) {
+
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, Entry entry) {
+
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                usedBytes -= previous.sizeBytes();
+            }
+            usedBytes += entry.sizeBytes();
+            evict();
+        }
+
+        synchronized void putIfNewer(Key key, Entry entry) {
+
+            Entry current = entries.get(key);
+            if (current == null || current.storedAtMillis() < entry.storedAtMillis()) {
+                put(key, entry);
+            }
+        }
+
+        // least recently used entries go until we are back under budget
+        private void evict() {
+
+            var iterator = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<Key, Entry> eldest = iterator.next();
+                usedBytes -= eldest.getValue().sizeBytes();
+                iterator.remove();
+            }
+        }
+
+        synchronized void remove(Key key, Entry entry) {
+
+            if (entries.remove(key, entry)) {
+                usedBytes -= entry.sizeBytes();
+            }
+        }
+
+        synchronized List<Map.Entry<Key, Entry>> storedSince(long storedSinceMillis) {
+
+            List<Map.Entry<Key, Entry>> stored = new ArrayList<>();
+            for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().storedAtMillis() >= storedSinceMillis) {
+                    stored.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+            return stored;
+        }
+
+        synchronized void resize(long maxBytes) {
+
+            this.maxBytes = maxBytes;
+            evict();
+        }
+
+        synchronized int size() {
+
+            return entries.size();
+        }
+    }
+}
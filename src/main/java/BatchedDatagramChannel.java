@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// non-blocking UDP on NIO with pooled direct buffers: the receiver drains every queued datagram before it
+// waits again, and worker responses are queued and written by the receiver between batches, so under load
+// there is neither a blocking receive per packet nor a wakeup per response
+public class BatchedDatagramChannel implements AutoCloseable {
+
+    // datagrams handled before queued responses get their turn
+    private static final int MAX_BATCH = 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    // every datagram is received into a buffer of its own, sent responses go back to the pool
+    private final BufferPool bufferPool;
+    private final Metrics metrics;
+
+    private final ConcurrentLinkedQueue<Outgoing> outgoing = new ConcurrentLinkedQueue<>();
+    // set while a wakeup is on its way, so a burst of responses costs one wakeup
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    public interface DatagramHandler {
+
+        // the datagram buffer comes from the pool and is the handler's to release, or to send back
+        void onDatagram(ByteBuffer datagram, SocketAddress client);
+    }
+
+    private record Outgoing(ByteBuffer response, SocketAddress client) {
+    }
+
+    // the channel is non-blocking and registered with selector for reads
+    BatchedDatagramChannel(DatagramChannel channel, Selector selector, BufferPool bufferPool, Metrics metrics) {
+
+        this.channel = channel;
+        this.selector = selector;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+    }
+
+    public static BatchedDatagramChannel open(int port, boolean reusePort, BufferPool bufferPool, Metrics metrics)
+            throws IOException {
+
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported, cannot bind more than one channel");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            Selector selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            return new BatchedDatagramChannel(channel, selector, bufferPool, metrics);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // called by workers, the receiver writes the response on its next round and releases its buffer,
+    // which must come from the pool and hold the response from 0 to the limit
+    public void send(ByteBuffer response, SocketAddress client) {
+
+        outgoing.add(new Outgoing(response, client));
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // waits up to pollMillis for datagrams or responses, then handles up to MAX_BATCH datagrams and
+    // writes every queued response
+    public void poll(long pollMillis, DatagramHandler handler) throws IOException {
+
+        selector.select(pollMillis);
+        selector.selectedKeys().clear();
+        // cleared before draining, a response queued after the drain wakes the next select
+        wakeupPending.set(false);
+
+        flush();
+        for (int i = 0; i < MAX_BATCH; i++) {
+            ByteBuffer datagram = bufferPool.acquire();
+            SocketAddress client;
+            try {
+                client = channel.receive(datagram);
+            } catch (IOException e) {
+                bufferPool.release(datagram);
+                throw e;
+            }
+            if (client == null) {
+                bufferPool.release(datagram);
+                break;
+            }
+            handler.onDatagram(datagram.flip(), client);
+        }
+        flush();
+    }
+
+    private void flush() {
+
+        Outgoing next;
+        while ((next = outgoing.poll()) != null) {
+            // counted rather than logged, both happen per packet and exactly when the server is overloaded
+            try {
+                if (write(next.response(), next.client()) == 0) {
+                    // the socket buffer is full, to the client this is just a lost datagram
+                    metrics.recordUdpSendDropped(false);
+                }
+            } catch (IOException e) {
+                metrics.recordUdpSendDropped(true);
+            } finally {
+                bufferPool.release(next.response());
+            }
+        }
+    }
+
+    // bytes sent, 0 when the socket buffer is full
+    int write(ByteBuffer response, SocketAddress client) throws IOException {
+
+        return channel.send(response, client);
+    }
+
+    int localPort() throws IOException {
+
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    // only once the receiver stopped, responses still queued are written first
+    @Override
+    public void close() {
+
+        flush();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// direct packet buffers shared by all threads, lock-free and allocation free once warm: free buffers sit
+// in a bounded array queue where every slot carries a sequence number telling whether it is ready to be
+// filled or taken for the current lap, so acquire and release are one CAS on the head or the tail;
+// when the pool is dry a new buffer is allocated and counted, and buffers released into a full pool
+// are left to the GC
+public class BufferPool {
+
+    // set to true to track every buffer handed out, tests do this through the constructor
+    private static final String LEAK_DETECTION_PROPERTY = "dns.bufferPool.leakDetection";
+
+    private final int bufferSize;
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    // slot i is ready to be filled at tail position p when its sequence is p, and to be taken at head
+    // position p when it is p + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder allocations = new LongAdder();
+
+    // only with leak detection, buffers handed out and where, compared by identity as buffers are mutable
+    private final Map<ByteBuffer, Throwable> outstanding;
+
+    public BufferPool(int capacity, int bufferSize) {
+
+        this(capacity, bufferSize, Boolean.getBoolean(LEAK_DETECTION_PROPERTY));
+    }
+
+    public BufferPool(int capacity, int bufferSize, boolean leakDetection) {
+
+        int slotCount = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.bufferSize = bufferSize;
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.sequences = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = slotCount - 1;
+        this.outstanding = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    // cleared and ready to be written to, must be handed back through release exactly once
+    public ByteBuffer acquire() {
+
+        ByteBuffer buffer = take();
+        if (buffer == null) {
+            allocations.increment();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        inUse.incrementAndGet();
+        if (outstanding != null) {
+            outstanding.put(buffer, new Throwable("buffer acquired here"));
+        }
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer) {
+
+        if (outstanding != null && outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("buffer released twice or not from this pool");
+        }
+        inUse.decrementAndGet();
+        if (buffer.capacity() == bufferSize) {
+            put(buffer);
+        }
+    }
+
+    private ByteBuffer take() {
+
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long ready = sequences.get(index) - (position + 1);
+            if (ready == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    ByteBuffer buffer = slots.getAndSet(index, null);
+                    // free for the next lap of the tail
+                    sequences.set(index, position + mask + 1);
+                    return buffer;
+                }
+                position = head.get();
+            } else if (ready < 0) {
+                // empty
+                return null;
+            } else {
+                // another thread took this slot first
+                position = head.get();
+            }
+        }
+    }
+
+    private void put(ByteBuffer buffer) {
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long free = sequences.get(index) - position;
+            if (free == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, buffer);
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (free < 0) {
+                // full
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    public int bufferSize() {
+
+        return bufferSize;
+    }
+
+    public int available() {
+
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int inUse() {
+
+        return inUse.get();
+    }
+
+    public long allocationCount() {
+
+        return allocations.sum();
+    }
+
+    // where each buffer that was not released yet was acquired, always empty without leak detection
+    public List<Throwable> leaks() {
+
+        if (outstanding == null) {
+            return List.of();
+        }
+        synchronized (outstanding) {
+            return List.copyOf(outstanding.values());
+        }
+    }
+}
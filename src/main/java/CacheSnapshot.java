@@ -0,0 +1,265 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/*
+ * Answer cache entries on disk so a restart does not start cold. Every dump appends the entries stored
+ * since the previous one, and the file is rewritten from scratch once most of it is outdated; on start
+ * it is read back sequentially through a read-only mapping.
+ *
+ *   header   magic "DNSC", version
+ *   entries  length of the rest of the entry, stored at and expires at in epoch milliseconds,
+ *            response code, lower-cased question name in wire format, type, class, record count
+ *            of the answer, authority and additional sections, then per record its owner name in
+ *            wire format and TYPE CLASS TTL RDLENGTH RDATA exactly as they go on the wire
+ *
+ * A later entry for a question replaces an earlier one. An entry cut short, by a crash in the middle
+ * of an append, ends the file.
+ */
+public class CacheSnapshot implements AutoCloseable {
+
+    private static final int MAGIC = 0x444E5343;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    // the file is rewritten once it holds this many times more entries than the cache
+    private static final int COMPACTION_RATIO = 2;
+    // bigger entries are not worth keeping, the upstream can answer those again
+    private static final int MAX_ENTRY_LENGTH = 64 * 1024;
+
+    private final Path path;
+    private final AnswerCache cache;
+    private final LongSupplier clock;
+    // only touched by dump, which runs on the timer or in close once the timer is gone
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_ENTRY_LENGTH);
+    // entries stored from then on are not in the file yet
+    private long dumpedUpToMillis;
+    // entries in the file, outdated or not, -1 when it has to be rewritten before anything is appended
+    private long entriesInFile = -1;
+    private ScheduledThreadPoolExecutor timer;
+
+    CacheSnapshot(Path path, AnswerCache cache, LongSupplier clock) {
+
+        this.path = path;
+        this.cache = cache;
+        this.clock = clock;
+    }
+
+    // restores what path holds into cache in the background, then dumps the cache back to it every
+    // intervalMillis; queries are answered meanwhile, from the entries restored so far or upstream
+    public static CacheSnapshot open(Path path, AnswerCache cache, long intervalMillis) {
+
+        CacheSnapshot snapshot = new CacheSnapshot(path, cache, System::currentTimeMillis);
+        snapshot.timer = new ScheduledThreadPoolExecutor(1,
+                Thread.ofPlatform().name("cache-snapshot").daemon().factory());
+        // the timer has one thread, so the first dump waits for the restore however long it takes
+        snapshot.timer.execute(snapshot::restoreQuietly);
+        snapshot.timer.scheduleWithFixedDelay(snapshot::dumpQuietly, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+        return snapshot;
+    }
+
+    private void restoreQuietly() {
+
+        long start = System.nanoTime();
+        try {
+            int restored = restore();
+            System.out.println("Restored " + restored + " cache entries from " + path + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException e) {
+            System.out.println("Could not restore cache snapshot " + path + ", starting cold: " + e.getMessage());
+        }
+    }
+
+    // number of entries restored, entries that expired meanwhile are skipped
+    int restore() throws IOException {
+
+        dumpedUpToMillis = clock.getAsLong();
+        entriesInFile = -1;
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                System.out.println("Ignoring cache snapshot " + path + " larger than 2 GB");
+                return 0;
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        if (buf.limit() < HEADER_LENGTH || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            System.out.println("Ignoring " + path + ", not a version " + VERSION + " cache snapshot");
+            return 0;
+        }
+
+        int restored = 0;
+        long entries = 0;
+        int position = HEADER_LENGTH;
+        while (position + 4 <= buf.limit()) {
+            int length = buf.getInt(position);
+            if (length <= 0 || length > buf.limit() - position - 4) {
+                break;
+            }
+            try {
+                if (cache.restore(readEntry(buf.slice(position + 4, length)))) {
+                    restored++;
+                }
+            } catch (RuntimeException e) {
+                // a damaged entry, the ones after it are still fine
+                System.out.println("Skipping damaged cache snapshot entry at " + position + ": " + e);
+            }
+            entries++;
+            position += 4 + length;
+        }
+        // appending after a torn entry would hide everything appended, so that file is rewritten instead
+        entriesInFile = position == buf.limit() ? entries : -1;
+        return restored;
+    }
+
+    private static AnswerCache.StoredAnswer readEntry(ByteBuffer buf) {
+
+        long storedAtMillis = buf.getLong();
+        long expiresAtMillis = buf.getLong();
+        byte responseCode = buf.get();
+        String name = DNSCodec.readName(buf);
+        int type = buf.getShort() & 0xFFFF;
+        int questionClass = buf.getShort() & 0xFFFF;
+        int answerCount = buf.getShort() & 0xFFFF;
+        int authorityCount = buf.getShort() & 0xFFFF;
+        int additionalCount = buf.getShort() & 0xFFFF;
+        return new AnswerCache.StoredAnswer(new AnswerCache.Key(name, type, questionClass), responseCode,
+                readRecords(buf, answerCount), readRecords(buf, authorityCount), readRecords(buf, additionalCount),
+                storedAtMillis, expiresAtMillis);
+    }
+
+    private static List<Answer> readRecords(ByteBuffer buf, int count) {
+
+        // restored entries stay for good, so each object saved here is one less for the GC to copy around
+        if (count == 0) {
+            return List.of();
+        }
+        Answer[] records = new Answer[count];
+        for (int i = 0; i < count; i++) {
+            String owner = DNSCodec.readName(buf);
+            int type = buf.getShort() & 0xFFFF;
+            int answerClass = buf.getShort() & 0xFFFF;
+            byte[] ttl = new byte[4];
+            buf.get(ttl);
+            byte[] rdata = new byte[buf.getShort() & 0xFFFF];
+            buf.get(rdata);
+            records[i] = new Answer(owner, 0, ttl, rdata, type, answerClass);
+        }
+        return List.of(records);
+    }
+
+    private void dumpQuietly() {
+
+        try {
+            dump();
+        } catch (IOException e) {
+            System.out.println("Could not write cache snapshot " + path + ": " + e.getMessage());
+            // the file may now end in the middle of an entry
+            entriesInFile = -1;
+        }
+    }
+
+    void dump() throws IOException {
+
+        long now = clock.getAsLong();
+        if (entriesInFile < 0 || entriesInFile > (long) COMPACTION_RATIO * Math.max(cache.size(), 1)) {
+            rewrite();
+        } else {
+            append(dumpedUpToMillis);
+        }
+        // entries stored at exactly now may be written twice, which only costs space
+        dumpedUpToMillis = now;
+    }
+
+    private void rewrite() throws IOException {
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] written = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            cache.writeEntries(0, stored -> written[0] += writeEntry(stored, out));
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        entriesInFile = written[0];
+    }
+
+    private void append(long storedSinceMillis) throws IOException {
+
+        long[] written = {0};
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.APPEND))) {
+            cache.writeEntries(storedSinceMillis, stored -> written[0] += writeEntry(stored, out));
+        }
+        entriesInFile += written[0];
+    }
+
+    // 1 when the entry was written, 0 when it was too big to keep
+    private int writeEntry(AnswerCache.StoredAnswer stored, OutputStream out) throws IOException {
+
+        ByteBuffer entry = scratch.clear();
+        try {
+            entry.putInt(0);
+            entry.putLong(stored.storedAtMillis());
+            entry.putLong(stored.expiresAtMillis());
+            entry.put(stored.responseCode());
+            DNSCodec.writeName(stored.key().name(), entry);
+            entry.putShort((short) stored.key().type());
+            entry.putShort((short) stored.key().questionClass());
+            entry.putShort((short) stored.answers().size());
+            entry.putShort((short) stored.authorities().size());
+            entry.putShort((short) stored.additionals().size());
+            writeRecords(stored.answers(), entry);
+            writeRecords(stored.authorities(), entry);
+            writeRecords(stored.additionals(), entry);
+        } catch (BufferOverflowException e) {
+            return 0;
+        }
+        entry.putInt(0, entry.position() - 4);
+        out.write(entry.array(), 0, entry.position());
+        return 1;
+    }
+
+    private static void writeRecords(List<Answer> records, ByteBuffer entry) {
+
+        for (Answer record : records) {
+            DNSCodec.writeName(record.resource(), entry);
+            entry.putShort((short) record.type());
+            entry.putShort((short) record.answerClass());
+            entry.put(record.ttl());
+            entry.putShort((short) record.rdata().length);
+            entry.put(record.rdata());
+        }
+    }
+
+    // stops the timer and writes what was stored since the last dump
+    @Override
+    public void close() {
+
+        if (timer != null) {
+            timer.shutdown();
+            try {
+                timer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        dumpQuietly();
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// applies a changed configuration to the running server: upstreams, the cache size, rate limits and zones
+// are swapped in place, so caches, upstream statistics and queries in flight carry on; anything else is
+// reported and keeps its value until a restart
+public class ConfigReloader implements ConfigWatcher.Reloader {
+
+    private final String[] args;
+    // null in echo mode
+    private final DNSForwarder forwarder;
+    // null when caching is off
+    private final AnswerCache cache;
+    private final RequestHandler handler;
+    private final DNSServer server;
+    private final Metrics metrics;
+    // settings that need a restart are compared against these
+    private final ServerConfig startup;
+
+    // only touched by the watcher thread: the last configuration read, and the settings in effect for each
+    // part a reload changes; a part that failed to apply keeps its settings and is tried again next time
+    private ServerConfig loaded;
+    private List<String> resolvers;
+    private long cacheMaxBytes;
+    private RateLimits rateLimits;
+
+    private record RateLimits(int queryRateLimit, int responseRateLimit, int rrlSlip) {
+
+        static RateLimits of(ServerConfig config) {
+            return new RateLimits(config.queryRateLimit(), config.responseRateLimit(), config.rrlSlip());
+        }
+    }
+
+    public ConfigReloader(String[] args, ServerConfig startup, DNSForwarder forwarder, AnswerCache cache,
+                          RequestHandler handler, DNSServer server, Metrics metrics) {
+
+        this.args = args;
+        this.startup = startup;
+        this.loaded = startup;
+        this.resolvers = startup.resolvers();
+        this.cacheMaxBytes = startup.cacheMaxBytes();
+        this.rateLimits = RateLimits.of(startup);
+        this.forwarder = forwarder;
+        this.cache = cache;
+        this.handler = handler;
+        this.server = server;
+        this.metrics = metrics;
+    }
+
+    // the config file and the zone data it names
+    public static List<Path> watchedFiles(ServerConfig config) {
+
+        List<Path> files = new ArrayList<>();
+        files.add(Path.of(config.configFile()));
+        if (config.zoneSnapshot() != null) {
+            files.add(Path.of(config.zoneSnapshot()));
+        } else {
+            config.zoneFiles().forEach(zoneFile -> files.add(Path.of(zoneFile)));
+        }
+        return files;
+    }
+
+    @Override
+    public List<Path> reload() {
+
+        ServerConfig next;
+        try {
+            next = ServerConfig.load(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Keeping the current configuration, could not read it: " + e.getMessage());
+            return watchedFiles(loaded);
+        }
+        loaded = next;
+
+        // each part is built before it is swapped in, a part that fails keeps what it had
+        boolean applied = true;
+        if (!next.resolvers().equals(resolvers)) {
+            applied &= applyUpstreams(next);
+        }
+        if (next.cacheMaxBytes() != cacheMaxBytes) {
+            applied &= applyCacheSize(next);
+        }
+        if (!RateLimits.of(next).equals(rateLimits)) {
+            server.setRateLimiter(next.queryRateLimit() > 0 || next.responseRateLimit() > 0
+                    ? new RateLimiter(next.queryRateLimit(), next.responseRateLimit(), next.rrlSlip(), metrics)
+                    : null);
+            rateLimits = RateLimits.of(next);
+        }
+        // zone files change without the config file changing, so they are loaded again on every reload
+        applied &= applyZones(next);
+
+        if (!startup.withReloadableSettingsOf(next).equals(next)) {
+            System.out.println("Listeners, workers, transport and other startup settings only change on restart");
+        }
+        if (applied) {
+            System.out.println("Reloaded configuration from " + next.configFile());
+        }
+        return watchedFiles(next);
+    }
+
+    private boolean applyUpstreams(ServerConfig next) {
+
+        if (forwarder == null || next.resolvers().isEmpty()) {
+            System.out.println("Switching between echo mode and forwarding needs a restart");
+            return false;
+        }
+        try {
+            forwarder.setUpstreams(next.resolverAddresses());
+            resolvers = next.resolvers();
+            System.out.println("Forwarding to " + next.resolvers());
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Keeping upstreams " + resolvers + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean applyCacheSize(ServerConfig next) {
+
+        if (cache == null || next.cacheMaxBytes() <= 0) {
+            System.out.println("Turning the cache on or off needs a restart");
+            return false;
+        }
+        cache.setMaxBytes(next.cacheMaxBytes());
+        cacheMaxBytes = next.cacheMaxBytes();
+        return true;
+    }
+
+    private boolean applyZones(ServerConfig next) {
+
+        try {
+            if (next.zoneSnapshot() != null) {
+                handler.setZones(ZoneStore.loadSnapshot(Path.of(next.zoneSnapshot())));
+            } else if (!next.zoneFiles().isEmpty()) {
+                handler.setZones(ZoneStore.load(next.zoneFiles().stream().map(Path::of).toList()));
+            } else {
+                handler.setZones(null);
+            }
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Keeping the current zones, could not load zones: " + e.getMessage());
+            return false;
+        }
+    }
+}
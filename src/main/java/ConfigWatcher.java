@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// calls the reloader when one of the watched files changes; editors and deploy tools tend to write a file
+// in several steps, so a reload only happens once the files were quiet for a moment
+public class ConfigWatcher implements AutoCloseable {
+
+    private static final long SETTLE_MILLIS = 200;
+    // how often directories that cannot be watched, such as deleted ones, are tried again
+    private static final long RETRY_MILLIS = 1000;
+
+    public interface Reloader {
+
+        // applies the changed files and returns the files to watch from now on
+        List<Path> reload();
+    }
+
+    private final WatchService watchService;
+    private final Reloader reloader;
+    // only touched by the watcher thread once it runs
+    private final Map<Path, WatchKey> directories = new HashMap<>();
+    private Set<Path> files = Set.of();
+    private final Set<Path> missing = new HashSet<>();
+
+    private ConfigWatcher(WatchService watchService, Reloader reloader) {
+
+        this.watchService = watchService;
+        this.reloader = reloader;
+    }
+
+    public static ConfigWatcher start(List<Path> files, Reloader reloader) throws IOException {
+
+        ConfigWatcher watcher = new ConfigWatcher(FileSystems.getDefault().newWatchService(), reloader);
+        IOException failure = watcher.watch(files);
+        if (failure != null) {
+            watcher.close();
+            throw failure;
+        }
+        Thread.ofPlatform().name("config-watcher").daemon().start(watcher::run);
+        return watcher;
+    }
+
+    private void run() {
+
+        try {
+            while (true) {
+                WatchKey key = missing.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                if (!(key == null ? registerMissing() : changed(key))) {
+                    continue;
+                }
+                // let the rest of the write land, each further event restarts the wait
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed(key);
+                }
+                IOException failure = watch(reload());
+                if (failure != null) {
+                    System.out.println("Could not watch every configuration file, retrying: " + failure.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private List<Path> reload() {
+
+        try {
+            return reloader.reload();
+        } catch (RuntimeException e) {
+            // one configuration that could not be applied must not stop the ones that follow
+            System.out.println("Could not reload the configuration: " + e);
+            return List.copyOf(files);
+        }
+    }
+
+    // whether the events of key touch a watched file, the key is reset either way
+    private boolean changed(WatchKey key) {
+
+        boolean changed = false;
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // an overflow lost the names, so it may well have been one of ours
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || files.contains(directory.resolve((Path) event.context()));
+        }
+        if (!key.reset()) {
+            // the directory is gone, it is watched again once it is back
+            directories.remove(directory, key);
+            missing.add(directory);
+            System.out.println("Lost the watch on " + directory + ", watching it again once it is back");
+        }
+        return changed;
+    }
+
+    // whether a directory that could not be watched is back, its files may have changed in the meantime
+    private boolean registerMissing() {
+
+        boolean registered = false;
+        for (Path directory : List.copyOf(missing)) {
+            try {
+                register(directory);
+                registered = true;
+            } catch (IOException e) {
+                // still gone
+            }
+        }
+        return registered;
+    }
+
+    private void register(Path directory) throws IOException {
+
+        directories.put(directory, directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+        missing.remove(directory);
+    }
+
+    // the directories are watched rather than the files, a file replaced by a rename is still seen; a directory
+    // that cannot be watched keeps being retried and the first such failure is returned
+    private IOException watch(List<Path> watched) {
+
+        Set<Path> next = new HashSet<>();
+        for (Path file : watched) {
+            next.add(file.toAbsolutePath().normalize());
+        }
+        Set<Path> nextDirectories = new HashSet<>();
+        IOException failure = null;
+        for (Path file : next) {
+            Path directory = file.getParent();
+            nextDirectories.add(directory);
+            if (directories.containsKey(directory)) {
+                continue;
+            }
+            try {
+                register(directory);
+            } catch (IOException e) {
+                missing.add(directory);
+                failure = failure != null ? failure : e;
+            }
+        }
+        directories.entrySet().removeIf(entry -> {
+            if (nextDirectories.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().cancel();
+            return true;
+        });
+        missing.retainAll(nextDirectories);
+        files = next;
+        return failure;
+    }
+
+    @Override
+    public void close() {
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,517 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class DNSCodec {
+
+    public static final int HEADER_LENGTH = 12;
+
+    private static final int MAX_NAME_LENGTH = 255;
+    // more jumps than this can only come from a pointer loop
+    private static final int MAX_POINTER_JUMPS = 16;
+    // a root name with its fixed fields, nothing in a packet can be shorter
+    private static final int MIN_QUESTION_LENGTH = 5;
+    private static final int MIN_RECORD_LENGTH = 11;
+
+    private static final ThreadLocal<byte[]> NAME_SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_NAME_LENGTH]);
+    // RDATA with two uncompressed names and the fixed SOA fields always fits
+    private static final ThreadLocal<ByteBuffer> RDATA_SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(2 * MAX_NAME_LENGTH + 22));
+    private static final ThreadLocal<CompressionTable> COMPRESSION =
+            ThreadLocal.withInitial(CompressionTable::new);
+
+    private DNSCodec() {
+    }
+
+    public static DNSMessage decode(ByteBuffer buf) {
+
+        // transaction id
+        short transactionId = buf.getShort(0);
+
+        // header flags and codes
+        byte headers1 = buf.get(2);
+        boolean queryIndicator = (headers1 & 0b10000000) != 0;
+        byte opCode = (byte) ((headers1 & 0b01111000) >> 3);
+        boolean authoritativeAnswer = (headers1 & 0b00000100) != 0;
+        boolean truncated = (headers1 & 0b00000010) != 0;
+        boolean recursionDesired = (headers1 & 0b00000001) != 0;
+        byte responseCode = (byte) (buf.get(3) & 0b00001111);
+
+        int numQuestions = buf.getShort(4) & 0xFFFF;
+        int numAnswers = buf.getShort(6) & 0xFFFF;
+        int numAuthorities = buf.getShort(8) & 0xFFFF;
+        int numAdditionals = buf.getShort(10) & 0xFFFF;
+
+        buf.position(HEADER_LENGTH);
+
+        // the counts are whatever the sender put there, lists are sized by what the packet can hold
+        List<Question> questions = newList(numQuestions, buf, MIN_QUESTION_LENGTH);
+        for (int i = 0; i < numQuestions; i++) {
+            questions.add(readQuestion(buf));
+        }
+
+        List<Answer> answers = newList(numAnswers, buf, MIN_RECORD_LENGTH);
+        for (int i = 0; i < numAnswers; i++) {
+            answers.add(readAnswer(buf));
+        }
+
+        List<Answer> authorities = newList(numAuthorities, buf, MIN_RECORD_LENGTH);
+        for (int i = 0; i < numAuthorities; i++) {
+            authorities.add(readAnswer(buf));
+        }
+
+        // OPT is pulled out of the additional section, lenient with queries cut short
+        List<Answer> additionals = newList(numAdditionals, buf, MIN_RECORD_LENGTH);
+        int ednsPayloadSize = 0;
+        for (int i = 0; i < numAdditionals && buf.hasRemaining(); i++) {
+            Answer additional = readAnswer(buf);
+            if (additional.type() == RecordType.OPT) {
+                // the OPT class is the sender's UDP payload size, values below 512 are treated as 512
+                ednsPayloadSize = Math.max(additional.answerClass(), DNSUtils.MAX_UDP_LENGTH);
+            } else {
+                additionals.add(additional);
+            }
+        }
+
+        return new DNSMessage.Builder()
+                .transactionId(transactionId)
+                .queryIndicator(queryIndicator)
+                .opCode(opCode)
+                .authoritativeAnswer(authoritativeAnswer)
+                .truncated(truncated)
+                .recursionDesired(recursionDesired)
+                .responseCode(responseCode)
+                .questionCount(numQuestions)
+                .answerRecordCount(numAnswers)
+                .questions(questions)
+                .answers(answers)
+                .authorities(authorities)
+                .additionals(additionals)
+                .ednsPayloadSize(ednsPayloadSize)
+                .build();
+    }
+
+    private static <T> List<T> newList(int count, ByteBuffer buf, int minLength) {
+
+        return new ArrayList<>(Math.min(count, buf.remaining() / minLength));
+    }
+
+    public static int encode(DNSMessage message, ByteBuffer out) {
+
+        int start = out.position();
+        CompressionTable names = COMPRESSION.get();
+        names.clear();
+
+        out.putShort(message.getTransactionId());
+
+        // QR + OPCODE + AA + TC + RD
+        out.put((byte) ((message.isResponse() ? 0b10000000 : 0)
+                | ((message.getOpCode() & 0b1111) << 3)
+                | (message.isAuthoritativeAnswer() ? 0b00000100 : 0)
+                | (message.isTruncated() ? 0b00000010 : 0)
+                | (message.isRecursionDesired() ? 0b00000001 : 0)));
+        // RA + Z + AD + CD + RCODE
+        out.put((byte) (message.getResponseCode() & 0b00001111));
+
+        out.putShort((short) message.getQuestionCount());
+        out.putShort((short) message.getAnswerRecordCount());
+        out.putShort((short) message.getAuthorities().size());
+        out.putShort((short) (message.getAdditionals().size() + (message.hasEdns() ? 1 : 0)));
+
+        for (Question question : message.getQuestions()) {
+            writeName(question.question(), out, start, names);
+            out.putShort((short) question.type());
+            out.putShort((short) question.questionClass());
+        }
+
+        for (Answer answer : message.getAnswers()) {
+            writeAnswer(answer, out, start, names);
+        }
+
+        for (Answer authority : message.getAuthorities()) {
+            writeAnswer(authority, out, start, names);
+        }
+
+        for (Answer additional : message.getAdditionals()) {
+            writeAnswer(additional, out, start, names);
+        }
+
+        if (message.hasEdns()) {
+            writeOpt(message.getEdnsPayloadSize(), out);
+        }
+
+        return out.position() - start;
+    }
+
+    private static void writeAnswer(Answer answer, ByteBuffer out, int start, CompressionTable names) {
+
+        // owner names are compressed, RDATA is written as is so RDLENGTH stays the stored length
+        writeName(answer.resource(), out, start, names);
+        out.putShort((short) answer.type());
+        out.putShort((short) answer.answerClass());
+        out.put(answer.ttl());
+        out.putShort((short) answer.rdata().length);
+        out.put(answer.rdata());
+    }
+
+    // end offset of the question section in a query packet, -1 when it runs past the packet
+    static int questionSectionEnd(byte[] packet) {
+
+        return questionSectionEnd(ByteBuffer.wrap(packet));
+    }
+
+    // the message runs from 0 to the limit of packet, its position is ignored
+    static int questionSectionEnd(ByteBuffer packet) {
+
+        int count = ((packet.get(4) & 0xFF) << 8) | (packet.get(5) & 0xFF);
+        int position = HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            position = nameEnd(packet, position);
+            if (position < 0) {
+                return -1;
+            }
+            // type and class
+            position += 4;
+        }
+        return position <= packet.limit() ? position : -1;
+    }
+
+    // offset of the OPT record in the additional section of packet, -1 when there is none or a record runs
+    // past the packet; the records start at questionEnd
+    static int optRecordStart(ByteBuffer packet, int questionEnd) {
+
+        int beforeAdditionals = (packet.getShort(6) & 0xFFFF) + (packet.getShort(8) & 0xFFFF);
+        int records = beforeAdditionals + (packet.getShort(10) & 0xFFFF);
+        int position = questionEnd;
+        for (int i = 0; i < records; i++) {
+            int end = recordEnd(packet, position);
+            if (end < 0) {
+                return -1;
+            }
+            if (i >= beforeAdditionals && (packet.getShort(nameEnd(packet, position)) & 0xFFFF) == RecordType.OPT) {
+                return position;
+            }
+            position = end;
+        }
+        return -1;
+    }
+
+    // end offset of the resource record starting at position, -1 when it runs past the packet
+    static int recordEnd(ByteBuffer packet, int position) {
+
+        int nameEnd = nameEnd(packet, position);
+        // type, class, TTL and RDLENGTH
+        if (nameEnd < 0 || nameEnd + 10 > packet.limit()) {
+            return -1;
+        }
+        int end = nameEnd + 10 + (packet.getShort(nameEnd + 8) & 0xFFFF);
+        return end <= packet.limit() ? end : -1;
+    }
+
+    private static int nameEnd(ByteBuffer packet, int position) {
+
+        while (position < packet.limit()) {
+            int labelLength = packet.get(position) & 0xFF;
+            if (labelLength == 0) {
+                return position + 1;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                // a pointer ends the name
+                return position + 2;
+            }
+            position += labelLength + 1;
+        }
+        return -1;
+    }
+
+    private static void writeOpt(int payloadSize, ByteBuffer out) {
+
+        // root owner, payload size in CLASS, extended RCODE / version / flags all zero, no options
+        out.put((byte) 0);
+        out.putShort((short) RecordType.OPT);
+        out.putShort((short) payloadSize);
+        out.putInt(0);
+        out.putShort((short) 0);
+    }
+
+    private static Question readQuestion(ByteBuffer buf) {
+
+        int start = buf.position();
+        String name = readName(buf);
+
+        if (buf.remaining() < 4) {
+            // truncated question, assume type A + class IN
+            return new Question(name, buf.position() - start);
+        }
+
+        int type = buf.getShort() & 0xFFFF;
+        int questionClass = buf.getShort() & 0xFFFF;
+        return new Question(name, buf.position() - start, type, questionClass);
+    }
+
+    private static Answer readAnswer(ByteBuffer buf) {
+
+        int start = buf.position();
+        String name = readName(buf);
+
+        int type = buf.getShort() & 0xFFFF;
+        int answerClass = buf.getShort() & 0xFFFF;
+
+        byte[] ttl = new byte[4];
+        buf.get(ttl);
+
+        int rdLength = buf.getShort() & 0xFFFF;
+        byte[] rdata = readRdata(buf, type, rdLength);
+
+        return new Answer(name, buf.position() - start, ttl, rdata, type, answerClass);
+    }
+
+    private static byte[] readRdata(ByteBuffer buf, int type, int rdLength) {
+
+        int end = buf.position() + rdLength;
+        if (!RecordType.hasNamesInRdata(type)) {
+            byte[] rdata = new byte[rdLength];
+            buf.get(rdata);
+            return rdata;
+        }
+
+        // names in RDATA may point into the message they came from, expand them so the RDATA stands on its own
+        ByteBuffer out = RDATA_SCRATCH.get().clear();
+        if (type == RecordType.MX) {
+            // preference
+            out.putShort(buf.getShort());
+        }
+        writeName(readName(buf), out);
+        if (type == RecordType.SOA) {
+            writeName(readName(buf), out);
+            // serial, refresh, retry, expire and minimum
+            for (int i = 0; i < 5; i++) {
+                out.putInt(buf.getInt());
+            }
+        }
+        buf.position(end);
+
+        byte[] rdata = new byte[out.position()];
+        out.get(0, rdata);
+        return rdata;
+    }
+
+    static String readName(ByteBuffer buf) {
+
+        byte[] scratch = NAME_SCRATCH.get();
+        int length = 0;
+        int position = buf.position();
+        // where the name ends in the buffer, set at the first pointer or the terminating zero
+        int end = -1;
+        int jumps = 0;
+
+        while (true) {
+            int labelLength = buf.get(position) & 0xFF;
+
+            if ((labelLength & 0b11000000) == 0b11000000) {
+                if (end < 0) {
+                    end = position + 2;
+                }
+                if (++jumps > MAX_POINTER_JUMPS) {
+                    throw new IllegalArgumentException("too many compression pointers in name at " + buf.position());
+                }
+                position = ((labelLength & 0b00111111) << 8) | (buf.get(position + 1) & 0xFF);
+                continue;
+            }
+
+            if (labelLength == 0) {
+                if (end < 0) {
+                    end = position + 1;
+                }
+                break;
+            }
+
+            if (length + labelLength + 1 > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("name longer than " + MAX_NAME_LENGTH + " octets at " + buf.position());
+            }
+            if (length > 0) {
+                scratch[length++] = '.';
+            }
+            buf.get(position + 1, scratch, length, labelLength);
+            length += labelLength;
+            position += labelLength + 1;
+        }
+
+        buf.position(end);
+        return NameTable.intern(scratch, length);
+    }
+
+    static void writeName(String name, ByteBuffer out) {
+
+        // reserve the length octet of each label and patch it once the label is written
+        int lengthPosition = out.position();
+        out.put((byte) 0);
+        int labelLength = 0;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                out.put(lengthPosition, (byte) labelLength);
+                lengthPosition = out.position();
+                out.put((byte) 0);
+                labelLength = 0;
+            } else {
+                out.put((byte) c);
+                labelLength++;
+            }
+        }
+
+        // an empty last label means the reserved octet already is the terminating zero
+        if (labelLength > 0) {
+            out.put(lengthPosition, (byte) labelLength);
+            out.put((byte) 0);
+        }
+    }
+
+    // writes name with a pointer to the longest suffix already present in the message starting at start
+    static void writeName(String name, ByteBuffer out, int start, CompressionTable names) {
+
+        int from = 0;
+        while (from < name.length()) {
+            int hash = suffixHash(name, from);
+            int offset = names.find(hash, name, from, out, start);
+            if (offset >= 0) {
+                out.putShort((short) (0xC000 | offset));
+                return;
+            }
+            names.add(hash, out.position() - start);
+
+            int dot = name.indexOf('.', from);
+            int end = dot < 0 ? name.length() : dot;
+            if (end == from) {
+                // root or a stray empty label, the terminating zero follows
+                break;
+            }
+            out.put((byte) (end - from));
+            for (int i = from; i < end; i++) {
+                out.put((byte) name.charAt(i));
+            }
+            from = end + 1;
+        }
+        out.put((byte) 0);
+    }
+
+    private static int suffixHash(String name, int from) {
+
+        int hash = 1;
+        for (int i = from; i < name.length(); i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        return hash;
+    }
+
+    // offsets of name suffixes written so far in one message, matched case-sensitively so clients
+    // relying on 0x20 randomisation get their question name back exactly as sent
+    static final class CompressionTable {
+
+        // pointers only have 14 bits for the offset
+        private static final int MAX_OFFSET = 0x3FFF;
+        private static final int CAPACITY = 128;
+
+        private final int[] hashes = new int[CAPACITY];
+        private final int[] offsets = new int[CAPACITY];
+        private int size;
+
+        void clear() {
+
+            size = 0;
+        }
+
+        void add(int hash, int offset) {
+
+            // past the capacity names are still written, just not reused
+            if (size < CAPACITY && offset <= MAX_OFFSET) {
+                hashes[size] = hash;
+                offsets[size] = offset;
+                size++;
+            }
+        }
+
+        int find(int hash, String name, int from, ByteBuffer out, int start) {
+
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash && matches(name, from, out, start, offsets[i])) {
+                    return offsets[i];
+                }
+            }
+            return -1;
+        }
+
+        // compares the suffix of name with the wire name at offset, hashes can collide
+        private static boolean matches(String name, int from, ByteBuffer out, int start, int offset) {
+
+            int position = start + offset;
+            int i = from;
+            for (int jumps = 0; jumps <= MAX_POINTER_JUMPS; ) {
+                int labelLength = out.get(position) & 0xFF;
+                if ((labelLength & 0xC0) == 0xC0) {
+                    position = start + (((labelLength & 0x3F) << 8) | (out.get(position + 1) & 0xFF));
+                    jumps++;
+                    continue;
+                }
+                if (labelLength == 0) {
+                    return i >= name.length();
+                }
+                for (int k = 1; k <= labelLength; k++, i++) {
+                    if (i >= name.length()
+                            || name.charAt(i) != (char) (out.get(position + k) & 0xFF)) {
+                        return false;
+                    }
+                }
+                // the label has to end where the name's label ends
+                if (i < name.length() && name.charAt(i) != '.') {
+                    return false;
+                }
+                i++;
+                position += labelLength + 1;
+            }
+            return false;
+        }
+    }
+
+    // direct mapped table of recently decoded names, repeated names are handed out without allocating
+    private static final class NameTable {
+
+        private static final int SIZE = 4096;
+        private static final String[] NAMES = new String[SIZE];
+
+        static String intern(byte[] bytes, int length) {
+
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+            // racy on purpose, Strings are immutable so the worst case is a miss
+            String cached = NAMES[slot];
+            if (cached != null && matches(cached, bytes, length)) {
+                return cached;
+            }
+
+            // ISO-8859-1 maps every octet to one char, so names survive a decode / encode round-trip
+            String name = new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            NAMES[slot] = name;
+            return name;
+        }
+
+        private static boolean matches(String cached, byte[] bytes, int length) {
+
+            if (cached.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (cached.charAt(i) != (char) (bytes[i] & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
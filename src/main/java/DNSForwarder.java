@@ -1,42 +1,143 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class DNSForwarder {
 
-    private final InetAddress forwardingAddress;
-    private final int forwardingPort;
+    // hedge delay bounds, and the delay used until an upstream has enough RTT samples
+    private static final long MIN_HEDGE_DELAY_MILLIS = 5;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 100;
 
-    public DNSForwarder(InetAddress forwardingAddress, int forwardingPort) {
+    // replaced on reload, a query ranks the upstreams of the selector it read first
+    private volatile UpstreamSelector selector;
+    private final UpstreamPool pool;
+    private final int timeoutMillis;
+    private final boolean hedging;
+    // null when caching is disabled
+    private final AnswerCache cache;
+    private final Metrics metrics;
 
-        this.forwardingAddress = forwardingAddress;
-        this.forwardingPort = forwardingPort;
+    // caps the number of upstream queries in flight across all requests
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    // caps the refreshes of hot cache entries, which never wait for a slot
+    private final Semaphore prefetchSlots;
+    // how long a client waits for upstream before a stale cached answer is served instead
+    private final int staleAnswerTimeoutMillis;
+    // identical questions asked while one is already upstream wait for that one instead of asking again
+    private final ConcurrentHashMap<AnswerCache.Key, CompletableFuture<DNSMessage>> inFlightQuestions =
+            new ConcurrentHashMap<>();
+    // starts hedges, a hedge is cancelled and dropped from the queue as soon as the primary replies
+    private final ScheduledThreadPoolExecutor hedgeTimer;
+
+    public DNSForwarder(UpstreamSelector selector, UpstreamPool pool, int timeoutMillis, boolean hedging,
+                        int maxInFlight, AnswerCache cache, Metrics metrics, int maxPrefetches,
+                        int staleAnswerTimeoutMillis) {
+
+        this.selector = selector;
+        this.pool = pool;
+        this.timeoutMillis = timeoutMillis;
+        this.hedging = hedging;
+        this.cache = cache;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.prefetchSlots = new Semaphore(maxPrefetches);
+        this.staleAnswerTimeoutMillis = staleAnswerTimeoutMillis;
+        this.metrics = metrics;
+
+        this.maxInFlight = maxInFlight;
+        this.hedgeTimer = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("hedge-timer").daemon().factory());
+        this.hedgeTimer.setRemoveOnCancelPolicy(true);
+
+        metrics.trackUpstreams(selector.upstreams(), () -> maxInFlight - inFlight.availablePermits());
+        metrics.trackUpstreamPool(pool);
+        if (cache != null) {
+            metrics.trackCache(cache::size);
+        }
     }
 
-    public DNSMessage forwardMessage(DNSMessage message) {
+    // upstreams that stay keep their RTT statistics and health, queries in flight finish where they were sent
+    public void setUpstreams(List<InetSocketAddress> addresses) {
 
-        List<Answer> answers = new ArrayList<>();
+        Map<InetSocketAddress, Upstream> current = new HashMap<>();
+        for (Upstream upstream : selector.upstreams()) {
+            current.put(upstream.address(), upstream);
+        }
+        List<Upstream> upstreams = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            Upstream kept = current.get(address);
+            upstreams.add(kept != null ? kept : new Upstream(address, selector.clock()));
+        }
+        selector = new UpstreamSelector(upstreams, selector.clock());
+        metrics.trackUpstreams(selector.upstreams(), () -> maxInFlight - inFlight.availablePermits());
+    }
+
+    List<Upstream> upstreams() {
+
+        return selector.upstreams();
+    }
+
+    int scheduledHedgeCount() {
+
+        return hedgeTimer.getQueue().size();
+    }
+
+    public DNSMessage forwardMessage(DNSMessage message) {
 
+        // send every question that is not cached upstream at once, then collect the replies in question order
+        List<CompletableFuture<DNSMessage>> pending = new ArrayList<>();
         for (Question question : message.getQuestions()) {
-            DNSMessage toForward = new DNSMessage.Builder()
-                    .transactionId(message.getTransactionId())
-                    .queryIndicator(false)
-                    .opCode(message.getOpCode())
-                    .recursionDesired(message.isRecursionDesired())
-                    .questionCount(1)
-                    .answerRecordCount(0)
-                    .questions(List.of(question))
-                    .answers(List.of())
-                    .build();
-
-            DNSMessage answer = forwardSingleMessage(toForward);
-            // assumes zero or a single answer since we send a single question
-            if (!(answer.getAnswers() == null) & !answer.getAnswers().isEmpty()) {
-                answers.add(answer.getAnswers().getFirst());
+            DNSMessage cached = lookupCache(question);
+            if (cached != null) {
+                pending.add(CompletableFuture.completedFuture(cached));
+                continue;
+            }
+
+            pending.add(forwardShared(question, upstreamQuery(question, message.getTransactionId(),
+                    message.getOpCode(), message.isRecursionDesired()), timeoutMillis));
+        }
+
+        // records are relayed as they came, whole CNAME chains and RRsets included
+        List<Answer> answers = new ArrayList<>();
+        List<Answer> authorities = List.of();
+        List<Answer> additionals = List.of();
+        byte responseCode = DNSUtils.defaultResponseCode(message);
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(staleAnswerTimeoutMillis);
+        for (int i = 0; i < pending.size(); i++) {
+            DNSMessage answer = awaitAnswer(message.getQuestions().get(i), pending.get(i), deadlineNanos);
+            if (answer == null || answer.getResponseCode() == DNSUtils.RCODE_SERVER_FAILURE) {
+                // the answers to the other questions would pass for a complete response, so any failed question
+                // fails the whole request; the queries still upstream keep going and fill the cache
+                if (responseCode == DNSUtils.RCODE_NO_ERROR) {
+                    responseCode = DNSUtils.RCODE_SERVER_FAILURE;
+                }
+                answers.clear();
+                authorities = List.of();
+                additionals = List.of();
+                break;
+            }
+            answers.addAll(answer.getAnswers());
+            // a single question can carry the upstream verdict and sections, there is no way to express them
+            // per question otherwise
+            if (pending.size() == 1 && responseCode == DNSUtils.RCODE_NO_ERROR) {
+                responseCode = answer.getResponseCode();
+                authorities = answer.getAuthorities();
+                additionals = answer.getAdditionals();
             }
         }
 
@@ -45,45 +146,277 @@ public class DNSForwarder {
                 .queryIndicator(true)
                 .opCode(message.getOpCode())
                 .recursionDesired(message.isRecursionDesired())
+                .responseCode(responseCode)
                 .questionCount(message.getQuestionCount())
                 .answerRecordCount(answers.size())
                 .questions(message.getQuestions())
                 .answers(answers)
+                .authorities(authorities)
+                .additionals(additionals)
                 .build();
     }
 
-    private DNSMessage forwardSingleMessage(DNSMessage message) {
+    private static DNSMessage upstreamQuery(Question question, short transactionId, byte opCode,
+                                            boolean recursionDesired) {
 
-        try(DatagramSocket forwardSocket = new DatagramSocket()) {
-            System.out.println("forwarding request for domain: " + message.getQuestions().getFirst());
+        return new DNSMessage.Builder()
+                .transactionId(transactionId)
+                .queryIndicator(false)
+                .opCode(opCode)
+                .recursionDesired(recursionDesired)
+                .questionCount(1)
+                .answerRecordCount(0)
+                .questions(List.of(question))
+                .answers(List.of())
+                // advertise our buffer so large answers come back over UDP instead of TC and a TCP retry
+                .ednsPayloadSize(DNSUtils.MAX_EDNS_PAYLOAD)
+                .build();
+    }
 
-            final byte[] buf = DNSUtils.dnsMessageToByteArray(message);
+    private DNSMessage lookupCache(Question question) {
 
-            DatagramPacket forwardRequestPacket = new DatagramPacket(buf, buf.length, forwardingAddress, forwardingPort);
-            forwardSocket.send(forwardRequestPacket);
+        if (cache == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        DNSMessage cached = cache.get(question, this::prefetch);
+        metrics.recordCacheLookup(System.nanoTime() - start, cached != null);
+        return cached;
+    }
 
-            final byte[] responseBuf = new byte[512];
-            DatagramPacket forwardResponsePacket = new DatagramPacket(responseBuf, responseBuf.length);
-            forwardSocket.receive(forwardResponsePacket);
+    // refreshes a hot entry before it expires, the reply replaces it in the cache like any other reply
+    // so clients keep getting cache hits; null when the prefetch budget is used up
+    private CompletableFuture<DNSMessage> prefetch(Question question) {
 
-            System.out.println("buffer for forwarding server response: " + Arrays.toString(responseBuf));
-            DNSMessage answer = DNSUtils.parsePacket(responseBuf);
-            List<Answer> replies = answer.getAnswers();
-            if (replies != null && !replies.isEmpty()) {
-                Answer reply = replies.getFirst();
-                System.out.println("resource from forwarding DNS server: " + reply.resource());
-                System.out.println("ttl from forwarding DNS server: " + Arrays.toString(reply.ttl()));
-                System.out.println("ip from forwarding DNS server: " + Arrays.toString(reply.ip()));
-            } else {
-                System.out.println("No answers from server");
+        if (!prefetchSlots.tryAcquire()) {
+            return null;
+        }
+        // the pool picks the transaction id, and a refresh must not wait for an upstream slot on a client's
+        // thread; it is not shared with clients either, one that found no slot completes without an answer
+        // and clients are answered from the entry that is still valid anyway
+        CompletableFuture<DNSMessage> refresh = forwardSingleMessage(upstreamQuery(question, (short) 0, (byte) 0, true), 0);
+        refresh.whenComplete((answer, e) -> {
+            prefetchSlots.release();
+            if (answer != null) {
+                metrics.recordPrefetch();
             }
+        });
+        return refresh;
+    }
+
+    // passthrough: the client's datagram goes upstream as is and the reply comes back as is,
+    // nothing is decoded, cached or shared with other clients; null when no upstream answered
+    public byte[] relay(byte[] request) {
 
+        // replies are matched on the question section, one that does not parse is the client's problem and
+        // never goes upstream
+        int questionEnd = DNSCodec.questionSectionEnd(request);
+        if (questionEnd < 0) {
+            return DNSUtils.errorResponse(request, DNSUtils.RCODE_FORMAT_ERROR);
+        }
+        if (!acquireSlot(timeoutMillis)) {
+            return null;
+        }
+        return awaitReply(queryHedged(upstream -> relayUpstream(upstream, request, questionEnd))
+                .whenComplete((reply, e) -> inFlight.release()));
+    }
 
+    private DNSMessage awaitAnswer(Question question, CompletableFuture<DNSMessage> future, long deadlineNanos) {
+
+        if (cache == null || !cache.servesStale()) {
+            return awaitReply(future);
+        }
+
+        // serve-stale (RFC 8767): past the deadline or once upstream failed, the last known answer beats
+        // SERVFAIL; the upstream query keeps going and refreshes the cache when it completes
+        DNSMessage answer = null;
+        try {
+            answer = future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("exception while forwarding: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            // upstream is slow, fall through to the stale answer
+        }
+        if (answer != null && answer.getResponseCode() != DNSUtils.RCODE_SERVER_FAILURE) {
             return answer;
-        } catch (IOException e) {
-            System.out.println("exception while forwarding: " + e.getMessage());
+        }
+
+        DNSMessage stale = cache.getStale(question);
+        if (stale == null) {
+            // nothing to fall back on, wait for upstream after all
+            return answer != null || future.isDone() ? answer : awaitReply(future);
+        }
+        metrics.recordStaleAnswer();
+        return stale;
+    }
+
+    private <T> T awaitReply(CompletableFuture<T> future) {
+
+        // the pool fails every query once its retransmissions ran out, so there is no need for a timeout here
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("exception while forwarding: " + e.getCause().getMessage());
         }
 
         return null;
     }
+
+    private CompletableFuture<DNSMessage> forwardShared(Question question, DNSMessage toForward, long waitMillis) {
+
+        AnswerCache.Key key = AnswerCache.Key.of(question);
+        CompletableFuture<DNSMessage> shared = new CompletableFuture<>();
+        CompletableFuture<DNSMessage> existing = inFlightQuestions.putIfAbsent(key, shared);
+        if (existing != null) {
+            // the reply only feeds answers into our own response, which carries the client's transaction id
+            return existing;
+        }
+
+        forwardSingleMessage(toForward, waitMillis).whenComplete((answer, e) -> {
+            inFlightQuestions.remove(key, shared);
+            if (e != null) {
+                shared.completeExceptionally(e);
+            } else {
+                shared.complete(answer);
+            }
+        });
+        return shared;
+    }
+
+    private CompletableFuture<DNSMessage> forwardSingleMessage(DNSMessage message, long waitMillis) {
+
+        Question question = message.getQuestions().getFirst();
+        if (!acquireSlot(waitMillis)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return queryHedged(upstream -> queryUpstream(upstream, message))
+                .whenComplete((answer, e) -> inFlight.release())
+                .thenApply(answer -> {
+                    if (cache != null) {
+                        cache.put(question, answer);
+                    }
+                    return answer;
+                });
+    }
+
+    private boolean acquireSlot(long waitMillis) {
+
+        try {
+            if (inFlight.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            metrics.recordDroppedUpstreamQuery();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private <T> CompletableFuture<T> queryHedged(Function<Upstream, CompletableFuture<T>> query) {
+
+        List<Upstream> ranked = selector.ranked();
+        Upstream primary = ranked.getFirst();
+        if (ranked.size() == 1) {
+            return query.apply(primary);
+        }
+
+        // the fastest upstream gets the query first, the runner-up once the primary is slower than its p95
+        // or as soon as the primary fails, whichever answers first wins
+        Upstream secondary = ranked.get(1);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicBoolean secondaryStarted = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+
+        CompletableFuture<T> primaryReply = query.apply(primary);
+        ScheduledFuture<?> hedge = !hedging ? null : hedgeTimer.schedule(() -> {
+            // the hedge is a query on top of the primary's, without a slot of its own the primary answers alone
+            if (result.isDone() || !inFlight.tryAcquire()) {
+                return;
+            }
+            if (!secondaryStarted.compareAndSet(false, true)) {
+                inFlight.release();
+                return;
+            }
+            metrics.recordHedgedQuery();
+            query.apply(secondary).whenComplete((answer, e) -> {
+                inFlight.release();
+                settle(result, answer, e, failures);
+            });
+        }, hedgeDelayMillis(primary), TimeUnit.MILLISECONDS);
+
+        primaryReply.whenComplete((answer, e) -> {
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            // a failed primary no longer needs its slot, the runner-up takes it over
+            if (e != null && secondaryStarted.compareAndSet(false, true)) {
+                metrics.recordHedgedQuery();
+                query.apply(secondary).whenComplete((secondaryAnswer, secondaryError) ->
+                        settle(result, secondaryAnswer, secondaryError, failures));
+            }
+            settle(result, answer, e, failures);
+        });
+        return result;
+    }
+
+    private static <T> void settle(CompletableFuture<T> result, T answer, Throwable e, AtomicInteger failures) {
+
+        // fail only once both the primary and the secondary failed
+        if (e == null) {
+            result.complete(answer);
+        } else if (failures.incrementAndGet() == 2) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    long hedgeDelayMillis(Upstream upstream) {
+
+        long p95Nanos = upstream.p95RttNanos();
+        long delay = p95Nanos == 0 ? DEFAULT_HEDGE_DELAY_MILLIS : TimeUnit.NANOSECONDS.toMillis(p95Nanos);
+        return Math.clamp(delay, MIN_HEDGE_DELAY_MILLIS, Math.max(MIN_HEDGE_DELAY_MILLIS, timeoutMillis / 2));
+    }
+
+    private CompletableFuture<DNSMessage> queryUpstream(Upstream upstream, DNSMessage message) {
+
+        return timed(upstream, () -> pool.query(message, upstream.address())
+                .thenCompose(answer -> {
+                    if (!answer.isTruncated()) {
+                        return CompletableFuture.completedFuture(answer);
+                    }
+                    metrics.recordTcpRetry();
+                    return pool.queryTcp(message, upstream.address());
+                }));
+    }
+
+    private CompletableFuture<byte[]> relayUpstream(Upstream upstream, byte[] request, int questionEnd) {
+
+        // a truncated reply goes back to the client as is, it retries over TCP itself
+        return timed(upstream, () -> pool.relay(request, questionEnd, upstream.address()));
+    }
+
+    private static <T> CompletableFuture<T> timed(Upstream upstream, Supplier<CompletableFuture<T>> query) {
+
+        long start = System.nanoTime();
+        return query.get()
+                .whenComplete((answer, e) -> {
+                    if (e == null) {
+                        upstream.recordSuccess(System.nanoTime() - start);
+                    } else if (isUpstreamFailure(e)) {
+                        upstream.recordFailure();
+                    }
+                });
+    }
+
+    // timeouts and I/O errors are down to the upstream or the network, anything else is down to us or the
+    // client and must not put the upstream into backoff
+    private static boolean isUpstreamFailure(Throwable e) {
+
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof TimeoutException || cause instanceof IOException;
+    }
 }
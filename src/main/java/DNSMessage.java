@@ -5,23 +5,37 @@ public class DNSMessage {
     private final short transactionId;
     private final boolean queryIndicator;
     private final byte opCode;
+    private final boolean authoritativeAnswer;
+    private final boolean truncated;
     private final boolean recursionDesired;
+    private final byte responseCode;
     private final int questionCount;
     private final int answerRecordCount;
 
     private final List<Question> questions;
     private final List<Answer> answers;
+    private final List<Answer> authorities;
+    // additional records other than OPT
+    private final List<Answer> additionals;
+    // UDP payload size from the OPT record, 0 when the message has none
+    private final int ednsPayloadSize;
 
     DNSMessage(Builder builder) {
 
         this.transactionId = builder.transactionId;
         this.queryIndicator = builder.queryIndicator;
         this.opCode = builder.opCode;
+        this.authoritativeAnswer = builder.authoritativeAnswer;
+        this.truncated = builder.truncated;
         this.recursionDesired = builder.recursionDesired;
+        this.responseCode = builder.responseCode;
         this.questionCount = builder.questionCount;
         this.answerRecordCount = builder.answerRecordCount;
         this.questions = builder.questions;
         this.answers = builder.answers;
+        this.authorities = builder.authorities;
+        this.additionals = builder.additionals;
+        this.ednsPayloadSize = builder.ednsPayloadSize;
     }
 
     public short getTransactionId() {
@@ -39,11 +53,26 @@ public class DNSMessage {
         return opCode;
     }
 
+    public boolean isAuthoritativeAnswer() {
+
+        return authoritativeAnswer;
+    }
+
+    public boolean isTruncated() {
+
+        return truncated;
+    }
+
     public boolean isRecursionDesired() {
 
         return recursionDesired;
     }
 
+    public byte getResponseCode() {
+
+        return responseCode;
+    }
+
     public int getQuestionCount() {
 
         return questionCount;
@@ -64,15 +93,60 @@ public class DNSMessage {
         return answers;
     }
 
+    public List<Answer> getAuthorities() {
+
+        return authorities;
+    }
+
+    public List<Answer> getAdditionals() {
+
+        return additionals;
+    }
+
+    public int getEdnsPayloadSize() {
+
+        return ednsPayloadSize;
+    }
+
+    public boolean hasEdns() {
+
+        return ednsPayloadSize > 0;
+    }
+
+    public Builder toBuilder() {
+
+        return new Builder()
+                .transactionId(transactionId)
+                .queryIndicator(queryIndicator)
+                .opCode(opCode)
+                .authoritativeAnswer(authoritativeAnswer)
+                .truncated(truncated)
+                .recursionDesired(recursionDesired)
+                .responseCode(responseCode)
+                .questionCount(questionCount)
+                .answerRecordCount(answerRecordCount)
+                .questions(questions)
+                .answers(answers)
+                .authorities(authorities)
+                .additionals(additionals)
+                .ednsPayloadSize(ednsPayloadSize);
+    }
+
     public static class Builder {
         private short transactionId;
         private boolean queryIndicator;
         private byte opCode;
+        private boolean authoritativeAnswer;
+        private boolean truncated;
         private boolean recursionDesired;
+        private byte responseCode;
         private int questionCount;
         private int answerRecordCount;
         private List<Question> questions;
         private List<Answer> answers;
+        private List<Answer> authorities = List.of();
+        private List<Answer> additionals = List.of();
+        private int ednsPayloadSize;
         
         public Builder transactionId(short transactionId) {
             this.transactionId = transactionId;
@@ -90,12 +164,30 @@ public class DNSMessage {
             return this;
         }
 
+        public Builder authoritativeAnswer(boolean authoritativeAnswer) {
+
+            this.authoritativeAnswer = authoritativeAnswer;
+            return this;
+        }
+
+        public Builder truncated(boolean truncated) {
+
+            this.truncated = truncated;
+            return this;
+        }
+
         public Builder recursionDesired(boolean recursionDesired) {
 
             this.recursionDesired = recursionDesired;
             return this;
         }
 
+        public Builder responseCode(byte responseCode) {
+
+            this.responseCode = responseCode;
+            return this;
+        }
+
         public Builder questionCount(int questionCount) {
 
             this.questionCount = questionCount;
@@ -118,6 +210,22 @@ public class DNSMessage {
             return this;
         }
 
+        public Builder authorities(List<Answer> authorities) {
+            this.authorities = authorities;
+            return this;
+        }
+
+        public Builder additionals(List<Answer> additionals) {
+            this.additionals = additionals;
+            return this;
+        }
+
+        public Builder ednsPayloadSize(int ednsPayloadSize) {
+
+            this.ednsPayloadSize = ednsPayloadSize;
+            return this;
+        }
+
         public DNSMessage build() {
             return new DNSMessage(this);
         }
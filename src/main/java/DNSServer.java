@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+public class DNSServer implements AutoCloseable {
+
+    public enum Transport {
+        // blocking DatagramSocket, one receive and one send call per datagram
+        SOCKET,
+        // non-blocking DatagramChannel with direct buffers, datagrams and responses handled in batches
+        NIO
+    }
+
+    private static final int SHUTDOWN_GRACE_SECONDS = 5;
+    // how often receivers wake up to notice a shutdown
+    private static final int RECEIVE_POLL_MILLIS = 500;
+
+    private final RequestHandler handler;
+    private final int port;
+    private final int socketCount;
+    private final ThreadPoolExecutor workers;
+    // null when TCP is disabled
+    private final TcpListener tcpListener;
+    // null when UDP clients are not rate limited, replaced on reload
+    private volatile RateLimiter rateLimiter;
+    private final Transport transport;
+    // packet memory of the NIO transport
+    private final BufferPool bufferPool;
+
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private final List<BatchedDatagramChannel> channels = new ArrayList<>();
+    private final List<Thread> receivers = new ArrayList<>();
+    private volatile boolean running;
+
+    public DNSServer(RequestHandler handler, int port, int socketCount, int workerCount, int queueSize,
+                     int maxTcpConnections, int tcpIdleTimeoutMillis, RateLimiter rateLimiter, Transport transport,
+                     BufferPool bufferPool) {
+
+        this.handler = handler;
+        this.rateLimiter = rateLimiter;
+        this.transport = transport;
+        this.bufferPool = bufferPool;
+        this.port = port;
+        this.socketCount = socketCount;
+        // a bounded queue in front of the workers, requests that do not fit are shed with SERVFAIL
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                Thread.ofVirtual().name("dns-worker-", 0).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        // TCP queries share the workers, so both transports are bounded by the same queue
+        this.tcpListener = maxTcpConnections > 0
+                ? new TcpListener(handler, workers, port, maxTcpConnections, tcpIdleTimeoutMillis)
+                : null;
+    }
+
+    // a request and its response for every worker and queued request, so the pool only allocates once
+    // responses pile up waiting to be sent
+    public static BufferPool newBufferPool(int workerCount, int queueSize) {
+
+        return new BufferPool(2 * (workerCount + queueSize), DNSUtils.MAX_EDNS_PAYLOAD);
+    }
+
+    // the new limits start with full buckets, null turns rate limiting off
+    public void setRateLimiter(RateLimiter rateLimiter) {
+
+        this.rateLimiter = rateLimiter;
+    }
+
+    RateLimiter rateLimiter() {
+
+        return rateLimiter;
+    }
+
+    public void start() throws IOException {
+
+        running = true;
+        for (int i = 0; i < socketCount; i++) {
+            Runnable loop;
+            if (transport == Transport.NIO) {
+                BatchedDatagramChannel channel = BatchedDatagramChannel.open(port, socketCount > 1, bufferPool, handler.metrics());
+                channels.add(channel);
+                loop = () -> receiveLoop(channel);
+            } else {
+                DatagramSocket socket = bindSocket();
+                sockets.add(socket);
+                loop = () -> receiveLoop(socket);
+            }
+
+            Thread receiver = Thread.ofPlatform()
+                    .name("dns-receiver-" + i)
+                    .start(loop);
+            receivers.add(receiver);
+        }
+        System.out.println("Listening on UDP port " + port + " with " + socketCount + " socket(s) using the "
+                + transport.name().toLowerCase() + " transport");
+
+        if (tcpListener != null) {
+            tcpListener.start();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+
+        for (Thread receiver : receivers) {
+            receiver.join();
+        }
+    }
+
+    private DatagramSocket bindSocket() throws IOException {
+
+        DatagramSocket socket = new DatagramSocket(null);
+        if (socketCount > 1) {
+            if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                socket.close();
+                throw new IOException("SO_REUSEPORT is not supported, cannot bind " + socketCount + " sockets");
+            }
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        socket.bind(new InetSocketAddress(port));
+        socket.setSoTimeout(RECEIVE_POLL_MILLIS);
+        return socket;
+    }
+
+    private void receiveLoop(DatagramSocket socket) {
+
+        final byte[] receiveBuf = new byte[DNSUtils.MAX_EDNS_PAYLOAD];
+        final BiConsumer<byte[], SocketAddress> sender = (response, client) -> send(socket, response, client);
+        while (running) {
+            final DatagramPacket packet = new DatagramPacket(receiveBuf, receiveBuf.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+                continue;
+            }
+
+            if (packet.getLength() < DNSCodec.HEADER_LENGTH) {
+                continue;
+            }
+            SocketAddress client = packet.getSocketAddress();
+            // over the limit queries are dropped before they cost a copy or a worker
+            if (!allowQuery(client)) {
+                continue;
+            }
+            // the worker gets exactly the datagram, the receive buffer is reused for the next one
+            dispatch(Arrays.copyOf(receiveBuf, packet.getLength()), client, sender);
+        }
+    }
+
+    private void receiveLoop(BatchedDatagramChannel channel) {
+
+        final BatchedDatagramChannel.DatagramHandler onDatagram = (datagram, client) -> {
+            if (datagram.remaining() < DNSCodec.HEADER_LENGTH || !allowQuery(client)) {
+                bufferPool.release(datagram);
+                return;
+            }
+            dispatch(datagram, client, channel);
+        };
+        while (running) {
+            try {
+                channel.poll(RECEIVE_POLL_MILLIS, onDatagram);
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean allowQuery(SocketAddress client) {
+
+        RateLimiter limiter = rateLimiter;
+        return limiter == null || limiter.allowQuery(client);
+    }
+
+    private void dispatch(byte[] buf, SocketAddress client, BiConsumer<byte[], SocketAddress> sender) {
+
+        try {
+            workers.execute(() -> handle(buf, client, sender));
+        } catch (RejectedExecutionException e) {
+            // queue is full or we are shutting down, answer right away instead of making the client time out
+            sender.accept(DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE), client);
+        }
+    }
+
+    private void handle(byte[] buf, SocketAddress client, BiConsumer<byte[], SocketAddress> sender) {
+
+        byte[] bufResponse;
+        try {
+            bufResponse = handler.handle(buf, client);
+        } catch (RuntimeException e) {
+            System.out.println("Could not handle request: " + e);
+            bufResponse = DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE);
+        }
+
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            RateLimiter.Verdict verdict = limiter.checkResponse(client, bufResponse);
+            if (verdict == RateLimiter.Verdict.DROP) {
+                return;
+            } else if (verdict == RateLimiter.Verdict.SLIP) {
+                bufResponse = DNSUtils.truncatedResponse(bufResponse);
+            }
+        }
+        sender.accept(bufResponse, client);
+    }
+
+    // the pooled counterpart of the byte array path, the request buffer is released once handled and
+    // the response buffer once sent
+    private void dispatch(ByteBuffer buf, SocketAddress client, BatchedDatagramChannel channel) {
+
+        try {
+            workers.execute(() -> handle(buf, client, channel));
+        } catch (RejectedExecutionException e) {
+            ByteBuffer response = bufferPool.acquire();
+            DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE, response);
+            bufferPool.release(buf);
+            channel.send(response, client);
+        }
+    }
+
+    private void handle(ByteBuffer buf, SocketAddress client, BatchedDatagramChannel channel) {
+
+        ByteBuffer response = bufferPool.acquire();
+        try {
+            handler.handle(buf, response, client);
+        } catch (RuntimeException e) {
+            System.out.println("Could not handle request: " + e);
+            DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE, response);
+        } finally {
+            bufferPool.release(buf);
+        }
+
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            RateLimiter.Verdict verdict = limiter.checkResponse(client, response);
+            if (verdict == RateLimiter.Verdict.DROP) {
+                bufferPool.release(response);
+                return;
+            } else if (verdict == RateLimiter.Verdict.SLIP) {
+                DNSUtils.truncateResponse(response);
+            }
+        }
+        channel.send(response, client);
+    }
+
+    private void send(DatagramSocket socket, byte[] bufResponse, SocketAddress client) {
+
+        try {
+            socket.send(new DatagramPacket(bufResponse, bufResponse.length, client));
+        } catch (IOException e) {
+            handler.metrics().recordUdpSendDropped(true);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        // stop accepting new requests, let the queued ones finish and only then close the sockets they reply on
+        running = false;
+        try {
+            awaitTermination();
+            workers.shutdown();
+            if (!workers.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("Dropping " + workers.shutdownNow().size() + " queued requests on shutdown");
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            sockets.forEach(DatagramSocket::close);
+            channels.forEach(BatchedDatagramChannel::close);
+            if (tcpListener != null) {
+                tcpListener.close();
+            }
+        }
+    }
+}
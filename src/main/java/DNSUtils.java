@@ -1,11 +1,28 @@
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 public class DNSUtils {
 
+    public static final byte RCODE_NO_ERROR = 0;
+    public static final byte RCODE_FORMAT_ERROR = 1;
+    public static final byte RCODE_SERVER_FAILURE = 2;
+    public static final byte RCODE_NAME_ERROR = 3;
+    public static final byte RCODE_NOT_IMPLEMENTED = 4;
+    public static final byte RCODE_REFUSED = 5;
+
+    public static final int MAX_UDP_LENGTH = 512;
+    // what we advertise and accept over UDP with EDNS(0), larger payloads fragment too often to be worth it
+    public static final int MAX_EDNS_PAYLOAD = 4096;
+    // a TCP message is preceded by a two octet length
+    public static final int MAX_TCP_LENGTH = 65535;
+
+    private static final int MAX_PACKET_LENGTH = MAX_EDNS_PAYLOAD;
+
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_PACKET_LENGTH));
+
     public static DNSMessage echoMessage(DNSMessage message) {
 
         List<Answer> answers = message.getQuestions().stream()
@@ -18,6 +35,7 @@ public class DNSUtils {
                 .queryIndicator(true)
                 .opCode(message.getOpCode())
                 .recursionDesired(message.isRecursionDesired())
+                .responseCode(defaultResponseCode(message))
                 .questionCount(message.getQuestionCount())
                 .answerRecordCount(message.getQuestionCount())
                 .questions(message.getQuestions())
@@ -25,351 +43,150 @@ public class DNSUtils {
                 .build();
     }
 
-    public static DNSMessage parsePacket(byte[] arr) {
-
-        // transaction id
-        int transactionId = arr[0] & 0xFF;
-        transactionId = (transactionId << 8) + (arr[1] & 0xFF);
-
-        // header flags and codes
-        byte headers1 = arr[2];
-        boolean queryIndicator = ((headers1 & 0b10000000) >> 7) == 1;
-        byte opCode = (byte) ((headers1 & 0b01111000) >> 3);
-        boolean recursionDesired = ((headers1 & 0b00000001) == 1);
-
-        // number of questions
-        int numQuestions = arr[4] & 0xFF;
-        numQuestions = (numQuestions << 8) + (arr[5] & 0xFF);
-
-        // number of answers
-        int numAnswers = arr[6] & 0xFF;
-        numAnswers = (numAnswers << 8) + (arr[7] & 0xFF);
-
-        // questions
-        List<Question> questions = parseQuestions(arr, numQuestions);
-
-        // answers
-        int questionOffset = getQuestionOffset(questions);
-        List<Answer> answers = parseAnswers(arr, numAnswers, questionOffset);
+    public static DNSMessage emptyResponse(DNSMessage request, byte responseCode) {
 
         return new DNSMessage.Builder()
-                .transactionId((short) transactionId)
-                .queryIndicator(queryIndicator)
-                .opCode(opCode)
-                .recursionDesired(recursionDesired)
-                .questionCount(numQuestions)
-                .answerRecordCount(numAnswers)
-                .questions(questions)
-                .answers(answers)
+                .transactionId(request.getTransactionId())
+                .queryIndicator(true)
+                .opCode(request.getOpCode())
+                .recursionDesired(request.isRecursionDesired())
+                .responseCode(responseCode)
+                .questionCount(request.getQuestionCount())
+                .answerRecordCount(0)
+                .questions(request.getQuestions())
+                .answers(List.of())
                 .build();
     }
 
-    private static List<Answer> parseAnswers(byte[] arr, int numAnswers, int questionOffset) {
+    public static DNSMessage truncatedResponse(DNSMessage response) {
 
-        List<Answer> answers = new ArrayList<>();
+        // keep the header, the questions and the OPT record, the client is expected to retry over TCP
+        return response.toBuilder()
+                .truncated(true)
+                .answerRecordCount(0)
+                .answers(List.of())
+                .authorities(List.of())
+                .additionals(List.of())
+                .build();
+    }
 
-        int start = 13 + questionOffset;
-        for (int i = 0; i < numAnswers; i++) {
-            Answer answer = parseAnswer(arr, start, false);
-            answers.add(answer);
-            start += (answer.realLength()) + 1;
-        }
+    // same as truncatedResponse on an encoded response, for answers that are slipped rather than dropped
+    public static byte[] truncatedResponse(byte[] response) {
 
-        return answers;
+        ByteBuffer truncated = ByteBuffer.wrap(response.clone());
+        truncateResponse(truncated);
+        return Arrays.copyOf(truncated.array(), truncated.limit());
     }
 
-    private static List<Question> parseQuestions(byte[] arr, int numQuestions) {
+    // truncatedResponse in place, response holds its message from 0 to the limit; the OPT record moves up
+    // to right after the questions
+    public static void truncateResponse(ByteBuffer response) {
 
-        List<Question> questions = new ArrayList<>();
-        int start = 12;
-        for (int i = 0; i < numQuestions; i++) {
-            Question question = parseQuestion(arr, start);
-            questions.add(question);
-            start += (question.realLength()) + 1;
-        }
-
-        return questions;
-    }
+        int questionEnd = Math.max(DNSCodec.questionSectionEnd(response), DNSCodec.HEADER_LENGTH);
+        int optStart = questionEnd == DNSCodec.HEADER_LENGTH ? -1 : DNSCodec.optRecordStart(response, questionEnd);
+        int optLength = optStart < 0 ? 0 : DNSCodec.recordEnd(response, optStart) - optStart;
 
-//    public static Answer parseAnswer(byte[] arr, int start) {
-//
-//        StringBuilder domain = new StringBuilder();
-//
-//        List<String> questions = parseQuestions(arr, 1);
-//        int start = 12 + questions.getFirst().length() + 6;
-//
-//        int wordLength = arr[start];
-//        int currentIndex = start + 1;
-//
-//        while (true) {
-//            byte[] wordBytes = new byte[wordLength];
-//            System.arraycopy(arr, currentIndex, wordBytes, 0, wordLength);
-//
-//            String word = new String(wordBytes, StandardCharsets.US_ASCII);
-//            domain.append(word);
-//            currentIndex += wordLength;
-//
-//            int currentByte = arr[currentIndex];
-//            if (currentByte == 0) {
-//                break;
-//            } else {
-//                wordLength = arr[currentIndex];
-//                currentIndex++;
-//                domain.append(".");
-//            }
-//        }
-//
-//        // skip TYPE + CLASS - hardcoded to type A + class IN
-//        currentIndex += 5;
-//
-//        // TTL has the next 4 bytes
-//        byte[] ttl = new byte[4];
-//        System.arraycopy(arr, currentIndex, ttl, 0, 4);
-//
-//        // move 6 bytes forward - 4 for the TTL and 2 for hardcoded RDLENGTH
-//        currentIndex += 6;
-//        byte[] ip = new byte[4];
-//        System.arraycopy(arr, currentIndex, ip, 0, 4);
-//
-//        return new Answer(domain.toString(), ttl, ip);
-//    }
-
-    private static Answer parseAnswer(byte[] arr, int start, boolean recursive) {
-
-        StringBuilder domain = new StringBuilder();
-
-        int currentIndex = start;
-        int answerLength = 0;
-
-        if (hasPointer(arr[currentIndex])) {
-            Answer pointerDomain = parseAnswer(arr, getPointer(arr[currentIndex], arr[currentIndex + 1]), true);
-            domain.append(pointerDomain.resource());
-            // add pointer octets to question length
-            answerLength += 2;
-        } else {
-            byte wordLength = arr[start];
-            currentIndex++;
-
-            while (true) {
-                byte[] wordBytes = new byte[wordLength];
-                System.arraycopy(arr, currentIndex, wordBytes, 0, wordLength);
-
-                String word = new String(wordBytes, StandardCharsets.US_ASCII);
-                domain.append(word);
-                answerLength += word.length();
-                currentIndex += wordLength;
-
-                byte currentByte = arr[currentIndex];
-                if (currentByte == 0) {
-                    // add null length octet, 2 type bytes, 2 class bytes
-                    // 4 ttl bytes, 2 rdlength bytes and 4 rdata bytes (assumes it's always ip)
-                    answerLength += 15;
-                    break;
-                } else if (hasPointer(currentByte)) {
-                    domain.append(".");
-                    Answer pointerDomain = parseAnswer(arr, getPointer(currentByte, arr[currentIndex + 1]), true);
-                    domain.append(pointerDomain.resource());
-                    // add pointer octets to question length
-                    answerLength += 2;
-                    break;
-                } else {
-                    domain.append(".");
-                    answerLength++;
-                    wordLength = currentByte;
-                    currentIndex++;
-                }
-            }
+        response.put(2, (byte) (response.get(2) | 0b00000010));
+        if (questionEnd == DNSCodec.HEADER_LENGTH) {
+            response.putShort(4, (short) 0);
         }
-
-        if (recursive) {
-            return Answer.defaultAnswer(domain.toString());
+        // no answer or authority records, the OPT record is the only additional one left
+        for (int i = 6; i < DNSCodec.HEADER_LENGTH; i++) {
+            response.put(i, (byte) 0);
         }
-
-        // skip TYPE + CLASS - hardcoded to type A + class IN
-        currentIndex += 5;
-
-        // TTL has the next 4 bytes
-        byte[] ttl = new byte[4];
-        System.arraycopy(arr, currentIndex, ttl, 0, 4);
-
-        // move 6 bytes forward - 4 for the TTL and 2 for hardcoded RDLENGTH
-        currentIndex += 6;
-        byte[] ip = new byte[4];
-        System.arraycopy(arr, currentIndex, ip, 0, 4);
-
-        return new Answer(domain.toString(), answerLength, ttl, ip);
-    }
-
-    private static Question parseQuestion(byte[] arr, int start) {
-
-        StringBuilder domain = new StringBuilder();
-
-        int currentIndex = start + 1;
-        byte wordLength = arr[start];
-        int questionLength = 0;
-
-        while (true) {
-            byte[] wordBytes = new byte[wordLength];
-            System.arraycopy(arr, currentIndex, wordBytes, 0, wordLength);
-
-            String word = new String(wordBytes, StandardCharsets.US_ASCII);
-            domain.append(word);
-            questionLength += word.length();
-            currentIndex += wordLength;
-
-            byte currentByte = arr[currentIndex];
-            if (currentByte == 0) {
-                // add null length octet and 4 type / class octets
-                questionLength += 5;
-                break;
-            } else if (hasPointer(currentByte)) {
-                domain.append(".");
-                Question pointerDomain = parseQuestion(arr, getPointer(currentByte, arr[currentIndex + 1]));
-                domain.append(pointerDomain.question());
-                // add pointer octet to question length
-                questionLength += 2;
-                break;
-            } else {
-                domain.append(".");
-                questionLength++;
-                wordLength = currentByte;
-                currentIndex++;
-            }
+        if (optLength > 0) {
+            response.put(questionEnd, response, optStart, optLength);
+            response.putShort(10, (short) 1);
         }
-
-        return new Question(domain.toString(), questionLength);
+        response.position(0).limit(questionEnd + optLength);
     }
 
-    private static boolean hasPointer(byte octet) {
+    public static int udpPayloadLimit(DNSMessage request) {
 
-        return ((octet >> 6) & 0b11) == 3;
+        // without EDNS(0) the client can only take the classic 512 bytes
+        return request.hasEdns() ? Math.min(request.getEdnsPayloadSize(), MAX_EDNS_PAYLOAD) : MAX_UDP_LENGTH;
     }
 
-    private static int getPointer(byte firstByte, byte secondByte) {
+    public static byte defaultResponseCode(DNSMessage request) {
 
-        int pointer = firstByte  & 0b00111111;
-        return (pointer << 8) + (secondByte & 0xFF);
+        // only standard queries are supported
+        return request.getOpCode() == 0 ? RCODE_NO_ERROR : RCODE_NOT_IMPLEMENTED;
     }
 
-    private static int getQuestionOffset(List<Question> questions) {
+    public static byte[] errorResponse(byte[] request, byte responseCode) {
 
-        return questions.stream()
-                .map(Question::realLength)
-                .mapToInt(Integer::intValue)
-                .sum();
+        // header only response, cheap enough to build on the receive path when shedding load
+        byte[] response = new byte[DNSCodec.HEADER_LENGTH];
+        errorResponse(ByteBuffer.wrap(request), responseCode, ByteBuffer.wrap(response));
+        return response;
     }
 
-    public static byte[] dnsMessageToByteArray(DNSMessage message) {
+    // writes the response to out from 0, out is left holding exactly the response
+    public static void errorResponse(ByteBuffer request, byte responseCode, ByteBuffer out) {
 
-        byte[] response = new byte[512];
+        out.clear();
 
         // transaction ID
-        response[0] = (byte) (message.getTransactionId() >> 8);
-        response[1] = (byte) (message.getTransactionId() & 0xFF);
+        out.put(request.get(0));
+        out.put(request.get(1));
 
-        // flags
-        response[2] = getFirstHeaderAsByte(message);
-        response[3] = getSecondHeaderAsByte(message);
+        // QR set, keep OPCODE and RD from the request, clear AA and TC
+        out.put((byte) (0b10000000 | (request.get(2) & 0b01111001)));
+        out.put((byte) (responseCode & 0b00001111));
 
-        // question count
-        response[5] = (byte) message.getQuestionCount();
-
-        // answer count
-        response[7] = (byte) message.getAnswerRecordCount();
-
-        try {
-            // questions
-            byte[] questionSection = getQuestionSectionAsBytes(message);
-            System.arraycopy(questionSection, 0, response, 12, questionSection.length);
-
-            // answers
-            byte[] answerSection = getAnswerSectionAsBytes(message);
-            System.arraycopy(answerSection, 0, response, 12 + questionSection.length, answerSection.length);
-
-        } catch (IOException e) {
-            System.out.printf("Could not write question to response: %s%n", e.getMessage());
-        }
-
-        return response;
+        // no records
+        out.putLong(0);
+        out.flip();
     }
 
-    private static byte getFirstHeaderAsByte(DNSMessage message) {
-
-        StringBuilder sb = new StringBuilder();
-
-        // QR - true
-        sb.append(message.isResponse() ? "1" : "0");
-
-        // OPCODE
-        String opCodeBinary = String.format("%4s", Integer.toBinaryString(message.getOpCode())).replace(' ', '0');
-        sb.append(opCodeBinary);
-
-        // AA + TC
-        sb.append("00");
-
-        // RD
-        sb.append(message.isRecursionDesired() ? "1" : "0");
+    public static DNSMessage parsePacket(byte[] arr) {
 
-        return Integer.valueOf(sb.toString(), 2).byteValue();
+        return DNSCodec.decode(ByteBuffer.wrap(arr));
     }
 
-    private static byte getSecondHeaderAsByte(DNSMessage message) {
-
-        // RA + Z + AD + CD
-
-        String sb = "0000"
-
-                // RCODE
-                + (message.getOpCode() == 0 ? "0000" : "0100");
+    public static byte[] dnsMessageToByteArray(DNSMessage message) {
 
-        return Integer.valueOf(sb, 2).byteValue();
+        return dnsMessageToByteArray(message, MAX_UDP_LENGTH);
     }
 
-    private static byte[] getQuestionSectionAsBytes(DNSMessage message) throws IOException {
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-        for (Question question : message.getQuestions()) {
-            String[] words = question.question().split("\\.");
+    public static byte[] dnsMessageToByteArray(DNSMessage message, int maxLength) {
 
-            for (String word : words) {
-                bos.write((byte) word.length());
-                bos.write(word.getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer buf = ENCODE_BUFFER.get().clear().limit(Math.min(maxLength, MAX_PACKET_LENGTH));
+        int length;
+        try {
+            length = DNSCodec.encode(message, buf);
+        } catch (BufferOverflowException e) {
+            if (maxLength <= MAX_PACKET_LENGTH) {
+                length = DNSCodec.encode(truncatedResponse(message), buf.clear().limit(maxLength));
+            } else {
+                // the rare large TCP response gets a buffer of its own instead of growing every thread's
+                buf = ByteBuffer.allocate(maxLength);
+                length = encodeOrTruncate(message, buf);
             }
-            bos.write((byte) 0);
-
-            // hardcode to RR type A, class IN
-            bos.write(new byte[]{0, 1, 0, 1});
         }
 
-        return bos.toByteArray();
+        // only the bytes actually written, padding to 512 just wastes bandwidth
+        byte[] response = new byte[length];
+        buf.get(0, response, 0, length);
+        return response;
     }
 
-    private static byte[] getAnswerSectionAsBytes(DNSMessage message) throws IOException {
+    // encodes into out from 0 and leaves it holding exactly the message, truncated with TC set when it
+    // does not fit maxLength or out
+    public static void encode(DNSMessage message, int maxLength, ByteBuffer out) {
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-        for (Answer answer : message.getAnswers()) {
-            String[] words = answer.resource().split("\\.");
-
-            for (String word : words) {
-                bos.write((byte) word.length());
-                bos.write(word.getBytes(StandardCharsets.US_ASCII));
-            }
-            bos.write((byte) 0);
-
-            // hardcode to RR type A, class IN
-            bos.write(new byte[]{0, 1, 0, 1});
-
-            bos.write(answer.ttl());
+        int limit = Math.min(maxLength, out.capacity());
+        encodeOrTruncate(message, out.clear().limit(limit));
+        out.flip();
+    }
 
-            // hardcode length to 4
-            bos.write(new byte[]{0, 4});
+    private static int encodeOrTruncate(DNSMessage message, ByteBuffer buf) {
 
-            bos.write(answer.ip());
+        try {
+            return DNSCodec.encode(message, buf);
+        } catch (BufferOverflowException e) {
+            return DNSCodec.encode(truncatedResponse(message), buf.clear());
         }
-
-        return bos.toByteArray();
     }
 
 }
@@ -0,0 +1,73 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// lock-free log-linear histogram in the spirit of HdrHistogram, two buckets per power of two
+// from 256ns up to ~34s, recording is one LongAdder increment per bucket and sum
+public class LatencyHistogram {
+
+    private static final int MIN_EXPONENT = 8;
+    private static final int MAX_EXPONENT = 35;
+    private static final int SUB_BUCKET_BITS = 1;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // everything below 2^MIN_EXPONENT, the log-linear buckets, everything from 2^MAX_EXPONENT up
+    static final int BUCKETS = 1 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 1;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+
+        counts[bucketIndex(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    static int bucketIndex(long nanos) {
+
+        if (nanos < 1L << MIN_EXPONENT) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        // the bits right after the leading one pick the linear sub-bucket
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    // where bucket index ends in nanoseconds, Long.MAX_VALUE for the last one
+    static long upperBoundNanos(int index) {
+
+        if (index == 0) {
+            return 1L << MIN_EXPONENT;
+        }
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = MIN_EXPONENT + (index - 1) / SUB_BUCKETS;
+        int subBucket = (index - 1) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    // Prometheus histogram in seconds, labels is either empty or a comma terminated label list
+    void writeTo(StringBuilder out, String name, String labels) {
+
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            cumulative += counts[i].sum();
+            out.append(name).append("_bucket{").append(labels).append("le=\"")
+                    .append(upperBoundNanos(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts[BUCKETS - 1].sum();
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String labelSet = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(labelSet).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(labelSet).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -1,69 +1,168 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.List;
 
 public class Main {
 
+    private static final int CACHE_SEGMENTS = 64;
+    private static final int QUERY_LOG_CAPACITY = 64 * 1024;
+
     public static void main(String[] args) {
 
-        int forwardingPort = 53;
-        String forwardingAddress = "localhost";
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(args);
+        } catch (IOException e) {
+            System.out.println("Could not read the configuration: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            usageError(e.getMessage());
+            return;
+        }
+        Metrics metrics = new Metrics();
 
-        if (args.length != 0) {
-            String argument = args[0];
-            if (!(argument == null) && argument.equals("--resolver")) {
-                System.out.println("Need to forward to address: " + args[1]);
-                String[] splitArgs = args[1].split(":");
-                forwardingPort = Integer.parseInt(splitArgs[1]);
-                forwardingAddress = splitArgs[0];
+        DNSForwarder forwarder = null;
+        AnswerCache cache = null;
+        if (config.shouldForward()) {
+            System.out.println("Need to forward to addresses: " + config.resolvers());
+            try {
+                List<Upstream> upstreams = config.resolverAddresses().stream()
+                        .map(address -> new Upstream(address, System::currentTimeMillis))
+                        .toList();
+                cache = config.cacheMaxBytes() > 0
+                        ? new AnswerCache(config.cacheMaxBytes(), CACHE_SEGMENTS, config.prefetchFraction(),
+                                config.prefetchMinHits(), config.staleWindowMillis(), System::currentTimeMillis)
+                        : null;
+
+                UpstreamPool pool = new UpstreamPool(config.upstreamSocketCount(),
+                        config.upstreamTimeoutMillis(),
+                        config.upstreamRetransmits());
+                forwarder = new DNSForwarder(new UpstreamSelector(upstreams, System::currentTimeMillis),
+                        pool,
+                        config.upstreamTimeoutMillis(),
+                        config.hedging(),
+                        config.maxInFlightUpstream(),
+                        cache,
+                        metrics,
+                        config.maxPrefetches(),
+                        config.staleAnswerTimeoutMillis());
+            } catch (IOException e) {
+                System.out.println("Could not set up forwarding: " + e.getMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                usageError(e.getMessage());
+                return;
             }
         } else {
             System.out.println("No need to forward, will echo request");
         }
 
-        try (DatagramSocket serverSocket = new DatagramSocket(2053)) {
-            while (true) {
-                final byte[] buf = new byte[512];
-                final DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                serverSocket.receive(packet);
-                System.out.println("Received data: " + Arrays.toString(buf));
-
-                DNSForwarder forwarder = new DNSForwarder(InetAddress.getByName(forwardingAddress), forwardingPort);
+        CacheSnapshot cacheSnapshot = cache != null && config.cacheSnapshot() != null
+                ? CacheSnapshot.open(Path.of(config.cacheSnapshot()), cache, config.cacheSnapshotIntervalMillis())
+                : null;
 
-                DNSMessage request = DNSUtils.parsePacket(buf);
-                for (Question question : request.getQuestions()) {
-                    System.out.println("Request contains question: " + question.question());
+        ZoneStore zones = null;
+        try {
+            if (config.zoneSnapshot() != null) {
+                if (!config.zoneFiles().isEmpty()) {
+                    System.out.println("Serving the zone snapshot, ignoring zone files " + config.zoneFiles());
                 }
+                zones = ZoneStore.loadSnapshot(Path.of(config.zoneSnapshot()));
+            } else if (!config.zoneFiles().isEmpty()) {
+                zones = ZoneStore.load(config.zoneFiles().stream().map(Path::of).toList());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not load zones: " + e.getMessage());
+            return;
+        }
 
-                byte[] bufResponse;
+        QueryLog queryLog = null;
+        if (config.queryLog() != null && config.queryLogLevel() != QueryLog.Level.OFF) {
+            try {
+                queryLog = QueryLog.open(config.queryLog(), config.queryLogLevel(),
+                        config.queryLogSampleRate(), QUERY_LOG_CAPACITY);
+                metrics.trackQueryLog(queryLog::droppedCount);
+            } catch (IOException e) {
+                System.out.println("Could not open query log: " + e.getMessage());
+                return;
+            }
+        }
 
-                DNSMessage response;
-                if (!shouldForward(args)) {
-                    response = DNSUtils.echoMessage(request);
-                } else {
-                    response = forwarder.forwardMessage(request);
-                }
-                bufResponse = DNSUtils.dnsMessageToByteArray(response);
+        RateLimiter rateLimiter = config.queryRateLimit() > 0 || config.responseRateLimit() > 0
+                ? new RateLimiter(config.queryRateLimit(), config.responseRateLimit(), config.rrlSlip(), metrics)
+                : null;
 
-                final DatagramPacket packetResponse = new DatagramPacket(bufResponse, bufResponse.length,
-                        packet.getSocketAddress());
+        BufferPool bufferPool = DNSServer.newBufferPool(config.workerCount(), config.queueSize());
+        if (config.transport() == DNSServer.Transport.NIO) {
+            metrics.trackBufferPool(bufferPool);
+        }
 
-                serverSocket.send(packetResponse);
+        RequestHandler handler = new RequestHandler(forwarder, zones, config.passthrough(), metrics, queryLog);
+        DNSServer server = new DNSServer(handler,
+                config.port(),
+                config.socketCount(),
+                config.workerCount(),
+                config.queueSize(),
+                config.maxTcpConnections(),
+                config.tcpIdleTimeoutMillis(),
+                rateLimiter,
+                config.transport(),
+                bufferPool);
 
+        MetricsServer metricsServer = null;
+        try {
+            if (config.metricsPort() > 0) {
+                metricsServer = new MetricsServer(metrics, config.metricsPort());
+                metricsServer.start();
             }
+            server.start();
+            ConfigWatcher watcher = config.configFile() != null
+                    ? ConfigWatcher.start(ConfigReloader.watchedFiles(config),
+                            new ConfigReloader(args, config, forwarder, cache, handler, server, metrics))
+                    : null;
+            QueryLog log = queryLog;
+            CacheSnapshot snapshot = cacheSnapshot;
+            MetricsServer endpoint = metricsServer;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // no reloads while shutting down
+                if (watcher != null) {
+                    watcher.close();
+                }
+                server.close();
+                // after the server so answers from the last queries are kept too
+                if (snapshot != null) {
+                    snapshot.close();
+                }
+                // after the server so the last answered queries still make it to the log
+                if (log != null) {
+                    log.close();
+                }
+                // last, like on a failed start, so the final counts can still be scraped while the rest drains
+                if (endpoint != null) {
+                    endpoint.close();
+                }
+            }));
+            server.awaitTermination();
         } catch (IOException e) {
             System.out.println("IOException: " + e.getMessage());
+            server.close();
+            if (queryLog != null) {
+                queryLog.close();
+            }
+            if (cacheSnapshot != null) {
+                cacheSnapshot.close();
+            }
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public static boolean shouldForward(String[] args) {
+    private static void usageError(String message) {
 
-        if (args.length == 0) {
-            return false;
-        }
-        return args.length == 2 && args[0].equals("--resolver");
+        System.out.println("Invalid arguments: " + message);
+        System.exit(2);
     }
-
 }
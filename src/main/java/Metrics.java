@@ -0,0 +1,238 @@
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+// counters and latency histograms for the request path, rendered in the Prometheus text format on scrape
+public class Metrics {
+
+    private static final String[] RESPONSE_CODE_NAMES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"
+    };
+
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram cacheLookupTime = new LatencyHistogram();
+    private final LatencyHistogram udpRequestTime = new LatencyHistogram();
+    private final LatencyHistogram tcpRequestTime = new LatencyHistogram();
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cachePrefetches = new LongAdder();
+    private final LongAdder staleAnswers = new LongAdder();
+    private final LongAdder rateLimitedQueries = new LongAdder();
+    private final LongAdder droppedResponses = new LongAdder();
+    private final LongAdder slippedResponses = new LongAdder();
+    private final LongAdder udpSendBufferFull = new LongAdder();
+    private final LongAdder udpSendErrors = new LongAdder();
+    private final LongAdder droppedUpstreamQueries = new LongAdder();
+    private final LongAdder hedgedQueries = new LongAdder();
+    private final LongAdder tcpRetries = new LongAdder();
+    private final LongAdder[] responseCodes = new LongAdder[16];
+
+    // filled in by the forwarder, empty in echo and authoritative only mode
+    private volatile List<Upstream> upstreams = List.of();
+    private volatile IntSupplier upstreamInFlight = () -> 0;
+    private volatile UpstreamPool upstreamPool;
+    private volatile IntSupplier cacheEntries = () -> 0;
+    private volatile LongSupplier queryLogDropped = () -> 0;
+    // null with the socket transport, which does not pool its packets
+    private volatile BufferPool bufferPool;
+
+    public Metrics() {
+
+        for (int i = 0; i < responseCodes.length; i++) {
+            responseCodes[i] = new LongAdder();
+        }
+    }
+
+    public void recordParse(long nanos) {
+
+        parseTime.record(nanos);
+    }
+
+    public void recordCacheLookup(long nanos, boolean hit) {
+
+        cacheLookupTime.record(nanos);
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    public void recordPrefetch() {
+
+        cachePrefetches.increment();
+    }
+
+    public void recordStaleAnswer() {
+
+        staleAnswers.increment();
+    }
+
+    public void recordRateLimitedQuery() {
+
+        rateLimitedQueries.increment();
+    }
+
+    public void recordRateLimitedResponse(RateLimiter.Verdict verdict) {
+
+        (verdict == RateLimiter.Verdict.SLIP ? slippedResponses : droppedResponses).increment();
+    }
+
+    public void recordDroppedUpstreamQuery() {
+
+        droppedUpstreamQueries.increment();
+    }
+
+    public void recordHedgedQuery() {
+
+        hedgedQueries.increment();
+    }
+
+    public void recordTcpRetry() {
+
+        tcpRetries.increment();
+    }
+
+    // error is false when the socket buffer was full
+    public void recordUdpSendDropped(boolean error) {
+
+        (error ? udpSendErrors : udpSendBufferFull).increment();
+    }
+
+    public void recordRequest(boolean tcp, long nanos, int responseCode) {
+
+        (tcp ? tcpRequestTime : udpRequestTime).record(nanos);
+        responseCodes[responseCode & 0x0F].increment();
+    }
+
+    void trackUpstreams(List<Upstream> upstreams, IntSupplier inFlight) {
+
+        this.upstreams = upstreams;
+        this.upstreamInFlight = inFlight;
+    }
+
+    void trackUpstreamPool(UpstreamPool upstreamPool) {
+
+        this.upstreamPool = upstreamPool;
+    }
+
+    void trackCache(IntSupplier entries) {
+
+        this.cacheEntries = entries;
+    }
+
+    void trackQueryLog(LongSupplier dropped) {
+
+        this.queryLogDropped = dropped;
+    }
+
+    void trackBufferPool(BufferPool bufferPool) {
+
+        this.bufferPool = bufferPool;
+    }
+
+    public String render() {
+
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        // request rate is rate(dns_request_duration_seconds_count[1m]) on the Prometheus side
+        header(out, "dns_request_duration_seconds", "Time from receiving a query to its encoded response", "histogram");
+        udpRequestTime.writeTo(out, "dns_request_duration_seconds", "transport=\"udp\",");
+        tcpRequestTime.writeTo(out, "dns_request_duration_seconds", "transport=\"tcp\",");
+
+        header(out, "dns_parse_duration_seconds", "Time spent decoding queries", "histogram");
+        parseTime.writeTo(out, "dns_parse_duration_seconds", "");
+
+        header(out, "dns_responses_total", "Responses by response code", "counter");
+        for (int i = 0; i < responseCodes.length; i++) {
+            long count = responseCodes[i].sum();
+            if (count > 0 || i < RESPONSE_CODE_NAMES.length) {
+                String name = i < RESPONSE_CODE_NAMES.length ? RESPONSE_CODE_NAMES[i] : String.valueOf(i);
+                out.append("dns_responses_total{rcode=\"").append(name).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        header(out, "dns_rate_limited_queries_total", "UDP queries dropped by the per client rate limit", "counter");
+        out.append("dns_rate_limited_queries_total ").append(rateLimitedQueries.sum()).append('\n');
+        header(out, "dns_rate_limited_responses_total", "UDP responses held back by response rate limiting", "counter");
+        out.append("dns_rate_limited_responses_total{action=\"drop\"} ").append(droppedResponses.sum()).append('\n');
+        out.append("dns_rate_limited_responses_total{action=\"slip\"} ").append(slippedResponses.sum()).append('\n');
+
+        header(out, "dns_udp_send_dropped_total", "UDP responses that could not be sent", "counter");
+        out.append("dns_udp_send_dropped_total{reason=\"buffer_full\"} ").append(udpSendBufferFull.sum()).append('\n');
+        out.append("dns_udp_send_dropped_total{reason=\"error\"} ").append(udpSendErrors.sum()).append('\n');
+
+        header(out, "dns_cache_lookup_duration_seconds", "Time spent looking up the answer cache", "histogram");
+        cacheLookupTime.writeTo(out, "dns_cache_lookup_duration_seconds", "");
+        long hits = cacheHits.sum();
+        long misses = cacheMisses.sum();
+        header(out, "dns_cache_hits_total", "Answer cache hits", "counter");
+        out.append("dns_cache_hits_total ").append(hits).append('\n');
+        header(out, "dns_cache_misses_total", "Answer cache misses", "counter");
+        out.append("dns_cache_misses_total ").append(misses).append('\n');
+        header(out, "dns_cache_hit_ratio", "Cache hits over all lookups since start", "gauge");
+        out.append("dns_cache_hit_ratio ").append(hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)).append('\n');
+        header(out, "dns_cache_prefetches_total", "Hot cache entries refreshed before they expired", "counter");
+        out.append("dns_cache_prefetches_total ").append(cachePrefetches.sum()).append('\n');
+        header(out, "dns_cache_stale_answers_total", "Expired answers served because upstream failed or was too slow",
+                "counter");
+        out.append("dns_cache_stale_answers_total ").append(staleAnswers.sum()).append('\n');
+        header(out, "dns_cache_entries", "Entries in the answer cache", "gauge");
+        out.append("dns_cache_entries ").append(cacheEntries.getAsInt()).append('\n');
+
+        header(out, "dns_upstream_in_flight", "Upstream queries waiting for a reply", "gauge");
+        out.append("dns_upstream_in_flight ").append(upstreamInFlight.getAsInt()).append('\n');
+        header(out, "dns_upstream_rtt_seconds", "Round trip time of answered upstream queries", "histogram");
+        for (Upstream upstream : upstreams) {
+            upstream.rttHistogram().writeTo(out, "dns_upstream_rtt_seconds", resolverLabel(upstream));
+        }
+        header(out, "dns_upstream_failures_total", "Upstream queries that timed out or failed", "counter");
+        for (Upstream upstream : upstreams) {
+            String label = resolverLabel(upstream);
+            out.append("dns_upstream_failures_total{").append(label, 0, label.length() - 1).append("} ")
+                    .append(upstream.failureCount()).append('\n');
+        }
+
+        header(out, "dns_upstream_dropped_queries_total", "Upstream queries not sent because too many were in flight",
+                "counter");
+        out.append("dns_upstream_dropped_queries_total ").append(droppedUpstreamQueries.sum()).append('\n');
+        header(out, "dns_upstream_hedged_queries_total", "Queries also sent to the runner-up upstream", "counter");
+        out.append("dns_upstream_hedged_queries_total ").append(hedgedQueries.sum()).append('\n');
+        header(out, "dns_upstream_tcp_retries_total", "Truncated upstream replies asked again over TCP", "counter");
+        out.append("dns_upstream_tcp_retries_total ").append(tcpRetries.sum()).append('\n');
+        UpstreamPool upstreamPool = this.upstreamPool;
+        if (upstreamPool != null) {
+            header(out, "dns_upstream_retransmits_total", "Upstream queries sent again after no reply", "counter");
+            out.append("dns_upstream_retransmits_total ").append(upstreamPool.retransmitCount()).append('\n');
+            header(out, "dns_upstream_unmatched_replies_total",
+                    "Upstream replies dropped because they matched no outstanding query", "counter");
+            out.append("dns_upstream_unmatched_replies_total ").append(upstreamPool.unmatchedReplyCount())
+                    .append('\n');
+        }
+
+        header(out, "dns_query_log_dropped_total", "Query log entries dropped because the writer fell behind", "counter");
+        out.append("dns_query_log_dropped_total ").append(queryLogDropped.getAsLong()).append('\n');
+
+        BufferPool pool = bufferPool;
+        if (pool != null) {
+            header(out, "dns_buffer_pool_available", "Packet buffers idle in the pool", "gauge");
+            out.append("dns_buffer_pool_available ").append(pool.available()).append('\n');
+            header(out, "dns_buffer_pool_in_use", "Packet buffers held by queries and responses in flight", "gauge");
+            out.append("dns_buffer_pool_in_use ").append(pool.inUse()).append('\n');
+            header(out, "dns_buffer_pool_allocations_total", "Packet buffers allocated because the pool was empty",
+                    "counter");
+            out.append("dns_buffer_pool_allocations_total ").append(pool.allocationCount()).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static String resolverLabel(Upstream upstream) {
+
+        return "resolver=\"" + upstream.address().getHostString() + ":" + upstream.address().getPort() + "\",";
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,39 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// serves Metrics in the Prometheus text format on /metrics
+public class MetricsServer implements AutoCloseable {
+
+    private final HttpServer server;
+
+    public MetricsServer(Metrics metrics, int port) throws IOException {
+
+        // loopback only, the endpoint is meant for a local scraper and has no authentication
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+
+        server.start();
+        System.out.println("Serving metrics on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/metrics");
+    }
+
+    @Override
+    public void close() {
+
+        server.stop(0);
+    }
+}
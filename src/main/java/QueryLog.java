@@ -0,0 +1,278 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// JSON lines query log, request threads only fill a slot of a preallocated ring and a background writer
+// does the decoding, formatting and I/O, a full ring drops entries instead of making a request wait on the disk
+public class QueryLog implements AutoCloseable {
+
+    public enum Level {
+        // nothing is logged
+        OFF,
+        // only queries answered with SERVFAIL
+        ERROR,
+        // sampled queries plus every SERVFAIL
+        INFO,
+        // every query with the raw request bytes
+        DEBUG
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int WRITE_BUFFER_CHARS = 64 * 1024;
+    // requests are kept up to this many bytes, enough for the header and the question of any sane query;
+    // slots never grow, a ring of 64K slots holding TCP sized requests would pin gigabytes
+    static final int SLOT_REQUEST_BYTES = 512;
+
+    private final Level level;
+    private final double sampleRate;
+    private final Slot[] slots;
+    private final int mask;
+    private final Writer out;
+    private final Thread writer;
+
+    // next sequence a producer claims and next sequence the writer consumes
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+
+    private static final class Slot {
+
+        // sequence of the entry in this slot once it is complete, volatile so writing it publishes the fields
+        volatile long published = -1;
+        long timeMillis;
+        long durationNanos;
+        // a copy of the first bytes, the caller's buffer may be reused as soon as record returns
+        final byte[] request = new byte[SLOT_REQUEST_BYTES];
+        int copiedLength;
+        int requestLength;
+        SocketAddress client;
+        boolean tcp;
+        int responseCode;
+        int answerCount;
+        int responseLength;
+    }
+
+    public QueryLog(Writer out, Level level, double sampleRate, int capacity) {
+
+        this.out = out;
+        this.level = level;
+        this.sampleRate = sampleRate;
+        // a power of two so the slot index is a mask
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.writer = Thread.ofPlatform().name("query-log-writer").daemon().start(this::drainLoop);
+    }
+
+    // "-" logs to stdout
+    public static QueryLog open(String destination, Level level, double sampleRate, int capacity) throws IOException {
+
+        Writer writer = destination.equals("-")
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(Path.of(destination), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new QueryLog(new BufferedWriter(writer, WRITE_BUFFER_CHARS), level, sampleRate, capacity);
+    }
+
+    public long droppedCount() {
+
+        return dropped.sum();
+    }
+
+    public void record(byte[] request, SocketAddress client, boolean tcp, byte[] response, long durationNanos) {
+
+        record(ByteBuffer.wrap(request), client, tcp, ByteBuffer.wrap(response), durationNanos);
+    }
+
+    // both buffers hold their message from 0 to the limit
+    public void record(ByteBuffer request, SocketAddress client, boolean tcp, ByteBuffer response,
+                       long durationNanos) {
+
+        int responseCode = response.get(3) & 0x0F;
+        if (!shouldLog(responseCode)) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.timeMillis = System.currentTimeMillis();
+        slot.durationNanos = durationNanos;
+        int requestLength = request.limit();
+        int copiedLength = Math.min(requestLength, SLOT_REQUEST_BYTES);
+        request.get(0, slot.request, 0, copiedLength);
+        slot.copiedLength = copiedLength;
+        slot.requestLength = requestLength;
+        slot.client = client;
+        slot.tcp = tcp;
+        slot.responseCode = responseCode;
+        slot.answerCount = ((response.get(6) & 0xFF) << 8) | (response.get(7) & 0xFF);
+        slot.responseLength = response.limit();
+        slot.published = sequence;
+    }
+
+    private boolean shouldLog(int responseCode) {
+
+        return switch (level) {
+            case OFF -> false;
+            case ERROR -> responseCode == DNSUtils.RCODE_SERVER_FAILURE;
+            case INFO -> responseCode == DNSUtils.RCODE_SERVER_FAILURE
+                    || sampleRate >= 1.0
+                    || ThreadLocalRandom.current().nextDouble() < sampleRate;
+            case DEBUG -> true;
+        };
+    }
+
+    private void drainLoop() {
+
+        StringBuilder line = new StringBuilder(256);
+        boolean dirty = false;
+        while (true) {
+            long sequence = consumed;
+            Slot slot = slots[(int) (sequence & mask)];
+            if (slot.published != sequence) {
+                if (!running && sequence >= claimed.get()) {
+                    break;
+                }
+                // nothing new, a good moment to hand what we have to the disk
+                if (dirty) {
+                    dirty = !flush();
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            line.setLength(0);
+            format(slot, line);
+            slot.client = null;
+            consumed = sequence + 1;
+
+            try {
+                out.append(line);
+                dirty = true;
+            } catch (IOException e) {
+                System.out.println("Could not write query log: " + e.getMessage());
+            }
+        }
+        flush();
+    }
+
+    private boolean flush() {
+
+        try {
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not flush query log: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void format(Slot slot, StringBuilder line) {
+
+        line.append("{\"ts\":\"").append(Instant.ofEpochMilli(slot.timeMillis)).append('"');
+        if (slot.client instanceof InetSocketAddress address) {
+            line.append(",\"client\":\"").append(address.getAddress().getHostAddress())
+                    .append(':').append(address.getPort()).append('"');
+        }
+        line.append(",\"proto\":\"").append(slot.tcp ? "tcp" : "udp").append('"');
+
+        byte[] request = slot.request;
+        boolean cut = slot.copiedLength < slot.requestLength;
+        line.append(",\"id\":").append(((request[0] & 0xFF) << 8) | (request[1] & 0xFF));
+        try {
+            DNSMessage message = DNSCodec.decode(ByteBuffer.wrap(cut ? questionsOnly(request) : request,
+                    0, slot.copiedLength));
+            if (!message.getQuestions().isEmpty()) {
+                Question question = message.getQuestions().getFirst();
+                line.append(",\"name\":\"");
+                appendEscaped(line, question.question());
+                line.append("\",\"type\":").append(question.type());
+            }
+        } catch (RuntimeException e) {
+            line.append(",\"malformed\":true");
+        }
+
+        line.append(",\"rcode\":").append(slot.responseCode)
+                .append(",\"answers\":").append(slot.answerCount)
+                .append(",\"bytes\":").append(slot.responseLength)
+                .append(",\"duration_us\":").append(slot.durationNanos / 1000);
+        if (level == Level.DEBUG) {
+            line.append(",\"request\":\"").append(HexFormat.of().formatHex(request, 0, slot.copiedLength)).append('"');
+            if (cut) {
+                line.append(",\"request_bytes\":").append(slot.requestLength);
+            }
+        }
+        line.append("}\n");
+    }
+
+    // the kept prefix of a long request ends inside its records, only its questions can be decoded
+    private static byte[] questionsOnly(byte[] request) {
+
+        byte[] copy = request.clone();
+        Arrays.fill(copy, 6, DNSCodec.HEADER_LENGTH, (byte) 0);
+        return copy;
+    }
+
+    long retainedRequestBytes() {
+
+        long bytes = 0;
+        for (Slot slot : slots) {
+            bytes += slot.request.length;
+        }
+        return bytes;
+    }
+
+    private static void appendEscaped(StringBuilder line, String value) {
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7E) {
+                // names are arbitrary octets, anything outside printable ASCII is escaped
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
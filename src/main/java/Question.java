@@ -1,6 +1,11 @@
 public record Question (
         String question,
-        int realLength // total or compressed length if question is compressed
+        int realLength, // total or compressed length if question is compressed
+        int type,
+        int questionClass
 ){
 
+    public Question(String question, int realLength) {
+        this(question, realLength, RecordType.A, RecordType.CLASS_IN);
+    }
 }
@@ -0,0 +1,112 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// UDP abuse protection: a query rate per client prefix, checked before a query is queued, and response
+// rate limiting (RRL) per client prefix and answer, which stops us from being used to amplify a spoofed
+// flood; TCP is left alone as its clients cannot spoof their address
+public class RateLimiter {
+
+    public enum Verdict {
+        SEND,
+        // send a truncated empty answer so a real client retries over TCP
+        SLIP,
+        DROP
+    }
+
+    // 2^16 buckets per row, 1 MiB per table whatever the number of clients
+    private static final int SLOTS_PER_ROW = 1 << 16;
+    // a client can spend this many seconds worth of its rate at once
+    private static final int BURST_SECONDS = 2;
+    // clients are grouped by /24 for IPv4 and /56 for IPv6
+    private static final int IPV4_PREFIX_BYTES = 3;
+    private static final int IPV6_PREFIX_BYTES = 7;
+
+    // null when the respective limit is off
+    private final TokenBucketTable queries;
+    private final TokenBucketTable responses;
+    // every slip-th limited response is slipped, 0 drops them all
+    private final int slip;
+    private final Metrics metrics;
+    private final AtomicInteger limitedResponses = new AtomicInteger();
+
+    public RateLimiter(int queriesPerSecond, int responsesPerSecond, int slip, Metrics metrics) {
+
+        this(queriesPerSecond > 0 ? new TokenBucketTable(SLOTS_PER_ROW, queriesPerSecond,
+                        (long) queriesPerSecond * BURST_SECONDS) : null,
+                responsesPerSecond > 0 ? new TokenBucketTable(SLOTS_PER_ROW, responsesPerSecond,
+                        (long) responsesPerSecond * BURST_SECONDS) : null,
+                slip, metrics);
+    }
+
+    RateLimiter(TokenBucketTable queries, TokenBucketTable responses, int slip, Metrics metrics) {
+
+        this.queries = queries;
+        this.responses = responses;
+        this.slip = slip;
+        this.metrics = metrics;
+    }
+
+    public boolean allowQuery(SocketAddress client) {
+
+        if (queries == null || queries.tryAcquire(prefixHash(client))) {
+            return true;
+        }
+        metrics.recordRateLimitedQuery();
+        return false;
+    }
+
+    public Verdict checkResponse(SocketAddress client, byte[] response) {
+
+        return checkResponse(client, ByteBuffer.wrap(response));
+    }
+
+    // response holds its message from 0 to the limit
+    public Verdict checkResponse(SocketAddress client, ByteBuffer response) {
+
+        if (responses == null || responses.tryAcquire(responseHash(prefixHash(client), response))) {
+            return Verdict.SEND;
+        }
+        Verdict verdict = slip > 0 && limitedResponses.incrementAndGet() % slip == 0 ? Verdict.SLIP : Verdict.DROP;
+        metrics.recordRateLimitedResponse(verdict);
+        return verdict;
+    }
+
+    static long prefixHash(SocketAddress client) {
+
+        if (!(client instanceof InetSocketAddress socketAddress) || socketAddress.getAddress() == null) {
+            return 0;
+        }
+        InetAddress address = socketAddress.getAddress();
+        byte[] bytes = address.getAddress();
+        int prefixBytes = bytes.length == 4 ? IPV4_PREFIX_BYTES : IPV6_PREFIX_BYTES;
+        long hash = bytes.length;
+        for (int i = 0; i < prefixBytes; i++) {
+            hash = (hash << 8) | (bytes[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    // the question name and type plus the kind of answer, NXDOMAIN answers for random names all share
+    // one key per prefix as they would never hit a limit otherwise
+    static long responseHash(long prefixHash, ByteBuffer response) {
+
+        int responseCode = response.get(3) & 0x0F;
+        long hash = prefixHash * 31 + responseCode;
+        if (responseCode == DNSUtils.RCODE_NAME_ERROR) {
+            return hash;
+        }
+        int questionEnd = DNSCodec.questionSectionEnd(response);
+        for (int i = DNSCodec.HEADER_LENGTH; i < questionEnd; i++) {
+            int b = response.get(i) & 0xFF;
+            // names compare case-insensitively
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            hash = hash * 31 + b;
+        }
+        return hash;
+    }
+}
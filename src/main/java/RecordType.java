@@ -0,0 +1,42 @@
+public final class RecordType {
+
+    public static final int A = 1;
+    public static final int NS = 2;
+    public static final int CNAME = 5;
+    public static final int SOA = 6;
+    public static final int PTR = 12;
+    public static final int MX = 15;
+    public static final int TXT = 16;
+    public static final int AAAA = 28;
+    // EDNS(0) pseudo record, only ever in the additional section
+    public static final int OPT = 41;
+    public static final int ANY = 255;
+
+    public static final int CLASS_IN = 1;
+
+    private RecordType() {
+    }
+
+    // -1 for mnemonics we do not know
+    public static int fromName(String name) {
+
+        return switch (name.toUpperCase()) {
+            case "A" -> A;
+            case "NS" -> NS;
+            case "CNAME" -> CNAME;
+            case "SOA" -> SOA;
+            case "PTR" -> PTR;
+            case "MX" -> MX;
+            case "TXT" -> TXT;
+            case "AAAA" -> AAAA;
+            case "ANY" -> ANY;
+            default -> -1;
+        };
+    }
+
+    // types whose RDATA holds domain names, which upstream may have compressed against its own message
+    public static boolean hasNamesInRdata(int type) {
+
+        return type == NS || type == CNAME || type == SOA || type == PTR || type == MX;
+    }
+}
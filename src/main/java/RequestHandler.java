@@ -0,0 +1,213 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+public class RequestHandler {
+
+    private static final int MAX_RESPONSE_TEMPLATES = 10_000;
+
+    // null when running in echo mode
+    private final DNSForwarder forwarder;
+    // swapped as a whole on reload, a request reads it once and sees one consistent set of zones
+    private volatile ZoneState zoneState;
+    // relay UDP queries upstream undecoded instead of forwarding them question by question
+    private final boolean passthrough;
+    private final Metrics metrics;
+    // null when query logging is off
+    private final QueryLog queryLog;
+
+    // zones is null when no zones are loaded; templates are UDP responses that only depend on the query,
+    // forwarded answers change and are never kept, and they go together with the zones they came from
+    private record ZoneState(ZoneStore zones, ResponseTemplates templates) {
+    }
+
+    public RequestHandler(DNSForwarder forwarder, ZoneStore zones, boolean passthrough, Metrics metrics,
+                          QueryLog queryLog) {
+
+        this.forwarder = forwarder;
+        this.zoneState = new ZoneState(zones, new ResponseTemplates(MAX_RESPONSE_TEMPLATES));
+        this.passthrough = passthrough && forwarder != null;
+        this.metrics = metrics;
+        this.queryLog = queryLog;
+    }
+
+    // requests in flight finish with the zones they started with, templates built from the old zones are
+    // dropped along with them
+    public void setZones(ZoneStore zones) {
+
+        zoneState = new ZoneState(zones, new ResponseTemplates(MAX_RESPONSE_TEMPLATES));
+    }
+
+    Metrics metrics() {
+
+        return metrics;
+    }
+
+    ZoneStore zones() {
+
+        return zoneState.zones();
+    }
+
+    public byte[] handle(byte[] buf) {
+
+        return handle(buf, (SocketAddress) null);
+    }
+
+    // client is only used for the query log and may be null
+    public byte[] handle(byte[] buf, SocketAddress client) {
+
+        long start = System.nanoTime();
+        ZoneState state = zoneState;
+        // with nothing to answer locally there is no reason to decode a passthrough query at all
+        byte[] response = passthrough && state.zones() == null ? relay(buf) : handle(state, buf, false);
+        finish(buf, client, false, response, System.nanoTime() - start);
+        return response;
+    }
+
+    public byte[] handleTcp(byte[] buf) {
+
+        return handleTcp(buf, null);
+    }
+
+    public byte[] handleTcp(byte[] buf, SocketAddress client) {
+
+        long start = System.nanoTime();
+        byte[] response = handle(zoneState, buf, true);
+        finish(buf, client, true, response, System.nanoTime() - start);
+        return response;
+    }
+
+    // UDP over pooled buffers: request holds the query from 0 to the limit, the response is written to
+    // response from 0 and left holding exactly the response
+    public void handle(ByteBuffer request, ByteBuffer response, SocketAddress client) {
+
+        long start = System.nanoTime();
+        ZoneState state = zoneState;
+        if (passthrough && state.zones() == null) {
+            copyTo(relay(bytes(request)), response);
+        } else {
+            handle(state, request, response);
+        }
+        finish(request, client, response, System.nanoTime() - start);
+    }
+
+    private void finish(byte[] buf, SocketAddress client, boolean tcp, byte[] response, long nanos) {
+
+        metrics.recordRequest(tcp, nanos, response[3]);
+        if (queryLog != null) {
+            queryLog.record(buf, client, tcp, response, nanos);
+        }
+    }
+
+    private void finish(ByteBuffer request, SocketAddress client, ByteBuffer response, long nanos) {
+
+        metrics.recordRequest(false, nanos, response.get(3));
+        if (queryLog != null) {
+            queryLog.record(request, client, false, response, nanos);
+        }
+    }
+
+    private byte[] handle(ZoneState state, byte[] buf, boolean tcp) {
+
+        // a query seen before skips decoding and encoding altogether
+        byte[] template = tcp ? null : state.templates().respond(buf);
+        if (template != null) {
+            return template;
+        }
+
+        DNSMessage request = parse(ByteBuffer.wrap(buf));
+        Resolved resolved = resolve(state.zones(), request, tcp);
+        if (resolved.response() == null) {
+            return relay(buf);
+        }
+
+        // responses that do not fit what the client can take go out truncated with TC set
+        int maxLength = tcp ? DNSUtils.MAX_TCP_LENGTH : DNSUtils.udpPayloadLimit(request);
+        byte[] encoded = DNSUtils.dnsMessageToByteArray(resolved.response(), maxLength);
+        if (resolved.fixed() && !tcp) {
+            state.templates().store(buf, encoded);
+        }
+        return encoded;
+    }
+
+    private void handle(ZoneState state, ByteBuffer buf, ByteBuffer out) {
+
+        if (state.templates().respond(buf, out)) {
+            return;
+        }
+
+        DNSMessage request = parse(buf);
+        Resolved resolved = resolve(state.zones(), request, false);
+        if (resolved.response() == null) {
+            copyTo(relay(bytes(buf)), out);
+            return;
+        }
+
+        DNSUtils.encode(resolved.response(), DNSUtils.udpPayloadLimit(request), out);
+        if (resolved.fixed()) {
+            state.templates().store(buf, out);
+        }
+    }
+
+    private DNSMessage parse(ByteBuffer buf) {
+
+        long parseStart = System.nanoTime();
+        DNSMessage request = DNSCodec.decode(buf);
+        metrics.recordParse(System.nanoTime() - parseStart);
+        return request;
+    }
+
+    // response is null when the query is to be relayed upstream as it is, fixed when the answer only
+    // depends on the query
+    private record Resolved(DNSMessage response, boolean fixed) {
+    }
+
+    private Resolved resolve(ZoneStore zones, DNSMessage request, boolean tcp) {
+
+        DNSMessage response = zones == null ? null : zones.answer(request);
+        boolean fixedAnswer = true;
+        if (response == null) {
+            if (passthrough && !tcp) {
+                // the upstream sees the client's own OPT, so the reply already fits what the client takes
+                return new Resolved(null, false);
+            } else if (forwarder != null) {
+                response = forwarder.forwardMessage(request);
+                fixedAnswer = false;
+            } else if (zones != null) {
+                // authoritative only, names outside our zones are not our business
+                response = DNSUtils.emptyResponse(request, DNSUtils.RCODE_REFUSED);
+            } else {
+                response = DNSUtils.echoMessage(request);
+            }
+        }
+
+        if (request.hasEdns()) {
+            // a client that sent OPT gets one back with the payload size we accept
+            response = response.toBuilder().ednsPayloadSize(DNSUtils.MAX_EDNS_PAYLOAD).build();
+        }
+        return new Resolved(response, fixedAnswer);
+    }
+
+    private byte[] relay(byte[] buf) {
+
+        byte[] reply = forwarder.relay(buf);
+        return reply != null ? reply : DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE);
+    }
+
+    // the upstream takes byte arrays, so relayed queries are the one place pooled packets are copied
+    private static byte[] bytes(ByteBuffer buf) {
+
+        byte[] bytes = new byte[buf.limit()];
+        buf.get(0, bytes);
+        return bytes;
+    }
+
+    private static void copyTo(byte[] response, ByteBuffer out) {
+
+        if (response.length > out.capacity()) {
+            // larger than any UDP payload we accept, the client could not have taken it anyway
+            DNSUtils.errorResponse(ByteBuffer.wrap(response), DNSUtils.RCODE_SERVER_FAILURE, out);
+            return;
+        }
+        out.clear().put(response).flip();
+    }
+}
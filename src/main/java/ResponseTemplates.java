@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// encoded responses for answers that only depend on the query (echo and zone answers), keyed by the
+// query bytes after the transaction id; a hit is one copy and the client's transaction id patched in,
+// no decoding, no message objects, no encoding
+public class ResponseTemplates {
+
+    private static final int ID_LENGTH = 2;
+
+    // keys wrap a private copy of the query from the flags on, ByteBuffer equality compares the content
+    private final ConcurrentHashMap<ByteBuffer, Template> templates = new ConcurrentHashMap<>();
+    // hashes of queries seen once, a query is only admitted on its second sighting so one-off names such as
+    // random subdomains do not push out the names that repeat; colliding queries overwrite each other,
+    // which only delays their admission
+    private final AtomicIntegerArray seen;
+
+    // CLOCK eviction over the stored keys, only touched by store and clear
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer[] ring;
+    private int ringSize;
+    private int hand;
+
+    private static final class Template {
+
+        final byte[] response;
+        // set on every hit, cleared when the clock hand passes, a template not hit for a whole round is evicted
+        volatile boolean referenced;
+
+        Template(byte[] response) {
+
+            this.response = response;
+        }
+    }
+
+    public ResponseTemplates(int maxEntries) {
+
+        this.ring = new ByteBuffer[maxEntries];
+        this.seen = new AtomicIntegerArray(1 << (32 - Integer.numberOfLeadingZeros(Math.max(1, 2 * maxEntries - 1))));
+    }
+
+    // null when the query was not seen before
+    public byte[] respond(byte[] request) {
+
+        byte[] template = lookup(ByteBuffer.wrap(request, ID_LENGTH, request.length - ID_LENGTH));
+        if (template == null) {
+            return null;
+        }
+        byte[] response = template.clone();
+        response[0] = request[0];
+        response[1] = request[1];
+        return response;
+    }
+
+    // writes the response for request to out from 0, false when the query was not seen before or the
+    // response does not fit out; both buffers hold their message from 0 to the limit
+    public boolean respond(ByteBuffer request, ByteBuffer out) {
+
+        byte[] template = lookup(request.slice(ID_LENGTH, request.limit() - ID_LENGTH));
+        if (template == null || template.length > out.capacity()) {
+            return false;
+        }
+        out.clear().put(template).flip();
+        out.put(0, request.get(0));
+        out.put(1, request.get(1));
+        return true;
+    }
+
+    public void store(byte[] request, byte[] response) {
+
+        if (admits(ByteBuffer.wrap(request, ID_LENGTH, request.length - ID_LENGTH))) {
+            insert(ByteBuffer.wrap(Arrays.copyOfRange(request, ID_LENGTH, request.length)), response.clone());
+        }
+    }
+
+    public void store(ByteBuffer request, ByteBuffer response) {
+
+        if (!admits(request.slice(ID_LENGTH, request.limit() - ID_LENGTH))) {
+            return;
+        }
+        byte[] key = new byte[request.limit() - ID_LENGTH];
+        request.get(ID_LENGTH, key);
+        byte[] template = new byte[response.limit()];
+        response.get(0, template);
+        insert(ByteBuffer.wrap(key), template);
+    }
+
+    private byte[] lookup(ByteBuffer query) {
+
+        Template template = templates.get(query);
+        if (template == null) {
+            return null;
+        }
+        // read before write keeps the cache line shared between workers hitting the same template
+        if (!template.referenced) {
+            template.referenced = true;
+        }
+        return template.response;
+    }
+
+    private boolean admits(ByteBuffer query) {
+
+        int hash = query.hashCode();
+        hash ^= hash >>> 16;
+        int slot = hash & (seen.length() - 1);
+        if (seen.get(slot) == hash) {
+            return true;
+        }
+        seen.set(slot, hash);
+        return false;
+    }
+
+    private void insert(ByteBuffer key, byte[] response) {
+
+        lock.lock();
+        try {
+            if (ring.length == 0 || templates.containsKey(key)) {
+                return;
+            }
+            if (ringSize < ring.length) {
+                ring[ringSize++] = key;
+            } else {
+                // terminates within one round, the hand clears every flag it passes
+                Template candidate;
+                while ((candidate = templates.get(ring[hand])).referenced) {
+                    candidate.referenced = false;
+                    hand = (hand + 1) % ring.length;
+                }
+                templates.remove(ring[hand]);
+                ring[hand] = key;
+                hand = (hand + 1) % ring.length;
+            }
+            templates.put(key, new Template(response));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // templates of answers that may change, such as zone data after a reload, must not outlive them
+    public void clear() {
+
+        lock.lock();
+        try {
+            templates.clear();
+            Arrays.fill(ring, null);
+            ringSize = 0;
+            hand = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+
+        return templates.size();
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public record ServerConfig(
+        List<String> resolvers, // host:port
+        int upstreamTimeoutMillis,
+        int maxInFlightUpstream,
+        int port,
+        int socketCount,
+        int workerCount,
+        int queueSize,
+        long cacheMaxBytes,
+        int upstreamSocketCount,
+        int upstreamRetransmits,
+        boolean hedging,
+        List<String> zoneFiles,
+        String zoneSnapshot,
+        int maxTcpConnections, // 0 disables TCP
+        int tcpIdleTimeoutMillis,
+        boolean passthrough,
+        int metricsPort, // 0 disables the metrics endpoint
+        String queryLog, // file path, "-" for stdout, null disables the query log
+        QueryLog.Level queryLogLevel,
+        double queryLogSampleRate,
+        double prefetchFraction, // 0 disables prefetching
+        int prefetchMinHits,
+        int maxPrefetches,
+        long staleWindowMillis, // 0 disables serve-stale
+        int staleAnswerTimeoutMillis,
+        int queryRateLimit, // per client prefix and second, 0 disables
+        int responseRateLimit, // per client prefix, answer and second, 0 disables
+        int rrlSlip,
+        DNSServer.Transport transport,
+        String configFile, // null when every option comes from the command line
+        String cacheSnapshot, // file path, null disables the cache snapshot
+        long cacheSnapshotIntervalMillis
+) {
+
+    private static final int DEFAULT_UPSTREAM_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_MAX_IN_FLIGHT_UPSTREAM = 256;
+    private static final int DEFAULT_PORT = 2053;
+    private static final int DEFAULT_WORKER_COUNT = 256;
+    private static final int DEFAULT_QUEUE_SIZE = 4096;
+    private static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_UPSTREAM_SOCKET_COUNT = 4;
+    private static final int DEFAULT_UPSTREAM_RETRANSMITS = 2;
+    private static final int DEFAULT_MAX_TCP_CONNECTIONS = 1024;
+    private static final int DEFAULT_TCP_IDLE_TIMEOUT_MILLIS = 10_000;
+    private static final double DEFAULT_PREFETCH_FRACTION = 0.1;
+    private static final int DEFAULT_PREFETCH_MIN_HITS = 8;
+    private static final int DEFAULT_MAX_PREFETCHES = 16;
+    // RFC 8767 suggests 1.8s, just under the timeout of common stub resolvers
+    private static final int DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS = 1800;
+    private static final int DEFAULT_RRL_SLIP = 2;
+    private static final long DEFAULT_CACHE_SNAPSHOT_INTERVAL_MILLIS = 60_000;
+    private static final int MAX_PORT = 65535;
+
+    // options from the --config file come first, the command line adds to and overrides them
+    public static ServerConfig load(String[] args) throws IOException {
+
+        List<String> options = new ArrayList<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--config")) {
+                options.addAll(readConfigFile(Path.of(args[i + 1])));
+            }
+        }
+        options.addAll(List.of(args));
+        return fromArgs(options.toArray(String[]::new));
+    }
+
+    // one option per line, its name without the dashes and its value, such as "resolver 1.1.1.1:53";
+    // blank lines and lines starting with # are skipped
+    static List<String> readConfigFile(Path file) throws IOException {
+
+        List<String> options = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] nameAndValue = line.split("\\s+", 2);
+            if (nameAndValue.length < 2) {
+                throw new IllegalArgumentException(file + " line " + (i + 1) + ": expected an option and a value");
+            }
+            options.add("--" + nameAndValue[0]);
+            options.add(nameAndValue[1]);
+        }
+        return options;
+    }
+
+    public static ServerConfig fromArgs(String[] args) {
+
+        List<String> resolvers = new ArrayList<>();
+        int upstreamTimeoutMillis = DEFAULT_UPSTREAM_TIMEOUT_MILLIS;
+        int maxInFlightUpstream = DEFAULT_MAX_IN_FLIGHT_UPSTREAM;
+        int port = DEFAULT_PORT;
+        int socketCount = 1;
+        int workerCount = DEFAULT_WORKER_COUNT;
+        int queueSize = DEFAULT_QUEUE_SIZE;
+        long cacheMaxBytes = DEFAULT_CACHE_MAX_BYTES;
+        int upstreamSocketCount = DEFAULT_UPSTREAM_SOCKET_COUNT;
+        int upstreamRetransmits = DEFAULT_UPSTREAM_RETRANSMITS;
+        boolean hedging = true;
+        List<String> zoneFiles = new ArrayList<>();
+        String zoneSnapshot = null;
+        int maxTcpConnections = DEFAULT_MAX_TCP_CONNECTIONS;
+        int tcpIdleTimeoutMillis = DEFAULT_TCP_IDLE_TIMEOUT_MILLIS;
+        boolean passthrough = false;
+        int metricsPort = 0;
+        String queryLog = null;
+        QueryLog.Level queryLogLevel = QueryLog.Level.INFO;
+        double queryLogSampleRate = 1.0;
+        double prefetchFraction = DEFAULT_PREFETCH_FRACTION;
+        int prefetchMinHits = DEFAULT_PREFETCH_MIN_HITS;
+        int maxPrefetches = DEFAULT_MAX_PREFETCHES;
+        long staleWindowMillis = 0;
+        int staleAnswerTimeoutMillis = DEFAULT_STALE_ANSWER_TIMEOUT_MILLIS;
+        int queryRateLimit = 0;
+        int responseRateLimit = 0;
+        int rrlSlip = DEFAULT_RRL_SLIP;
+        DNSServer.Transport transport = DNSServer.Transport.SOCKET;
+        String configFile = null;
+        String cacheSnapshot = null;
+        long cacheSnapshotIntervalMillis = DEFAULT_CACHE_SNAPSHOT_INTERVAL_MILLIS;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            switch (option) {
+                case "--resolver" -> resolvers.add(checkResolver(value));
+                case "--upstream-timeout" -> upstreamTimeoutMillis = intOption(option, value, 1, Integer.MAX_VALUE);
+                case "--max-in-flight" -> maxInFlightUpstream = intOption(option, value, 1, Integer.MAX_VALUE);
+                case "--port" -> port = intOption(option, value, 1, MAX_PORT);
+                case "--sockets" -> socketCount = intOption(option, value, 1, Integer.MAX_VALUE);
+                case "--workers" -> workerCount = intOption(option, value, 1, Integer.MAX_VALUE);
+                case "--queue-size" -> queueSize = intOption(option, value, 1, Integer.MAX_VALUE);
+                case "--cache-size-mb" -> cacheMaxBytes = intOption(option, value, 0, Integer.MAX_VALUE) * 1024L * 1024;
+                case "--upstream-sockets" -> upstreamSocketCount = intOption(option, value, 1, Integer.MAX_VALUE);
+                case "--upstream-retransmits" -> upstreamRetransmits = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--hedging" -> hedging = Boolean.parseBoolean(value);
+                case "--zone" -> zoneFiles.add(value);
+                case "--zone-snapshot" -> zoneSnapshot = value;
+                case "--tcp-connections" -> maxTcpConnections = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--tcp-idle-timeout" -> tcpIdleTimeoutMillis = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--passthrough" -> passthrough = Boolean.parseBoolean(value);
+                case "--metrics-port" -> metricsPort = intOption(option, value, 0, MAX_PORT);
+                case "--query-log" -> queryLog = value;
+                case "--query-log-level" -> queryLogLevel = enumOption(option, value, QueryLog.Level.class);
+                case "--query-log-sample" -> queryLogSampleRate = fractionOption(option, value);
+                case "--prefetch-fraction" -> prefetchFraction = fractionOption(option, value);
+                case "--prefetch-min-hits" -> prefetchMinHits = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--max-prefetches" -> maxPrefetches = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--serve-stale" -> staleWindowMillis = intOption(option, value, 0, Integer.MAX_VALUE) * 1000L;
+                case "--stale-answer-timeout" -> staleAnswerTimeoutMillis = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--rate-limit" -> queryRateLimit = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--rrl" -> responseRateLimit = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--rrl-slip" -> rrlSlip = intOption(option, value, 0, Integer.MAX_VALUE);
+                case "--transport" -> transport = enumOption(option, value, DNSServer.Transport.class);
+                case "--config" -> configFile = value;
+                case "--cache-snapshot" -> cacheSnapshot = value;
+                case "--cache-snapshot-interval" ->
+                        cacheSnapshotIntervalMillis = intOption(option, value, 1, Integer.MAX_VALUE) * 1000L;
+                default -> System.out.println("Ignoring unknown argument: " + option);
+            }
+        }
+
+        return new ServerConfig(List.copyOf(resolvers), upstreamTimeoutMillis, maxInFlightUpstream,
+                port, socketCount, workerCount, queueSize, cacheMaxBytes, upstreamSocketCount, upstreamRetransmits,
+                hedging, List.copyOf(zoneFiles), zoneSnapshot, maxTcpConnections, tcpIdleTimeoutMillis,
+                passthrough, metricsPort, queryLog, queryLogLevel, queryLogSampleRate,
+                prefetchFraction, prefetchMinHits, maxPrefetches, staleWindowMillis, staleAnswerTimeoutMillis,
+                queryRateLimit, responseRateLimit, rrlSlip, transport, configFile, cacheSnapshot,
+                cacheSnapshotIntervalMillis);
+    }
+
+    // this configuration with everything a reload can change taken from next, anything else in next
+    // that differs from the result needs a restart
+    public ServerConfig withReloadableSettingsOf(ServerConfig next) {
+
+        return new ServerConfig(next.resolvers, upstreamTimeoutMillis, maxInFlightUpstream,
+                port, socketCount, workerCount, queueSize, next.cacheMaxBytes, upstreamSocketCount,
+                upstreamRetransmits, hedging, next.zoneFiles, next.zoneSnapshot, maxTcpConnections,
+                tcpIdleTimeoutMillis, passthrough, metricsPort, queryLog, queryLogLevel, queryLogSampleRate,
+                prefetchFraction, prefetchMinHits, maxPrefetches, staleWindowMillis, staleAnswerTimeoutMillis,
+                next.queryRateLimit, next.responseRateLimit, next.rrlSlip, transport, configFile, cacheSnapshot,
+                cacheSnapshotIntervalMillis);
+    }
+
+    public List<InetSocketAddress> resolverAddresses() throws UnknownHostException {
+
+        List<InetSocketAddress> addresses = new ArrayList<>(resolvers.size());
+        for (String resolver : resolvers) {
+            // the last colon, an IPv6 literal has colons of its own
+            int colon = checkResolver(resolver).lastIndexOf(':');
+            addresses.add(new InetSocketAddress(InetAddress.getByName(resolver.substring(0, colon)),
+                    Integer.parseInt(resolver.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    private static String checkResolver(String resolver) {
+
+        int colon = resolver.lastIndexOf(':');
+        if (colon <= 0 || colon == resolver.length() - 1) {
+            throw new IllegalArgumentException("--resolver " + resolver + " is not host:port");
+        }
+        intOption("--resolver port", resolver.substring(colon + 1), 1, MAX_PORT);
+        return resolver;
+    }
+
+    private static int intOption(String option, String value, int min, int max) {
+
+        int number;
+        try {
+            number = Integer.parseInt(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a whole number, got " + value);
+        }
+        if (number < min || number > max) {
+            throw new IllegalArgumentException(option + " must be between " + min + " and " + max + ", got " + value);
+        }
+        return number;
+    }
+
+    private static double fractionOption(String option, String value) {
+
+        double number;
+        try {
+            number = Double.parseDouble(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got " + value);
+        }
+        if (!(number >= 0 && number <= 1)) {
+            throw new IllegalArgumentException(option + " must be between 0 and 1, got " + value);
+        }
+        return number;
+    }
+
+    private static <E extends Enum<E>> E enumOption(String option, String value, Class<E> type) {
+
+        try {
+            return Enum.valueOf(type, value.strip().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(option + " must be one of "
+                    + Arrays.toString(type.getEnumConstants()).toLowerCase() + ", got " + value);
+        }
+    }
+
+    public boolean shouldForward() {
+
+        return !resolvers.isEmpty();
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// DNS over TCP (RFC 7766), a connection can pipeline queries and every answer is written as soon as it is ready
+public class TcpListener implements AutoCloseable {
+
+    private static final int ACCEPT_BACKLOG = 128;
+    // queries one connection may have in flight, the reader stops reading until one is answered
+    static final int MAX_PIPELINED_QUERIES = 32;
+
+    private final RequestHandler handler;
+    private final Executor workers;
+    private final int port;
+    private final int idleTimeoutMillis;
+    private final Semaphore connectionSlots;
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+
+    public TcpListener(RequestHandler handler, Executor workers, int port, int maxConnections, int idleTimeoutMillis) {
+
+        this.handler = handler;
+        this.workers = workers;
+        this.port = port;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.connectionSlots = new Semaphore(maxConnections);
+    }
+
+    public void start() throws IOException {
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        acceptor = Thread.ofPlatform().name("dns-tcp-acceptor").start(this::acceptLoop);
+        System.out.println("Listening on TCP port " + port + " for up to "
+                + connectionSlots.availablePermits() + " connections");
+    }
+
+    private void acceptLoop() {
+
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("IOException: " + e.getMessage());
+                }
+                continue;
+            }
+
+            if (!connectionSlots.tryAcquire()) {
+                // closing right away lets the client fall back to another server instead of waiting on us
+                System.out.println("Too many TCP connections, closing connection from " + socket.getRemoteSocketAddress());
+                closeQuietly(socket);
+                continue;
+            }
+
+            Connection connection = new Connection(socket);
+            connections.add(connection);
+            connection.reader = Thread.ofVirtual().name("dns-tcp-connection").start(connection::readLoop);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing left to do with this socket
+        }
+    }
+
+    @Override
+    public void close() {
+
+        try {
+            serverSocket.close();
+            acceptor.join();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connections.forEach(Connection::close);
+    }
+
+    int localPort() {
+
+        return serverSocket.getLocalPort();
+    }
+
+    private final class Connection {
+
+        private final Socket socket;
+        // queries read but not answered yet, plus one for the reader so the socket outlives it
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final Semaphore pipelined = new Semaphore(MAX_PIPELINED_QUERIES);
+        private volatile Thread reader;
+        // answers complete out of order, a lock rather than synchronized keeps virtual threads unpinned while writing
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        Connection(Socket socket) {
+
+            this.socket = socket;
+        }
+
+        void readLoop() {
+
+            try {
+                socket.setSoTimeout(idleTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                while (true) {
+                    pipelined.acquire();
+                    int lengthHigh;
+                    try {
+                        lengthHigh = in.read();
+                    } catch (SocketTimeoutException e) {
+                        // nothing of the next message read yet, only idle once every pipelined query has been answered
+                        pipelined.release();
+                        if (outstanding.get() > 1) {
+                            continue;
+                        }
+                        return;
+                    }
+                    if (lengthHigh < 0) {
+                        // the client is done sending, answers still in flight are written before closing
+                        return;
+                    }
+
+                    // a timeout from here on leaves part of a message read and the stream out of frame,
+                    // it ends the connection
+                    int length = (lengthHigh << 8) | in.readUnsignedByte();
+                    byte[] buf = new byte[length];
+                    in.readFully(buf);
+                    if (length < DNSCodec.HEADER_LENGTH) {
+                        System.out.println("Closing TCP connection after a message of " + length + " bytes");
+                        return;
+                    }
+
+                    outstanding.incrementAndGet();
+                    try {
+                        workers.execute(() -> answer(buf));
+                    } catch (RejectedExecutionException e) {
+                        write(DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE));
+                        finish();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed while waiting for a pipelined query to be answered
+            } catch (SocketTimeoutException | EOFException e) {
+                // stalled or gone in the middle of a message
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("IOException on TCP connection: " + e.getMessage());
+                }
+            } finally {
+                release();
+            }
+        }
+
+        private void answer(byte[] buf) {
+
+            byte[] response;
+            try {
+                response = handler.handleTcp(buf, socket.getRemoteSocketAddress());
+            } catch (RuntimeException e) {
+                System.out.println("Could not handle request: " + e);
+                response = DNSUtils.errorResponse(buf, DNSUtils.RCODE_SERVER_FAILURE);
+            }
+            write(response);
+            finish();
+        }
+
+        private void write(byte[] response) {
+
+            // length prefix and message in one write so they leave in one segment
+            byte[] framed = new byte[response.length + 2];
+            framed[0] = (byte) (response.length >> 8);
+            framed[1] = (byte) response.length;
+            System.arraycopy(response, 0, framed, 2, response.length);
+
+            writeLock.lock();
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(framed);
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("Could not send response to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void finish() {
+
+            pipelined.release();
+            release();
+        }
+
+        private void release() {
+
+            if (outstanding.decrementAndGet() == 0) {
+                close();
+            }
+        }
+
+        void close() {
+
+            if (connections.remove(this)) {
+                closeQuietly(socket);
+                connectionSlots.release();
+                // a reader waiting for a pipelined query that will never be answered, e.g. on shutdown
+                Thread waiting = reader;
+                if (waiting != null && waiting != Thread.currentThread()) {
+                    waiting.interrupt();
+                }
+            }
+        }
+    }
+}
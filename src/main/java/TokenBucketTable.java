@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+// token buckets in a fixed-size table indexed by key hash, memory does not grow with the number of keys;
+// like a count-min sketch every key maps to one bucket per row and is only limited once all of them ran
+// dry, so a key sharing a bucket with a heavy hitter in one row still gets through on the other
+public class TokenBucketTable {
+
+    private static final int ROWS = 2;
+    private static final long[] ROW_SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL};
+    // tokens are counted in thousandths so a rate in tokens per second refills that many per millisecond
+    private static final long MILLI = 1000;
+
+    // per bucket the last refill in milliseconds since the table was created in the high 32 bits
+    // and the milli-tokens left in the low 32 bits, 0 for a bucket that was never used
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final int slotsPerRow;
+    private final long ratePerSecond;
+    private final long capacity;
+    private final LongSupplier clock;
+    private final long epochMillis;
+
+    public TokenBucketTable(int slotsPerRow, long ratePerSecond, long burst) {
+
+        this(slotsPerRow, ratePerSecond, burst, System::currentTimeMillis);
+    }
+
+    TokenBucketTable(int slotsPerRow, long ratePerSecond, long burst, LongSupplier clock) {
+
+        this.slotsPerRow = Integer.highestOneBit(Math.max(1, slotsPerRow - 1)) << 1;
+        this.mask = this.slotsPerRow - 1;
+        this.buckets = new AtomicLongArray(ROWS * this.slotsPerRow);
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.min(burst * MILLI, 0xFFFFFFFFL);
+        this.clock = clock;
+        // one millisecond back so no refill time is ever 0, which marks an unused bucket
+        this.epochMillis = clock.getAsLong() - 1;
+    }
+
+    // takes a token for the key, false when every bucket of the key is empty
+    public boolean tryAcquire(long keyHash) {
+
+        int now = (int) (clock.getAsLong() - epochMillis);
+        boolean acquired = false;
+        for (int row = 0; row < ROWS; row++) {
+            int index = row * slotsPerRow + (int) (mix(keyHash ^ ROW_SEEDS[row]) & mask);
+            // keep taking from the other rows so a heavy hitter drains all of its buckets
+            acquired |= take(index, now);
+        }
+        return acquired;
+    }
+
+    private boolean take(int index, int now) {
+
+        while (true) {
+            long state = buckets.get(index);
+            long tokens;
+            if (state == 0) {
+                tokens = capacity;
+            } else {
+                // unsigned so the refill still works once the millisecond counter wraps after 49 days
+                long elapsedMillis = Integer.toUnsignedLong(now - (int) (state >>> 32));
+                tokens = Math.min(capacity, (state & 0xFFFFFFFFL) + elapsedMillis * ratePerSecond);
+            }
+            if (tokens < MILLI) {
+                return false;
+            }
+            long next = ((long) now << 32) | (tokens - MILLI);
+            if (buckets.compareAndSet(index, state, next)) {
+                return true;
+            }
+        }
+    }
+
+    // finalizer of MurmurHash3, spreads similar keys such as neighbouring prefixes over the table
+    static long mix(long key) {
+
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
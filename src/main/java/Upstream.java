@@ -0,0 +1,116 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Upstream {
+
+    private static final int RTT_SAMPLES = 64;
+    // p95 is recomputed every this many samples instead of on every query
+    private static final int P95_REFRESH_INTERVAL = 16;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final InetSocketAddress address;
+    private final LongSupplier clock;
+
+    // smoothed RTT as in RFC 6298, 0 until the first reply
+    private volatile long smoothedRttNanos;
+    private final AtomicLongArray rttSamples = new AtomicLongArray(RTT_SAMPLES);
+    // a long does not wrap around in the lifetime of a server, an int would after 2^31 replies
+    private final AtomicLong sampleCount = new AtomicLong();
+    private volatile long p95RttNanos;
+
+    // every RTT ever seen, for metrics, the samples above only cover the recent window
+    private final LatencyHistogram rttHistogram = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long downUntilMillis;
+
+    public Upstream(InetSocketAddress address, LongSupplier clock) {
+
+        this.address = address;
+        this.clock = clock;
+    }
+
+    public InetSocketAddress address() {
+
+        return address;
+    }
+
+    public long smoothedRttNanos() {
+
+        return smoothedRttNanos;
+    }
+
+    public long p95RttNanos() {
+
+        return p95RttNanos;
+    }
+
+    public LatencyHistogram rttHistogram() {
+
+        return rttHistogram;
+    }
+
+    public long failureCount() {
+
+        return failures.sum();
+    }
+
+    public boolean isHealthy(long nowMillis) {
+
+        return nowMillis >= downUntilMillis;
+    }
+
+    public long downUntilMillis() {
+
+        return downUntilMillis;
+    }
+
+    public void recordSuccess(long rttNanos) {
+
+        consecutiveFailures.set(0);
+        downUntilMillis = 0;
+        rttHistogram.record(rttNanos);
+
+        long previous = smoothedRttNanos;
+        // racy read-modify-write, a lost sample does not matter for an estimate
+        smoothedRttNanos = previous == 0 ? rttNanos : previous + (rttNanos - previous) / 8;
+
+        long count = sampleCount.getAndIncrement();
+        rttSamples.set((int) (count % RTT_SAMPLES), rttNanos);
+        if (count % P95_REFRESH_INTERVAL == 0) {
+            p95RttNanos = computeP95((int) Math.min(count + 1, RTT_SAMPLES));
+        }
+    }
+
+    public void recordFailure() {
+
+        failures.increment();
+        int consecutive = consecutiveFailures.incrementAndGet();
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(consecutive - 1, 16));
+        // no log line, failures come at query rate; dns_upstream_failures_total counts them
+        downUntilMillis = clock.getAsLong() + backoff;
+    }
+
+    private long computeP95(int samples) {
+
+        long[] sorted = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            sorted[i] = rttSamples.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted[Math.min(samples - 1, (int) Math.ceil(samples * 0.95) - 1)];
+    }
+
+    @Override
+    public String toString() {
+
+        return address.toString();
+    }
+}
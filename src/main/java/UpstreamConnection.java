@@ -0,0 +1,156 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+// a long-lived TCP connection to one upstream, queries are pipelined and replies matched by transaction id
+public class UpstreamConnection implements AutoCloseable {
+
+    private final InetSocketAddress upstream;
+    private final Socket socket;
+    private final int timeoutMillis;
+    private final IntSupplier transactionIds;
+    // the pool's count of replies that matched no query
+    private final LongAdder unmatchedReplies;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private record PendingQuery(Question question, CompletableFuture<DNSMessage> future) {
+    }
+
+    private UpstreamConnection(InetSocketAddress upstream, Socket socket, int timeoutMillis, IntSupplier transactionIds,
+                               LongAdder unmatchedReplies) {
+
+        this.upstream = upstream;
+        this.socket = socket;
+        this.timeoutMillis = timeoutMillis;
+        this.transactionIds = transactionIds;
+        this.unmatchedReplies = unmatchedReplies;
+    }
+
+    public static UpstreamConnection open(InetSocketAddress upstream, int timeoutMillis, IntSupplier transactionIds,
+                                          LongAdder unmatchedReplies) throws IOException {
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(upstream, timeoutMillis);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        UpstreamConnection connection = new UpstreamConnection(upstream, socket, timeoutMillis, transactionIds,
+                unmatchedReplies);
+        Thread.ofVirtual().name("upstream-tcp-receiver").start(connection::receiveLoop);
+        System.out.println("opened TCP connection to " + upstream);
+        return connection;
+    }
+
+    public boolean isOpen() {
+
+        return !closed;
+    }
+
+    public CompletableFuture<DNSMessage> query(DNSMessage message) {
+
+        byte[] packet = DNSUtils.dnsMessageToByteArray(message, DNSUtils.MAX_TCP_LENGTH);
+        PendingQuery query = new PendingQuery(message.getQuestions().getFirst(), new CompletableFuture<>());
+        int transactionId;
+        do {
+            transactionId = transactionIds.getAsInt();
+        } while (pending.putIfAbsent(transactionId, query) != null);
+
+        int key = transactionId;
+        query.future()
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((answer, e) -> pending.remove(key, query));
+
+        byte[] framed = new byte[packet.length + 2];
+        framed[0] = (byte) (packet.length >> 8);
+        framed[1] = (byte) packet.length;
+        framed[2] = (byte) (transactionId >> 8);
+        framed[3] = (byte) transactionId;
+        System.arraycopy(packet, 2, framed, 4, packet.length - 2);
+
+        writeLock.lock();
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(framed);
+            out.flush();
+        } catch (IOException e) {
+            close(e);
+        } finally {
+            writeLock.unlock();
+        }
+        return query.future();
+    }
+
+    private void receiveLoop() {
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                byte[] buf = new byte[in.readUnsignedShort()];
+                in.readFully(buf);
+                if (buf.length < DNSCodec.HEADER_LENGTH) {
+                    unmatchedReplies.increment();
+                    continue;
+                }
+
+                // late replies for queries that already timed out, counted like their UDP counterparts
+                int transactionId = ((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF);
+                PendingQuery query = pending.get(transactionId);
+                if (query == null) {
+                    unmatchedReplies.increment();
+                    continue;
+                }
+
+                DNSMessage answer;
+                try {
+                    answer = DNSCodec.decode(ByteBuffer.wrap(buf));
+                } catch (RuntimeException e) {
+                    // malformed, the query times out
+                    unmatchedReplies.increment();
+                    continue;
+                }
+                if (UpstreamPool.answersQuestion(answer, query.question())) {
+                    query.future().complete(answer);
+                } else {
+                    unmatchedReplies.increment();
+                }
+            }
+        } catch (IOException e) {
+            // upstreams close idle connections, the next truncated reply opens a new one
+            close(e);
+        }
+    }
+
+    private void close(IOException cause) {
+
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // already failing every pending query below
+        }
+        pending.values().forEach(query -> query.future().completeExceptionally(cause));
+    }
+
+    @Override
+    public void close() {
+
+        close(new IOException("connection to " + upstream + " closed"));
+    }
+}
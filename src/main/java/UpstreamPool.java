@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class UpstreamPool implements AutoCloseable {
+
+    private final DatagramSocket[] sockets;
+    private final int timeoutMillis;
+    private final int attemptTimeoutMillis;
+    private final int maxAttempts;
+
+    // outstanding queries keyed by socket index and transaction id
+    private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    // truncated replies are retried over one reused TCP connection per upstream
+    private final ConcurrentHashMap<InetSocketAddress, UpstreamConnection> tcpConnections = new ConcurrentHashMap<>();
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    // counted instead of logged, both come at packet rate when an upstream is lossy or someone sprays replies
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder unmatchedReplies = new LongAdder();
+
+    private static final class PendingQuery {
+
+        final int key;
+        final int socketIndex;
+        // null for relayed queries, their replies are matched on the raw question section instead
+        final Question question;
+        final InetSocketAddress upstream;
+        final byte[] packet;
+        // end of the question section in packet, only used for relayed queries
+        final int questionEnd;
+        final CompletableFuture<DNSMessage> future;
+        final CompletableFuture<byte[]> relayed;
+        int attempts;
+        volatile ScheduledFuture<?> retransmit;
+
+        PendingQuery(int key, int socketIndex, Question question, InetSocketAddress upstream, byte[] packet,
+                     int questionEnd) {
+
+            this.key = key;
+            this.socketIndex = socketIndex;
+            this.question = question;
+            this.upstream = upstream;
+            this.packet = packet;
+            this.questionEnd = questionEnd;
+            this.future = question != null ? new CompletableFuture<>() : null;
+            this.relayed = question == null ? new CompletableFuture<>() : null;
+        }
+
+        CompletableFuture<?> completion() {
+
+            return question != null ? future : relayed;
+        }
+    }
+
+    public UpstreamPool(int socketCount, int timeoutMillis, int retransmits) throws IOException {
+
+        this.sockets = new DatagramSocket[socketCount];
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = retransmits + 1;
+        // the overall timeout is split between the first attempt and the retransmissions
+        this.attemptTimeoutMillis = Math.max(1, timeoutMillis / maxAttempts);
+
+        this.timer = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("upstream-timer").daemon().factory());
+        this.timer.setRemoveOnCancelPolicy(true);
+
+        for (int i = 0; i < socketCount; i++) {
+            sockets[i] = new DatagramSocket();
+            int socketIndex = i;
+            Thread.ofVirtual().name("upstream-receiver-" + i).start(() -> receiveLoop(socketIndex));
+        }
+    }
+
+    public CompletableFuture<DNSMessage> query(DNSMessage message, InetSocketAddress upstream) {
+
+        PendingQuery query = register(message.getQuestions().getFirst(), upstream,
+                DNSUtils.dnsMessageToByteArray(message), 0);
+        send(query);
+        return query.future;
+    }
+
+    // sends the client's datagram as is apart from the transaction id, the reply comes back undecoded
+    // with the client's transaction id restored; questionEnd is where the question section of request ends
+    public CompletableFuture<byte[]> relay(byte[] request, int questionEnd, InetSocketAddress upstream) {
+
+        PendingQuery query = register(null, upstream, Arrays.copyOf(request, request.length), questionEnd);
+        send(query);
+        return query.relayed.thenApply(reply -> {
+            reply[0] = request[0];
+            reply[1] = request[1];
+            return reply;
+        });
+    }
+
+    private PendingQuery register(Question question, InetSocketAddress upstream, byte[] packet, int questionEnd) {
+
+        int socketIndex = ThreadLocalRandom.current().nextInt(sockets.length);
+
+        // the query goes out under a random transaction id that is not in use on this socket yet
+        while (true) {
+            int transactionId = random.get().nextInt(0x10000);
+            int key = (socketIndex << 16) | transactionId;
+            PendingQuery query = new PendingQuery(key, socketIndex, question, upstream, packet, questionEnd);
+            if (pending.putIfAbsent(key, query) == null) {
+                packet[0] = (byte) (transactionId >> 8);
+                packet[1] = (byte) transactionId;
+                return query;
+            }
+        }
+    }
+
+    public CompletableFuture<DNSMessage> queryTcp(DNSMessage message, InetSocketAddress upstream) {
+
+        try {
+            return tcpConnection(upstream).query(message);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private UpstreamConnection tcpConnection(InetSocketAddress upstream) throws IOException {
+
+        UpstreamConnection connection = tcpConnections.get(upstream);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+
+        // one connect at a time, callers racing for the same upstream end up sharing the new connection
+        connectLock.lock();
+        try {
+            connection = tcpConnections.get(upstream);
+            if (connection == null || !connection.isOpen()) {
+                connection = UpstreamConnection.open(upstream, timeoutMillis, () -> random.get().nextInt(0x10000),
+                        unmatchedReplies);
+                tcpConnections.put(upstream, connection);
+            }
+            return connection;
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private void send(PendingQuery query) {
+
+        synchronized (query) {
+            if (query.completion().isDone()) {
+                return;
+            }
+            query.attempts++;
+            query.retransmit = timer.schedule(() -> onTimeout(query), attemptTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            sockets[query.socketIndex].send(new DatagramPacket(query.packet, query.packet.length, query.upstream));
+        } catch (IOException e) {
+            fail(query, e);
+        }
+    }
+
+    private void onTimeout(PendingQuery query) {
+
+        if (query.attempts < maxAttempts) {
+            retransmits.increment();
+            send(query);
+        } else {
+            fail(query, new TimeoutException("no reply from " + query.upstream + " after " + query.attempts + " attempts"));
+        }
+    }
+
+    private void fail(PendingQuery query, Throwable cause) {
+
+        if (pending.remove(query.key, query)) {
+            query.retransmit.cancel(false);
+            query.completion().completeExceptionally(cause);
+        }
+    }
+
+    private void receiveLoop(int socketIndex) {
+
+        DatagramSocket socket = sockets[socketIndex];
+        final byte[] responseBuf = new byte[DNSUtils.MAX_EDNS_PAYLOAD];
+
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(responseBuf, responseBuf.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("exception while receiving from upstream: " + e.getMessage());
+                }
+                continue;
+            }
+
+            if (packet.getLength() < DNSCodec.HEADER_LENGTH) {
+                unmatchedReplies.increment();
+                continue;
+            }
+
+            int transactionId = ((responseBuf[0] & 0xFF) << 8) | (responseBuf[1] & 0xFF);
+            PendingQuery query = pending.get((socketIndex << 16) | transactionId);
+            // late replies for queries that already completed and replies from anyone but the upstream we asked;
+            // anyone can send those at line rate, so they are only counted
+            if (query == null || !query.upstream.equals(packet.getSocketAddress())) {
+                unmatchedReplies.increment();
+                continue;
+            }
+
+            if (query.question == null) {
+                completeRelayed(query, responseBuf, packet.getLength());
+                continue;
+            }
+
+            DNSMessage answer;
+            try {
+                answer = DNSCodec.decode(ByteBuffer.wrap(responseBuf, 0, packet.getLength()));
+            } catch (RuntimeException e) {
+                // malformed, the query is retransmitted or times out
+                unmatchedReplies.increment();
+                continue;
+            }
+
+            if (!answersQuestion(answer, query.question)) {
+                unmatchedReplies.increment();
+                continue;
+            }
+
+            if (pending.remove(query.key, query)) {
+                query.retransmit.cancel(false);
+                query.future.complete(answer);
+            }
+        }
+    }
+
+    private void completeRelayed(PendingQuery query, byte[] responseBuf, int length) {
+
+        // no decode, but the reply has to be a response that echoes our question section byte for byte
+        boolean matches = (responseBuf[2] & 0b10000000) != 0
+                && length >= query.questionEnd
+                && Arrays.equals(responseBuf, 4, 6, query.packet, 4, 6)
+                && Arrays.equals(responseBuf, DNSCodec.HEADER_LENGTH, query.questionEnd,
+                        query.packet, DNSCodec.HEADER_LENGTH, query.questionEnd);
+        if (!matches) {
+            unmatchedReplies.increment();
+            return;
+        }
+
+        if (pending.remove(query.key, query)) {
+            query.retransmit.cancel(false);
+            query.relayed.complete(Arrays.copyOf(responseBuf, length));
+        }
+    }
+
+    public long retransmitCount() {
+
+        return retransmits.sum();
+    }
+
+    public long unmatchedReplyCount() {
+
+        return unmatchedReplies.sum();
+    }
+
+    int pendingCount() {
+
+        return pending.size();
+    }
+
+    static boolean answersQuestion(DNSMessage answer, Question question) {
+
+        if (!answer.isResponse() || answer.getQuestions().size() != 1) {
+            return false;
+        }
+        Question echoed = answer.getQuestions().getFirst();
+        return echoed.question().equalsIgnoreCase(question.question())
+                && echoed.type() == question.type()
+                && echoed.questionClass() == question.questionClass();
+    }
+
+    @Override
+    public void close() {
+
+        for (DatagramSocket socket : sockets) {
+            socket.close();
+        }
+        timer.shutdownNow();
+        tcpConnections.values().forEach(UpstreamConnection::close);
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+public class UpstreamSelector {
+
+    private final List<Upstream> upstreams;
+    private final LongSupplier clock;
+
+    public UpstreamSelector(List<Upstream> upstreams, LongSupplier clock) {
+
+        this.upstreams = List.copyOf(upstreams);
+        this.clock = clock;
+    }
+
+    public List<Upstream> upstreams() {
+
+        return upstreams;
+    }
+
+    public LongSupplier clock() {
+
+        return clock;
+    }
+
+    // healthy upstreams fastest first, then the ones marked down in the order they come back
+    public List<Upstream> ranked() {
+
+        long now = clock.getAsLong();
+        List<Upstream> healthy = new ArrayList<>(upstreams.size());
+        List<Upstream> down = new ArrayList<>();
+        for (Upstream upstream : upstreams) {
+            (upstream.isHealthy(now) ? healthy : down).add(upstream);
+        }
+
+        // an upstream without samples sorts first so it gets probed
+        healthy.sort(Comparator.comparingLong(Upstream::smoothedRttNanos));
+        down.sort(Comparator.comparingLong(Upstream::downUntilMillis));
+        healthy.addAll(down);
+        return healthy;
+    }
+}
@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// java -cp codecrafters-dns-server.jar ZoneCompiler <snapshot> <zone file>...
+public class ZoneCompiler {
+
+    public static void main(String[] args) {
+
+        if (args.length < 2) {
+            System.out.println("Usage: ZoneCompiler <snapshot> <zone file>...");
+            System.exit(2);
+        }
+
+        try {
+            long start = System.nanoTime();
+            ZoneRecords records = ZoneRecords.load(Arrays.stream(args, 1, args.length).map(Path::of).toList());
+            ZoneSnapshot.write(records, Path.of(args[0]));
+            System.out.printf("Compiled %d names into %s in %d ms%n",
+                    records.nodes().size(), args[0], (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not compile zones: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.util.List;
+
+// where ZoneStore reads its records from, names are lower-cased without a trailing dot
+public interface ZoneData {
+
+    // whether name exists, empty non-terminals included
+    boolean contains(String name);
+
+    // records of type owned by name, all of them for ANY, empty if there are none, null if the name does not exist
+    List<Answer> rrset(String name, int type);
+
+    // the SOA record if name is the apex of a zone, null otherwise
+    Answer soa(String name);
+}
@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// reads RFC 1035 master files: $ORIGIN, $TTL, @, relative names, blank owners, parentheses and ; comments
+public class ZoneParser {
+
+    private static final long DEFAULT_TTL_SECONDS = 3600;
+    private static final int MAX_RDATA_LENGTH = 65535;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final List<Answer> records = new ArrayList<>();
+    private final ByteBuffer rdata = ByteBuffer.allocate(MAX_RDATA_LENGTH);
+    private String origin;
+    private String previousOwner;
+    private long defaultTtl = -1;
+    private long previousTtl = DEFAULT_TTL_SECONDS;
+    private int lineNumber;
+
+    private ZoneParser(String origin) {
+
+        this.origin = origin;
+    }
+
+    public static List<Answer> parse(Path path) throws IOException {
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)) {
+            return parse(reader, null);
+        }
+    }
+
+    public static List<Answer> parse(BufferedReader reader, String origin) throws IOException {
+
+        ZoneParser parser = new ZoneParser(origin);
+        StringBuilder entry = new StringBuilder();
+        boolean ownerInherited = false;
+        int depth = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            parser.lineNumber++;
+            if (depth == 0) {
+                ownerInherited = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+            }
+
+            // strip comments and track parentheses outside of quoted strings
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && c == ';') {
+                    break;
+                } else if (!quoted && c == '(') {
+                    depth++;
+                    c = ' ';
+                } else if (!quoted && c == ')') {
+                    depth--;
+                    c = ' ';
+                }
+                entry.append(c);
+            }
+            entry.append(' ');
+
+            if (depth == 0) {
+                List<String> tokens = tokenize(entry);
+                if (!tokens.isEmpty()) {
+                    parser.parseEntry(tokens, ownerInherited);
+                }
+                entry.setLength(0);
+            }
+        }
+
+        if (depth != 0) {
+            throw parser.error("unbalanced parentheses");
+        }
+        return parser.records;
+    }
+
+    private static List<String> tokenize(CharSequence entry) {
+
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+
+        for (int i = 0; i < entry.length(); i++) {
+            char c = entry.charAt(i);
+            if (c == '"') {
+                // quoted strings keep their leading quote so TXT data can tell them apart
+                if (!quoted) {
+                    token.append('"');
+                }
+                quoted = !quoted;
+                inToken = true;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private void parseEntry(List<String> tokens, boolean ownerInherited) {
+
+        String first = tokens.getFirst();
+        if (first.equalsIgnoreCase("$ORIGIN") || first.equalsIgnoreCase("$TTL")) {
+            if (tokens.size() != 2) {
+                throw error(first + " takes exactly one argument");
+            }
+            if (first.equalsIgnoreCase("$ORIGIN")) {
+                origin = absolute(tokens.get(1));
+            } else {
+                defaultTtl = parseTtl(tokens.get(1));
+            }
+            return;
+        }
+        if (first.startsWith("$")) {
+            throw error("unsupported directive " + first);
+        }
+
+        int index = 0;
+        String owner;
+        if (ownerInherited) {
+            if (previousOwner == null) {
+                throw error("record without an owner");
+            }
+            owner = previousOwner;
+        } else {
+            owner = absolute(tokens.get(index++));
+        }
+
+        // TTL and class may come in either order and are both optional
+        long ttl = -1;
+        int recordClass = RecordType.CLASS_IN;
+        while (index < tokens.size()) {
+            String token = tokens.get(index);
+            if (Character.isDigit(token.charAt(0))) {
+                ttl = parseTtl(token);
+            } else if (token.equalsIgnoreCase("IN")) {
+                recordClass = RecordType.CLASS_IN;
+            } else {
+                break;
+            }
+            index++;
+        }
+
+        if (index >= tokens.size()) {
+            throw error("missing record type");
+        }
+        int type = RecordType.fromName(tokens.get(index));
+        if (type < 0 || type == RecordType.ANY) {
+            throw error("unsupported record type " + tokens.get(index));
+        }
+        List<String> fields = tokens.subList(index + 1, tokens.size());
+
+        if (ttl < 0) {
+            ttl = defaultTtl >= 0 ? defaultTtl : previousTtl;
+        }
+        previousTtl = ttl;
+        previousOwner = owner;
+
+        byte[] ttlBytes = {(byte) (ttl >> 24), (byte) (ttl >> 16), (byte) (ttl >> 8), (byte) ttl};
+        records.add(new Answer(owner, 0, ttlBytes, encodeRdata(type, fields), type, recordClass));
+    }
+
+    private byte[] encodeRdata(int type, List<String> fields) {
+
+        rdata.clear();
+        try {
+            switch (type) {
+                case RecordType.A -> {
+                    String[] octets = field(fields, 0).split("\\.");
+                    if (octets.length != 4) {
+                        throw error("invalid IPv4 address " + fields.getFirst());
+                    }
+                    for (String octet : octets) {
+                        rdata.put((byte) parseUnsigned(octet, 0xFF, "IPv4 address " + fields.getFirst()));
+                    }
+                }
+                case RecordType.AAAA -> {
+                    // a literal containing ':' never triggers a lookup
+                    String literal = field(fields, 0);
+                    if (!literal.contains(":") || !(InetAddress.getByName(literal) instanceof Inet6Address address)) {
+                        throw error("invalid IPv6 address " + literal);
+                    }
+                    rdata.put(address.getAddress());
+                }
+                case RecordType.NS, RecordType.CNAME, RecordType.PTR -> DNSCodec.writeName(absolute(field(fields, 0)), rdata);
+                case RecordType.MX -> {
+                    rdata.putShort((short) parseUnsigned(field(fields, 0), 0xFFFF, "MX preference"));
+                    DNSCodec.writeName(absolute(field(fields, 1)), rdata);
+                }
+                case RecordType.TXT -> {
+                    if (fields.isEmpty()) {
+                        throw error("TXT record without data");
+                    }
+                    for (String field : fields) {
+                        byte[] text = (field.startsWith("\"") ? field.substring(1) : field)
+                                .getBytes(StandardCharsets.ISO_8859_1);
+                        if (text.length > 255) {
+                            throw error("TXT string longer than 255 octets");
+                        }
+                        rdata.put((byte) text.length);
+                        rdata.put(text);
+                    }
+                }
+                case RecordType.SOA -> {
+                    DNSCodec.writeName(absolute(field(fields, 0)), rdata);
+                    DNSCodec.writeName(absolute(field(fields, 1)), rdata);
+                    // serial, refresh, retry, expire and minimum
+                    for (int i = 2; i < 7; i++) {
+                        rdata.putInt((int) parseTtl(field(fields, i)));
+                    }
+                }
+                default -> throw error("unsupported record type " + type);
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw error(e.getMessage());
+        }
+
+        byte[] encoded = new byte[rdata.position()];
+        rdata.get(0, encoded);
+        return encoded;
+    }
+
+    private int parseUnsigned(String value, int max, String what) {
+
+        int parsed = Integer.parseInt(value);
+        if (parsed < 0 || parsed > max) {
+            throw error("invalid " + what);
+        }
+        return parsed;
+    }
+
+    private String field(List<String> fields, int index) {
+
+        if (index >= fields.size()) {
+            throw error("missing RDATA field " + (index + 1));
+        }
+        return fields.get(index);
+    }
+
+    private String absolute(String name) {
+
+        if (name.equals("@")) {
+            return requireOrigin();
+        }
+        if (name.endsWith(".")) {
+            return checkLength(name.substring(0, name.length() - 1));
+        }
+        String zoneOrigin = requireOrigin();
+        return checkLength(zoneOrigin.isEmpty() ? name : name + "." + zoneOrigin);
+    }
+
+    // labels of 1 to 63 octets and at most 255 octets for the whole name on the wire (RFC 1035 2.3.4)
+    private String checkLength(String name) {
+
+        if (name.isEmpty()) {
+            return name;
+        }
+        int wireLength = 1;
+        for (String label : name.split("\\.", -1)) {
+            if (label.isEmpty() || label.length() > MAX_LABEL_LENGTH) {
+                throw error("label of " + label.length() + " octets in " + name + ", labels take 1 to "
+                        + MAX_LABEL_LENGTH);
+            }
+            wireLength += 1 + label.length();
+        }
+        if (wireLength > MAX_NAME_LENGTH) {
+            throw error("name of " + wireLength + " octets, names take at most " + MAX_NAME_LENGTH + ": " + name);
+        }
+        return name;
+    }
+
+    private String requireOrigin() {
+
+        if (origin == null) {
+            throw error("relative name without $ORIGIN");
+        }
+        return origin;
+    }
+
+    // plain seconds or BIND style units, 1h30m
+    private long parseTtl(String value) {
+
+        long total = 0;
+        long current = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = Character.toLowerCase(value.charAt(i));
+            if (Character.isDigit(c)) {
+                current = current * 10 + (c - '0');
+                continue;
+            }
+            long unit = switch (c) {
+                case 's' -> 1;
+                case 'm' -> 60;
+                case 'h' -> 3600;
+                case 'd' -> 86400;
+                case 'w' -> 604800;
+                default -> throw error("invalid TTL " + value);
+            };
+            total += current * unit;
+            current = 0;
+        }
+        return total + current;
+    }
+
+    private IllegalArgumentException error(String message) {
+
+        return new IllegalArgumentException("line " + lineNumber + ": " + message);
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ZoneRecords implements ZoneData {
+
+    // lower-cased origin -> SOA record of the zone
+    private final Map<String, Answer> soaByOrigin = new HashMap<>();
+    // lower-cased owner -> type -> records, empty non-terminals are present with an empty map
+    private final Map<String, Map<Integer, List<Answer>>> nodes = new HashMap<>();
+
+    public static ZoneRecords load(List<Path> zoneFiles) throws IOException {
+
+        ZoneRecords records = new ZoneRecords();
+        for (Path zoneFile : zoneFiles) {
+            records.addZone(ZoneParser.parse(zoneFile));
+            System.out.println("Loaded zone file " + zoneFile);
+        }
+        return records;
+    }
+
+    public void addZone(List<Answer> records) {
+
+        List<Answer> soas = records.stream().filter(record -> record.type() == RecordType.SOA).toList();
+        if (soas.size() != 1) {
+            throw new IllegalArgumentException("a zone needs exactly one SOA record, found " + soas.size());
+        }
+        String origin = soas.getFirst().resource().toLowerCase();
+        soaByOrigin.put(origin, soas.getFirst());
+        nodes.computeIfAbsent(origin, name -> new HashMap<>());
+
+        for (Answer record : records) {
+            String owner = record.resource().toLowerCase();
+            if (!ZoneStore.isInZone(owner, origin)) {
+                throw new IllegalArgumentException(record.resource() + " is outside of zone " + origin);
+            }
+            nodes.computeIfAbsent(owner, name -> new HashMap<>())
+                    .computeIfAbsent(record.type(), type -> new ArrayList<>())
+                    .add(record);
+
+            // register empty non-terminals so they answer NODATA instead of NXDOMAIN
+            for (String name = ZoneStore.parent(owner);
+                 name != null && !name.equals(origin) && ZoneStore.isInZone(name, origin);
+                 name = ZoneStore.parent(name)) {
+                nodes.computeIfAbsent(name, ancestor -> new HashMap<>());
+            }
+        }
+    }
+
+    public Map<String, Map<Integer, List<Answer>>> nodes() {
+
+        return nodes;
+    }
+
+    @Override
+    public boolean contains(String name) {
+
+        return nodes.containsKey(name);
+    }
+
+    @Override
+    public List<Answer> rrset(String name, int type) {
+
+        Map<Integer, List<Answer>> node = nodes.get(name);
+        if (node == null) {
+            return null;
+        }
+        return type == RecordType.ANY
+                ? node.values().stream().flatMap(List::stream).toList()
+                : node.getOrDefault(type, List.of());
+    }
+
+    @Override
+    public Answer soa(String name) {
+
+        return soaByOrigin.get(name);
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compiled zones, read in place through a read-only mapping.
+ *
+ *   header   magic "DNSZ", version, node count
+ *   index    node count offsets of the node entries, sorted by name
+ *   nodes    name length, lower-cased uncompressed wire name, offset of the SOA record from the start of the
+ *            entry if the name is a zone apex and 0 otherwise, RRset count, then per RRset: type, record count,
+ *            length of its records and per record its length and TYPE CLASS TTL RDLENGTH RDATA exactly as
+ *            they go on the wire
+ */
+public class ZoneSnapshot implements ZoneData {
+
+    private static final int MAGIC = 0x444E535A;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 12;
+
+    private final MappedByteBuffer buf;
+    private final int nodeCount;
+
+    private ZoneSnapshot(MappedByteBuffer buf) {
+
+        this.buf = buf;
+        if (buf.capacity() < HEADER_LENGTH || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("not a version " + VERSION + " zone snapshot");
+        }
+        this.nodeCount = buf.getInt(8);
+        long indexEnd = HEADER_LENGTH + 4L * nodeCount;
+        if (nodeCount < 0 || indexEnd > buf.capacity()) {
+            throw new IllegalArgumentException("zone snapshot of " + buf.capacity() + " bytes is too short for an index of "
+                    + nodeCount + " names");
+        }
+
+        // entries follow the index back to back in index order, each with room for its name and RRset count
+        long previous = indexEnd;
+        for (int i = 0; i < nodeCount; i++) {
+            int offset = buf.getInt(HEADER_LENGTH + 4 * i);
+            if (offset < previous || offset > buf.capacity() - 7
+                    || offset + 7 + (buf.get(offset) & 0xFF) > buf.capacity()) {
+                throw new IllegalArgumentException("zone snapshot index entry " + i + " points at " + offset
+                        + ", outside of the " + buf.capacity() + " byte file or before the entry in front of it");
+            }
+            previous = offset + 7L + (buf.get(offset) & 0xFF);
+        }
+    }
+    public static ZoneSnapshot open(Path path) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return new ZoneSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static void write(ZoneRecords records, Path path) throws IOException {
+
+        List<Map.Entry<byte[], String>> names = new ArrayList<>();
+        for (String name : records.nodes().keySet()) {
+            names.add(Map.entry(wireName(name), name));
+        }
+        names.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        // entries are written in index order, so offsets follow from their sizes
+        List<byte[]> entries = new ArrayList<>(names.size());
+        for (Map.Entry<byte[], String> name : names) {
+            entries.add(encodeNode(name.getKey(), records.nodes().get(name.getValue()), records.soa(name.getValue())));
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+
+            long offset = HEADER_LENGTH + 4L * entries.size();
+            for (byte[] entry : entries) {
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("zone snapshot larger than 2 GB");
+                }
+                out.writeInt((int) offset);
+                offset += entry.length;
+            }
+            for (byte[] entry : entries) {
+                out.write(entry);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] encodeNode(byte[] name, Map<Integer, List<Answer>> rrsets, Answer soa) {
+
+        int length = 1 + name.length + 4 + 2;
+        for (List<Answer> rrset : rrsets.values()) {
+            length += 8 + recordsLength(rrset);
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(length);
+        entry.put((byte) name.length);
+        entry.put(name);
+        int soaOffset = entry.position();
+        entry.putInt(0);
+        entry.putShort((short) rrsets.size());
+        for (Map.Entry<Integer, List<Answer>> rrset : rrsets.entrySet()) {
+            entry.putShort(rrset.getKey().shortValue());
+            entry.putShort((short) rrset.getValue().size());
+            entry.putInt(recordsLength(rrset.getValue()));
+            for (Answer record : rrset.getValue()) {
+                if (record == soa) {
+                    entry.putInt(soaOffset, entry.position());
+                }
+                entry.putShort((short) (10 + record.rdata().length));
+                entry.putShort((short) record.type());
+                entry.putShort((short) record.answerClass());
+                entry.put(record.ttl());
+                entry.putShort((short) record.rdata().length);
+                entry.put(record.rdata());
+            }
+        }
+        return entry.array();
+    }
+
+    private static int recordsLength(List<Answer> rrset) {
+
+        int length = 0;
+        for (Answer record : rrset) {
+            length += 2 + 10 + record.rdata().length;
+        }
+        return length;
+    }
+
+    private static byte[] wireName(String name) {
+
+        ByteBuffer out = ByteBuffer.allocate(name.length() + 2);
+        DNSCodec.writeName(name, out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    @Override
+    public boolean contains(String name) {
+
+        return find(wireName(name)) >= 0;
+    }
+
+    @Override
+    public List<Answer> rrset(String name, int type) {
+
+        int offset = find(wireName(name));
+        if (offset < 0) {
+            return null;
+        }
+
+        // only the wanted RRsets are read, the others are stepped over by their length
+        int position = offset + 1 + (buf.get(offset) & 0xFF) + 4;
+        int rrsetCount = buf.getShort(position) & 0xFFFF;
+        position += 2;
+
+        List<Answer> records = new ArrayList<>();
+        for (int i = 0; i < rrsetCount; i++) {
+            int rrsetType = buf.getShort(position) & 0xFFFF;
+            int recordCount = buf.getShort(position + 2) & 0xFFFF;
+            int rrsetLength = buf.getInt(position + 4);
+            position += 8;
+
+            if (type == RecordType.ANY || type == rrsetType) {
+                int record = position;
+                for (int j = 0; j < recordCount; j++) {
+                    records.add(readRecord(name, record));
+                    record += 2 + (buf.getShort(record) & 0xFFFF);
+                }
+            }
+            position += rrsetLength;
+        }
+        return records;
+    }
+
+    @Override
+    public Answer soa(String name) {
+
+        int offset = find(wireName(name));
+        int soaOffset = offset < 0 ? 0 : buf.getInt(offset + 1 + (buf.get(offset) & 0xFF));
+        return soaOffset == 0 ? null : readRecord(name, offset + soaOffset);
+    }
+
+    // the record whose length prefix is at position
+    private Answer readRecord(String owner, int record) {
+
+        int length = buf.getShort(record) & 0xFFFF;
+        int position = record + 2;
+        int type = buf.getShort(position) & 0xFFFF;
+        int answerClass = buf.getShort(position + 2) & 0xFFFF;
+        byte[] ttl = new byte[4];
+        buf.get(position + 4, ttl);
+        byte[] rdata = new byte[length - 10];
+        buf.get(position + 10, rdata);
+        return new Answer(owner, 0, ttl, rdata, type, answerClass);
+    }
+
+    // offset of the node entry for name, -1 if there is none
+    private int find(byte[] name) {
+
+        int low = 0;
+        int high = nodeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = buf.getInt(HEADER_LENGTH + 4 * mid);
+            int comparison = compare(offset, name);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    // same order as Arrays.compareUnsigned on the stored name
+    private int compare(int offset, byte[] name) {
+
+        int length = buf.get(offset) & 0xFF;
+        int common = Math.min(length, name.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (buf.get(offset + 1 + i) & 0xFF) - (name[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - name.length;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ZoneStore {
+
+    private static final int MAX_CNAME_HOPS = 8;
+
+    private final ZoneData data;
+
+    private record Result(byte responseCode, List<Answer> answers, List<Answer> authorities) {
+    }
+
+    public ZoneStore(ZoneData data) {
+
+        this.data = data;
+    }
+
+    public static ZoneStore load(List<Path> zoneFiles) throws IOException {
+
+        return new ZoneStore(ZoneRecords.load(zoneFiles));
+    }
+
+    public static ZoneStore loadSnapshot(Path snapshot) throws IOException {
+
+        return new ZoneStore(ZoneSnapshot.open(snapshot));
+    }
+
+    // null unless every question falls into one of our zones
+    public DNSMessage answer(DNSMessage request) {
+
+        List<Answer> answers = new ArrayList<>();
+        List<Answer> authorities = new ArrayList<>();
+        byte responseCode = DNSUtils.defaultResponseCode(request);
+
+        for (Question question : request.getQuestions()) {
+            Result result = lookup(question);
+            if (result == null) {
+                return null;
+            }
+            answers.addAll(result.answers());
+            for (Answer authority : result.authorities()) {
+                if (!authorities.contains(authority)) {
+                    authorities.add(authority);
+                }
+            }
+            if (request.getQuestions().size() == 1 && responseCode == DNSUtils.RCODE_NO_ERROR) {
+                responseCode = result.responseCode();
+            }
+        }
+
+        return new DNSMessage.Builder()
+                .transactionId(request.getTransactionId())
+                .queryIndicator(true)
+                .opCode(request.getOpCode())
+                .authoritativeAnswer(true)
+                .recursionDesired(request.isRecursionDesired())
+                .responseCode(responseCode)
+                .questionCount(request.getQuestionCount())
+                .answerRecordCount(answers.size())
+                .questions(request.getQuestions())
+                .answers(answers)
+                .authorities(authorities)
+                .build();
+    }
+
+    private Result lookup(Question question) {
+
+        String name = question.question().toLowerCase();
+        String origin = findOrigin(name);
+        if (origin == null || question.questionClass() != RecordType.CLASS_IN) {
+            return null;
+        }
+
+        List<Answer> answers = new ArrayList<>();
+        String owner = question.question();
+
+        for (int hops = 0; hops < MAX_CNAME_HOPS; hops++) {
+            String source = name;
+            List<Answer> matches = data.rrset(name, question.type());
+            boolean synthesized = false;
+            if (matches == null) {
+                source = wildcardFor(name);
+                if (source == null) {
+                    return new Result(DNSUtils.RCODE_NAME_ERROR, answers, negativeAuthority(origin));
+                }
+                matches = data.rrset(source, question.type());
+                synthesized = true;
+            }
+
+            if (!matches.isEmpty()) {
+                addAll(answers, matches, synthesized ? owner : null);
+                return new Result(DNSUtils.RCODE_NO_ERROR, answers, List.of());
+            }
+
+            List<Answer> cname = question.type() == RecordType.CNAME ? List.of() : data.rrset(source, RecordType.CNAME);
+            if (cname.isEmpty()) {
+                // the name exists, just not with this type
+                return new Result(DNSUtils.RCODE_NO_ERROR, answers, negativeAuthority(origin));
+            }
+
+            addAll(answers, cname, synthesized ? owner : null);
+            owner = DNSCodec.readName(ByteBuffer.wrap(cname.getFirst().rdata()));
+            name = owner.toLowerCase();
+            if (!isInZone(name, origin)) {
+                // not ours to chase, the client's resolver follows the chain from here
+                return new Result(DNSUtils.RCODE_NO_ERROR, answers, List.of());
+            }
+        }
+
+        return new Result(DNSUtils.RCODE_SERVER_FAILURE, answers, List.of());
+    }
+
+    private static void addAll(List<Answer> answers, List<Answer> records, String synthesizedOwner) {
+
+        for (Answer record : records) {
+            answers.add(synthesizedOwner == null ? record : record.withResource(synthesizedOwner));
+        }
+    }
+
+    // the name of the wildcard at the closest encloser of name, if there is one (RFC 4592), the zone apex always encloses
+    private String wildcardFor(String name) {
+
+        for (String ancestor = parent(name); ancestor != null; ancestor = parent(ancestor)) {
+            if (data.contains(ancestor)) {
+                String wildcard = "*." + ancestor;
+                return data.contains(wildcard) ? wildcard : null;
+            }
+        }
+        return null;
+    }
+
+    private List<Answer> negativeAuthority(String origin) {
+
+        // negative answers are cached for the lower of the SOA TTL and its MINIMUM field (RFC 2308)
+        Answer soa = data.soa(origin);
+        return List.of(soa.withTtl(soa.negativeTtlSeconds()));
+    }
+
+    private String findOrigin(String name) {
+
+        for (String candidate = name; candidate != null; candidate = parent(candidate)) {
+            if (data.soa(candidate) != null) {
+                return candidate;
+            }
+        }
+        return data.soa("") != null ? "" : null;
+    }
+
+    static boolean isInZone(String name, String origin) {
+
+        return origin.isEmpty() || name.equals(origin) || name.endsWith("." + origin);
+    }
+
+    static String parent(String name) {
+
+        int dot = name.indexOf('.');
+        return dot < 0 ? null : name.substring(dot + 1);
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AnswerCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final AnswerCache cache = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+
+    @Test
+    void get_shouldRewriteRemainingTtl() {
+
+        Question question = new Question("codecrafters.io", 17);
+        cache.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+
+        now.addAndGet(15_000);
+
+        DNSMessage cached = cache.get(new Question("CodeCrafters.io", 17));
+        assertThat(cached).isNotNull();
+        assertThat(cached.getAnswers().getFirst().ttlSeconds()).isEqualTo(45);
+    }
+
+    @Test
+    void get_afterTtlExpired_shouldMiss() {
+
+        Question question = new Question("codecrafters.io", 17);
+        cache.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+
+        now.addAndGet(60_000);
+
+        assertThat(cache.get(question)).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void put_withNameError_shouldCacheNegativeAnswer() {
+
+        Question question = new Question("missing.codecrafters.io", 25);
+        cache.put(question, reply(DNSUtils.RCODE_NAME_ERROR));
+
+        DNSMessage cached = cache.get(question);
+        assertThat(cached).isNotNull();
+        assertThat(cached.getResponseCode()).isEqualTo(DNSUtils.RCODE_NAME_ERROR);
+        assertThat(cached.getAnswers()).isEmpty();
+    }
+
+    @Test
+    void put_withNameErrorAndSoa_shouldCacheForSoaMinimum() {
+
+        Question question = new Question("missing.codecrafters.io", 25);
+        // both names are the root, then serial, refresh, retry, expire and a minimum of 30
+        byte[] soaRdata = {0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 30};
+        Answer soa = new Answer("codecrafters.io", 15, new byte[] {0, 0, 1, 44}, soaRdata, RecordType.SOA,
+                RecordType.CLASS_IN);
+        cache.put(question, new DNSMessage.Builder()
+                .queryIndicator(true)
+                .responseCode(DNSUtils.RCODE_NAME_ERROR)
+                .answers(List.of())
+                .authorities(List.of(soa))
+                .build());
+
+        now.addAndGet(20_000);
+        DNSMessage cached = cache.get(question);
+        assertThat(cached).isNotNull();
+        assertThat(cached.getAuthorities()).extracting(Answer::type).containsExactly(RecordType.SOA);
+
+        now.addAndGet(10_000);
+        assertThat(cache.get(question)).isNull();
+    }
+
+    @Test
+    void put_withServerFailure_shouldNotCache() {
+
+        Question question = new Question("codecrafters.io", 17);
+        cache.put(question, reply(DNSUtils.RCODE_SERVER_FAILURE));
+
+        assertThat(cache.get(question)).isNull();
+    }
+
+    @Test
+    void put_overBudget_shouldEvictLeastRecentlyUsed() {
+
+        AnswerCache small = new AnswerCache(600, 1, 0, 0, 0, now::get);
+        Question first = new Question("first.io", 10);
+        Question second = new Question("second.io", 11);
+        Question third = new Question("third.io", 10);
+
+        small.put(first, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("first.io")));
+        small.put(second, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("second.io")));
+        small.get(first);
+        small.put(third, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("third.io")));
+
+        assertThat(small.get(first)).isNotNull();
+        assertThat(small.get(second)).isNull();
+        assertThat(small.get(third)).isNotNull();
+    }
+
+    @Test
+    void setMaxBytes_smaller_shouldEvictLeastRecentlyUsed() {
+
+        AnswerCache resized = new AnswerCache(600, 1, 0, 0, 0, now::get);
+        Question first = new Question("first.io", 10);
+        Question second = new Question("second.io", 11);
+
+        resized.put(first, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("first.io")));
+        resized.put(second, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("second.io")));
+        resized.get(first);
+        resized.setMaxBytes(350);
+
+        assertThat(resized.size()).isEqualTo(1);
+        assertThat(resized.get(first)).isNotNull();
+    }
+
+    @Test
+    void get_hotEntryNearExpiry_shouldPrefetchOnce() {
+
+        AnswerCache prefetching = new AnswerCache(1024 * 1024, 4, 0.25, 3, 0, now::get);
+        Question question = new Question("codecrafters.io", 1);
+        prefetching.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+        List<Question> refreshed = new ArrayList<>();
+
+        // hot, but 60s of TTL left is not close enough to expiry
+        for (int i = 0; i < 3; i++) {
+            prefetching.get(question, pendingRefresh(refreshed));
+        }
+        assertThat(refreshed).isEmpty();
+
+        now.addAndGet(50_000);
+        assertThat(prefetching.get(question, pendingRefresh(refreshed))).isNotNull();
+        assertThat(prefetching.get(question, pendingRefresh(refreshed))).isNotNull();
+        assertThat(refreshed).containsExactly(question);
+    }
+
+    @Test
+    void get_afterFailedPrefetch_shouldPrefetchAgain() {
+
+        AnswerCache prefetching = new AnswerCache(1024 * 1024, 4, 0.25, 1, 0, now::get);
+        Question question = new Question("codecrafters.io", 1);
+        prefetching.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+        List<Question> refreshed = new ArrayList<>();
+        now.addAndGet(50_000);
+
+        prefetching.get(question, failed -> {
+            refreshed.add(failed);
+            return CompletableFuture.failedFuture(new IOException("unreachable"));
+        });
+        prefetching.get(question, pendingRefresh(refreshed));
+
+        assertThat(refreshed).containsExactly(question, question);
+    }
+
+    @Test
+    void get_afterPrefetchAnsweredWithServfail_shouldPrefetchAgain() {
+
+        AnswerCache prefetching = new AnswerCache(1024 * 1024, 4, 0.25, 1, 0, now::get);
+        Question question = new Question("codecrafters.io", 1);
+        prefetching.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+        List<Question> refreshed = new ArrayList<>();
+        now.addAndGet(50_000);
+
+        // an answer all the same, but not one put() keeps, so the old entry stays
+        prefetching.get(question, servfail -> {
+            refreshed.add(servfail);
+            DNSMessage answer = reply(DNSUtils.RCODE_SERVER_FAILURE);
+            prefetching.put(servfail, answer);
+            return CompletableFuture.completedFuture(answer);
+        });
+        prefetching.get(question, pendingRefresh(refreshed));
+
+        assertThat(refreshed).containsExactly(question, question);
+    }
+
+    @Test
+    void get_coldEntryNearExpiry_shouldNotPrefetch() {
+
+        AnswerCache prefetching = new AnswerCache(1024 * 1024, 4, 0.25, 3, 0, now::get);
+        Question question = new Question("codecrafters.io", 1);
+        prefetching.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+        List<Question> refreshed = new ArrayList<>();
+
+        now.addAndGet(50_000);
+        prefetching.get(question, pendingRefresh(refreshed));
+
+        assertThat(refreshed).isEmpty();
+    }
+
+    @Test
+    void getStale_withinStaleWindow_shouldServeExpiredAnswerWithShortTtl() {
+
+        AnswerCache stale = new AnswerCache(1024 * 1024, 4, 0, 0, 3_600_000, now::get);
+        Question question = new Question("codecrafters.io", 1);
+        stale.put(question, reply(DNSUtils.RCODE_NO_ERROR, Answer.defaultAnswer("codecrafters.io")));
+
+        now.addAndGet(10_000);
+        assertThat(stale.getStale(question).getAnswers().getFirst().ttlSeconds()).isEqualTo(50);
+
+        now.addAndGet(600_000);
+        assertThat(stale.get(question)).isNull();
+        DNSMessage expired = stale.getStale(question);
+        assertThat(expired).isNotNull();
+        assertThat(expired.getAnswers().getFirst().ttlSeconds()).isEqualTo(AnswerCache.STALE_TTL_SECONDS);
+
+        now.addAndGet(3_600_000);
+        assertThat(stale.getStale(question)).isNull();
+    }
+
+    // records the refresh and leaves it running
+    private static Function<Question, CompletableFuture<DNSMessage>> pendingRefresh(List<Question> refreshed) {
+
+        return question -> {
+            refreshed.add(question);
+            return new CompletableFuture<>();
+        };
+    }
+
+    private static DNSMessage reply(byte responseCode, Answer... answers) {
+
+        return new DNSMessage.Builder()
+                .queryIndicator(true)
+                .responseCode(responseCode)
+                .answerRecordCount(answers.length)
+                .answers(List.of(answers))
+                .build();
+    }
+}
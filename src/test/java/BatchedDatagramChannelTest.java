@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HexFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchedDatagramChannelTest {
+
+    private static final byte[] QUERY = HexFormat.ofDelimiter(" ").parseHex("04 d2 01 00 00 01 00 00 00 00 00 00 "
+            + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+    private final BufferPool bufferPool = new BufferPool(8, 512, true);
+    private final Metrics metrics = new Metrics();
+    private DatagramChannel client;
+    private BatchedDatagramChannel channel;
+
+    @BeforeEach
+    void setUp() throws IOException {
+
+        client = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+
+        client.close();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Test
+    void poll_withDatagram_shouldHandItOverAndSendTheResponse() throws IOException {
+
+        channel = BatchedDatagramChannel.open(0, false, bufferPool, metrics);
+        client.send(ByteBuffer.wrap(QUERY), new InetSocketAddress(InetAddress.getLoopbackAddress(), channel.localPort()));
+
+        // echoes the query with QR set from the buffer it came in
+        ByteBuffer[] received = new ByteBuffer[1];
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received[0] == null && System.currentTimeMillis() < deadline) {
+            channel.poll(100, (datagram, from) -> {
+                received[0] = datagram;
+                datagram.put(2, (byte) (datagram.get(2) | 0b10000000));
+                channel.send(datagram, from);
+            });
+        }
+        assertThat(received[0]).isNotNull();
+        // the response queued by the handler goes out at the end of the same poll
+        ByteBuffer response = ByteBuffer.allocate(512);
+        client.receive(response);
+
+        assertThat(response.flip().remaining()).isEqualTo(QUERY.length);
+        assertThat(response.get(0)).isEqualTo(QUERY[0]);
+        assertThat(response.get(2) & 0b10000000).isNotZero();
+        assertThat(bufferPool.inUse()).isZero();
+    }
+
+    @Test
+    void poll_withFullSendBuffer_shouldDropTheResponseAndCountIt() throws IOException {
+
+        DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        Selector selector = Selector.open();
+        server.register(selector, SelectionKey.OP_READ);
+        channel = new BatchedDatagramChannel(server, selector, bufferPool, metrics) {
+
+            @Override
+            int write(ByteBuffer response, SocketAddress client) {
+
+                return 0;
+            }
+        };
+
+        ByteBuffer response = bufferPool.acquire().put(QUERY).flip();
+        channel.send(response, client.getLocalAddress());
+        channel.poll(0, (datagram, from) -> bufferPool.release(datagram));
+
+        assertThat(metrics.render())
+                .contains("dns_udp_send_dropped_total{reason=\"buffer_full\"} 1\n")
+                .contains("dns_udp_send_dropped_total{reason=\"error\"} 0\n");
+        assertThat(bufferPool.inUse()).isZero();
+    }
+
+    @Test
+    void poll_withUnsendableResponse_shouldCountTheError() throws IOException {
+
+        channel = BatchedDatagramChannel.open(0, false, bufferPool, metrics);
+
+        channel.send(bufferPool.acquire().put(QUERY).flip(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel.poll(0, (datagram, from) -> bufferPool.release(datagram));
+
+        assertThat(metrics.render()).contains("dns_udp_send_dropped_total{reason=\"error\"} 1\n");
+        assertThat(bufferPool.inUse()).isZero();
+    }
+}
@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BufferPoolTest {
+
+    @Test
+    void acquire_afterRelease_shouldReuseBuffer() {
+
+        BufferPool pool = new BufferPool(4, 512, true);
+        ByteBuffer first = pool.acquire();
+        first.put((byte) 1);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire();
+
+        assertThat(second).isSameAs(first);
+        assertThat(second.isDirect()).isTrue();
+        assertThat(second.position()).isZero();
+        assertThat(second.limit()).isEqualTo(512);
+        assertThat(pool.allocationCount()).isEqualTo(1);
+        assertThat(pool.inUse()).isEqualTo(1);
+        assertThat(pool.available()).isZero();
+    }
+
+    @Test
+    void leaks_withUnreleasedBuffer_shouldReportWhereItWasAcquired() {
+
+        BufferPool pool = new BufferPool(4, 512, true);
+        pool.release(pool.acquire());
+        pool.acquire();
+
+        assertThat(pool.leaks()).hasSize(1);
+        assertThat(pool.leaks().get(0).getStackTrace()[1].getMethodName())
+                .isEqualTo("leaks_withUnreleasedBuffer_shouldReportWhereItWasAcquired");
+    }
+
+    @Test
+    void release_twice_shouldThrowWithLeakDetection() {
+
+        BufferPool pool = new BufferPool(4, 512, true);
+        ByteBuffer buffer = pool.acquire();
+        pool.release(buffer);
+
+        assertThatThrownBy(() -> pool.release(buffer)).isInstanceOf(IllegalStateException.class);
+    }
+}
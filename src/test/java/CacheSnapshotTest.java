@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CacheSnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    void restore_afterDump_shouldCountTtlDownFromOriginalStore() throws IOException {
+
+        Path path = tempDir.resolve("cache.snapshot");
+        AnswerCache cache = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+        cache.put(new Question("codecrafters.io", 1), reply(Answer.defaultAnswer("codecrafters.io")));
+        new CacheSnapshot(path, cache, now::get).dump();
+
+        now.addAndGet(20_000);
+        AnswerCache restored = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+
+        assertThat(new CacheSnapshot(path, restored, now::get).restore()).isEqualTo(1);
+        DNSMessage cached = restored.get(new Question("CodeCrafters.io", 1));
+        assertThat(cached).isNotNull();
+        assertThat(cached.getAnswers().getFirst().ttlSeconds()).isEqualTo(40);
+        assertThat(cached.getAnswers().getFirst().rdata()).containsExactly(124, 8, 0, 1);
+    }
+
+    @Test
+    void dump_afterRestore_shouldAppendOnlyNewEntries() throws IOException {
+
+        Path path = tempDir.resolve("cache.snapshot");
+        AnswerCache cache = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+        cache.put(new Question("first.io", 1), reply(Answer.defaultAnswer("first.io")));
+        cache.put(new Question("second.io", 1), reply(Answer.defaultAnswer("second.io")));
+        new CacheSnapshot(path, cache, now::get).dump();
+        long sizeAfterRewrite = Files.size(path);
+
+        now.addAndGet(1_000);
+        CacheSnapshot snapshot = new CacheSnapshot(path, cache, now::get);
+        snapshot.restore();
+        now.addAndGet(1_000);
+        cache.put(new Question("third.io", 1), reply(Answer.defaultAnswer("third.io")));
+        snapshot.dump();
+
+        // one more entry of about the same size as each of the first two
+        assertThat(Files.size(path) - sizeAfterRewrite).isBetween((sizeAfterRewrite - 8) / 3, sizeAfterRewrite);
+        AnswerCache restored = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+        assertThat(new CacheSnapshot(path, restored, now::get).restore()).isEqualTo(3);
+    }
+
+    @Test
+    void restore_withTornLastEntry_shouldKeepEntriesBeforeIt() throws IOException {
+
+        Path path = tempDir.resolve("cache.snapshot");
+        AnswerCache cache = new AnswerCache(1024 * 1024, 1, 0, 0, 0, now::get);
+        cache.put(new Question("first.io", 1), reply(Answer.defaultAnswer("first.io")));
+        cache.put(new Question("second.io", 1), reply(Answer.defaultAnswer("second.io")));
+        new CacheSnapshot(path, cache, now::get).dump();
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+
+        AnswerCache restored = new AnswerCache(1024 * 1024, 1, 0, 0, 0, now::get);
+
+        assertThat(new CacheSnapshot(path, restored, now::get).restore()).isEqualTo(1);
+        assertThat(restored.get(new Question("first.io", 1))).isNotNull();
+        assertThat(restored.get(new Question("second.io", 1))).isNull();
+    }
+
+    @Test
+    void restore_withNewerAnswerCached_shouldKeepNewerAnswer() throws IOException {
+
+        Path path = tempDir.resolve("cache.snapshot");
+        AnswerCache cache = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+        Question question = new Question("codecrafters.io", 1);
+        cache.put(question, reply(Answer.defaultAnswer("codecrafters.io")));
+        new CacheSnapshot(path, cache, now::get).dump();
+
+        now.addAndGet(5_000);
+        AnswerCache restored = new AnswerCache(1024 * 1024, 4, 0, 0, 0, now::get);
+        byte[] newAddress = {10, 0, 0, 1};
+        restored.put(question, reply(new Answer("codecrafters.io", 0, new byte[] {0, 0, 0, 60}, newAddress)));
+        new CacheSnapshot(path, restored, now::get).restore();
+
+        assertThat(restored.get(question).getAnswers().getFirst().rdata()).isEqualTo(newAddress);
+    }
+
+    private static DNSMessage reply(Answer answer) {
+
+        return new DNSMessage.Builder()
+                .queryIndicator(true)
+                .responseCode(DNSUtils.RCODE_NO_ERROR)
+                .answerRecordCount(1)
+                .answers(List.of(answer))
+                .build();
+    }
+}
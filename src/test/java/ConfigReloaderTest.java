@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConfigReloaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path configFile;
+    private Path zoneFile;
+    private UpstreamPool pool;
+    private DNSForwarder forwarder;
+    private RequestHandler handler;
+    private DNSServer server;
+    private ConfigReloader reloader;
+
+    @BeforeEach
+    void setUp() throws IOException {
+
+        configFile = tempDir.resolve("dns.conf");
+        zoneFile = tempDir.resolve("example.zone");
+        Files.writeString(zoneFile, zone("192.0.2.1"));
+        Files.writeString(configFile, config("127.0.0.1:5301", "127.0.0.1:5302") + "zone " + zoneFile + "\n");
+
+        String[] args = {"--config", configFile.toString()};
+        ServerConfig startup = ServerConfig.load(args);
+        Metrics metrics = new Metrics();
+        pool = new UpstreamPool(1, 1000, 0);
+        List<Upstream> upstreams = startup.resolverAddresses().stream()
+                .map(address -> new Upstream(address, System::currentTimeMillis))
+                .toList();
+        forwarder = new DNSForwarder(new UpstreamSelector(upstreams, System::currentTimeMillis), pool, 1000, false,
+                16, null, metrics, 0, 1000);
+        handler = new RequestHandler(forwarder, ZoneStore.load(List.of(zoneFile)), false, metrics, null);
+        server = new DNSServer(handler, 0, 1, 1, 1, 0, 0, null, DNSServer.Transport.SOCKET, null);
+        reloader = new ConfigReloader(args, startup, forwarder, null, handler, server, metrics);
+    }
+
+    @AfterEach
+    void tearDown() {
+
+        server.close();
+        pool.close();
+    }
+
+    @Test
+    void reload_withUnreadableFile_shouldKeepEverything() throws IOException {
+
+        List<Upstream> upstreams = forwarder.upstreams();
+        ZoneStore zones = handler.zones();
+        Files.writeString(configFile, config("127.0.0.1:5303") + "rate-limit lots\n");
+
+        List<Path> watched = reloader.reload();
+
+        assertThat(watched).containsExactly(configFile, zoneFile);
+        assertThat(forwarder.upstreams()).isEqualTo(upstreams);
+        assertThat(handler.zones()).isSameAs(zones);
+        assertThat(server.rateLimiter()).isNull();
+    }
+
+    @Test
+    void reload_withResolverWithoutPort_shouldKeepUpstreams() throws IOException {
+
+        List<Upstream> upstreams = forwarder.upstreams();
+        Files.writeString(configFile, config("127.0.0.1") + "zone " + zoneFile + "\n");
+
+        reloader.reload();
+
+        assertThat(forwarder.upstreams()).isEqualTo(upstreams);
+    }
+
+    @Test
+    void reload_withResolverSwap_shouldKeepStatisticsOfRemainingUpstreams() throws IOException {
+
+        Upstream kept = forwarder.upstreams().get(1);
+        Files.writeString(configFile, config("127.0.0.1:5302", "127.0.0.1:5303") + "zone " + zoneFile + "\n");
+
+        reloader.reload();
+
+        assertThat(forwarder.upstreams()).hasSize(2);
+        assertThat(forwarder.upstreams().get(0)).isSameAs(kept);
+        assertThat(forwarder.upstreams().get(1).address().getPort()).isEqualTo(5303);
+    }
+
+    @Test
+    void reload_withBrokenZone_shouldApplyTheRestOnlyOnce() throws IOException {
+
+        ZoneStore zones = handler.zones();
+        Files.writeString(configFile, config("127.0.0.1:5303") + "rate-limit 10\nzone " + zoneFile + "\n");
+        Files.writeString(zoneFile, "$ORIGIN example.com.\nwww IN BOGUS 192.0.2.2\n");
+
+        reloader.reload();
+        RateLimiter limiter = server.rateLimiter();
+
+        assertThat(forwarder.upstreams()).extracting(upstream -> upstream.address().getPort()).containsExactly(5303);
+        assertThat(limiter).isNotNull();
+        assertThat(handler.zones()).isSameAs(zones);
+
+        // the zone is tried again, the rate limits that were applied keep their buckets
+        reloader.reload();
+        assertThat(server.rateLimiter()).isSameAs(limiter);
+        assertThat(handler.zones()).isSameAs(zones);
+
+        Files.writeString(zoneFile, zone("192.0.2.2"));
+        reloader.reload();
+        assertThat(server.rateLimiter()).isSameAs(limiter);
+        assertThat(handler.zones()).isNotSameAs(zones);
+    }
+
+    private static String config(String... resolvers) {
+
+        StringBuilder config = new StringBuilder();
+        for (String resolver : resolvers) {
+            config.append("resolver ").append(resolver).append('\n');
+        }
+        return config.toString();
+    }
+
+    private static String zone(String address) {
+
+        return """
+                $ORIGIN example.com.
+                $TTL 300
+                @   IN SOA ns1 hostmaster 1 3600 900 604800 60
+                www IN A %s
+                """.formatted(address);
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConfigWatcherTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reload_afterReloaderThrew_shouldStillBeCalled() throws IOException, InterruptedException {
+
+        Path file = tempDir.resolve("dns.conf");
+        Files.writeString(file, "port 2053\n");
+        AtomicInteger calls = new AtomicInteger();
+        Semaphore reloaded = new Semaphore(0);
+        ConfigWatcher.Reloader reloader = () -> {
+            int call = calls.incrementAndGet();
+            reloaded.release();
+            if (call == 1) {
+                throw new IndexOutOfBoundsException("broken zone file");
+            }
+            return List.of(file);
+        };
+
+        try (ConfigWatcher ignored = ConfigWatcher.start(List.of(file), reloader)) {
+            Files.writeString(file, "port 2054\n");
+            assertThat(reloaded.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+
+            Files.writeString(file, "port 2055\n");
+            assertThat(reloaded.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+        }
+        assertThat(calls.get()).isGreaterThanOrEqualTo(2);
+    }
+
+    @Test
+    void reload_afterDirectoryWasDeletedAndRecreated_shouldStillBeCalled() throws IOException, InterruptedException {
+
+        Path directory = tempDir.resolve("conf");
+        Path file = directory.resolve("dns.conf");
+        Files.createDirectory(directory);
+        Files.writeString(file, "port 2053\n");
+        Semaphore reloaded = new Semaphore(0);
+
+        try (ConfigWatcher ignored = ConfigWatcher.start(List.of(file), () -> {
+            reloaded.release();
+            return List.of(file);
+        })) {
+            Files.delete(file);
+            Files.delete(directory);
+            Thread.sleep(500);
+            Files.createDirectory(directory);
+            Files.writeString(file, "port 2054\n");
+            assertThat(reloaded.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+            reloaded.drainPermits();
+
+            // watched again, not just found once
+            Thread.sleep(500);
+            Files.writeString(file, "port 2055\n");
+            assertThat(reloaded.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    void reload_withUnrelatedFileInDirectory_shouldNotBeCalled() throws IOException, InterruptedException {
+
+        Path file = tempDir.resolve("dns.conf");
+        Files.writeString(file, "port 2053\n");
+        Semaphore reloaded = new Semaphore(0);
+
+        try (ConfigWatcher ignored = ConfigWatcher.start(List.of(file), () -> {
+            reloaded.release();
+            return List.of(file);
+        })) {
+            Files.writeString(tempDir.resolve("other.conf"), "port 2054\n");
+            assertThat(reloaded.tryAcquire(1, TimeUnit.SECONDS)).isFalse();
+        }
+    }
+}
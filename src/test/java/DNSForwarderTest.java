@@ -0,0 +1,368 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DNSForwarderTest {
+
+    private static final InetSocketAddress PRIMARY = new InetSocketAddress("127.0.0.1", 5301);
+    private static final InetSocketAddress SECONDARY = new InetSocketAddress("127.0.0.1", 5302);
+    private static final int CLIENTS = 50;
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private ScriptedPool pool;
+    private Upstream primary;
+    private Metrics metrics;
+    private DNSForwarder forwarder;
+
+    // sends nothing, every query waits for the test to complete it
+    static final class ScriptedPool extends UpstreamPool {
+
+        record Sent(DNSMessage message, byte[] request, InetSocketAddress upstream, CompletableFuture<?> reply) {
+        }
+
+        final List<Sent> sent = new CopyOnWriteArrayList<>();
+
+        ScriptedPool() throws IOException {
+
+            super(1, 1000, 0);
+        }
+
+        @Override
+        public CompletableFuture<DNSMessage> query(DNSMessage message, InetSocketAddress upstream) {
+
+            CompletableFuture<DNSMessage> reply = new CompletableFuture<>();
+            sent.add(new Sent(message, null, upstream, reply));
+            return reply;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> relay(byte[] request, int questionEnd, InetSocketAddress upstream) {
+
+            CompletableFuture<byte[]> reply = new CompletableFuture<>();
+            sent.add(new Sent(null, request, upstream, reply));
+            return reply;
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<DNSMessage> reply(int index) {
+
+            return (CompletableFuture<DNSMessage>) sent.get(index).reply();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+
+        pool = new ScriptedPool();
+        primary = new Upstream(PRIMARY, now::get);
+        metrics = new Metrics();
+        forwarder = new DNSForwarder(new UpstreamSelector(List.of(primary), now::get), pool, 1000, false, 16, null,
+                metrics, 0, 1000);
+    }
+
+    @AfterEach
+    void tearDown() {
+
+        pool.close();
+    }
+
+    @Test
+    void relay_withMalformedQuestion_shouldAnswerFormErrWithoutAskingUpstream() {
+
+        // one question announced, none there
+        byte[] request = {0x12, 0x34, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, 'w', 'w'};
+
+        byte[] response = forwarder.relay(request);
+
+        assertThat(response[0]).isEqualTo((byte) 0x12);
+        assertThat(response[1]).isEqualTo((byte) 0x34);
+        assertThat(response[3] & 0x0F).isEqualTo(DNSUtils.RCODE_FORMAT_ERROR);
+        assertThat(pool.sent).isEmpty();
+        assertThat(primary.failureCount()).isZero();
+    }
+
+    @Test
+    void forwardMessage_withUpstreamTimeout_shouldBackOffUpstream() throws InterruptedException {
+
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(
+                () -> forwarder.forwardMessage(query((short) 1, "codecrafters.io")));
+        awaitSent(1);
+        pool.reply(0).completeExceptionally(new TimeoutException("no reply"));
+
+        assertThat(response.join().getResponseCode()).isEqualTo(DNSUtils.RCODE_SERVER_FAILURE);
+        assertThat(primary.failureCount()).isEqualTo(1);
+        assertThat(primary.isHealthy(now.get())).isFalse();
+    }
+
+    @Test
+    void forwardMessage_withFailureOnOurSide_shouldNotBackOffUpstream() throws InterruptedException {
+
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(
+                () -> forwarder.forwardMessage(query((short) 1, "codecrafters.io")));
+        awaitSent(1);
+        pool.reply(0).completeExceptionally(new IllegalArgumentException("message too large"));
+
+        assertThat(response.join().getResponseCode()).isEqualTo(DNSUtils.RCODE_SERVER_FAILURE);
+        assertThat(primary.failureCount()).isZero();
+        assertThat(primary.isHealthy(now.get())).isTrue();
+    }
+
+    @Test
+    void forwardMessage_withOneOfSeveralQuestionsTimingOut_shouldFailTheWholeRequest() throws InterruptedException {
+
+        DNSMessage request = query((short) 1, "codecrafters.io").toBuilder()
+                .questionCount(2)
+                .questions(List.of(new Question("codecrafters.io", 0), new Question("slow.example", 0)))
+                .build();
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(() -> forwarder.forwardMessage(request));
+        awaitSent(2);
+        pool.reply(0).complete(reply(pool.sent.get(0).message(), "codecrafters.io"));
+        pool.reply(1).completeExceptionally(new TimeoutException("no reply"));
+
+        // never an answer that looks complete for one question while the other went unanswered
+        assertThat(response.join().getResponseCode()).isEqualTo(DNSUtils.RCODE_SERVER_FAILURE);
+        assertThat(response.join().getAnswers()).isEmpty();
+        assertThat(response.join().getQuestions()).hasSize(2);
+    }
+
+    @Test
+    void forwardMessage_withConcurrentIdenticalQuestions_shouldAskUpstreamOnce() throws InterruptedException {
+
+        List<CompletableFuture<DNSMessage>> responses = askConcurrently(CLIENTS, "codecrafters.io");
+
+        assertThat(pool.sent).hasSize(1);
+        pool.reply(0).complete(reply(pool.sent.getFirst().message(), "codecrafters.io"));
+
+        for (int i = 0; i < CLIENTS; i++) {
+            DNSMessage response = responses.get(i).join();
+            // every client gets the shared answer under its own transaction id
+            assertThat(response.getTransactionId()).isEqualTo((short) (i + 1));
+            assertThat(response.getResponseCode()).isEqualTo(DNSUtils.RCODE_NO_ERROR);
+            assertThat(response.getAnswers()).extracting(Answer::resource).containsExactly("codecrafters.io");
+        }
+    }
+
+    @Test
+    void forwardMessage_withSharedQueryFailing_shouldFailEveryWaitingClient() throws InterruptedException {
+
+        List<CompletableFuture<DNSMessage>> responses = askConcurrently(CLIENTS, "codecrafters.io");
+
+        assertThat(pool.sent).hasSize(1);
+        pool.reply(0).completeExceptionally(new TimeoutException("no reply"));
+
+        for (int i = 0; i < CLIENTS; i++) {
+            DNSMessage response = responses.get(i).join();
+            assertThat(response.getTransactionId()).isEqualTo((short) (i + 1));
+            assertThat(response.getResponseCode()).isEqualTo(DNSUtils.RCODE_SERVER_FAILURE);
+        }
+    }
+
+    @Test
+    void forwardMessage_afterSharedQueryCompleted_shouldAskUpstreamAgain() throws InterruptedException {
+
+        CompletableFuture<DNSMessage> first = askConcurrently(1, "codecrafters.io").getFirst();
+        pool.reply(0).complete(reply(pool.sent.getFirst().message(), "codecrafters.io"));
+        first.join();
+
+        // nothing is cached, so the next client's question goes upstream again
+        CompletableFuture<DNSMessage> second = askConcurrently(1, "codecrafters.io").getFirst();
+
+        assertThat(pool.sent).hasSize(2);
+        pool.reply(1).complete(reply(pool.sent.get(1).message(), "codecrafters.io"));
+        assertThat(second.join().getAnswers()).hasSize(1);
+    }
+
+    @Test
+    void forwardMessage_withPrimaryFailing_shouldAskRunnerUp() throws InterruptedException {
+
+        Upstream secondary = new Upstream(SECONDARY, now::get);
+        primary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        secondary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        forwarder = hedgingForwarder(false, secondary);
+
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(
+                () -> forwarder.forwardMessage(query((short) 1, "codecrafters.io")));
+        awaitSent(1);
+        assertThat(pool.sent.getFirst().upstream()).isEqualTo(PRIMARY);
+        pool.reply(0).completeExceptionally(new TimeoutException("no reply"));
+
+        awaitSent(2);
+        assertThat(pool.sent.get(1).upstream()).isEqualTo(SECONDARY);
+        pool.reply(1).complete(reply(pool.sent.get(1).message(), "codecrafters.io"));
+        assertThat(response.join().getAnswers()).hasSize(1);
+    }
+
+    @Test
+    void forwardMessage_withSlowPrimary_shouldHedgeToRunnerUpAfterP95() throws InterruptedException {
+
+        Upstream secondary = new Upstream(SECONDARY, now::get);
+        primary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+        secondary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        forwarder = hedgingForwarder(true, secondary);
+
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(
+                () -> forwarder.forwardMessage(query((short) 1, "codecrafters.io")));
+
+        // the primary never replies, the runner-up is asked once the primary's p95 passed
+        awaitSent(2);
+        assertThat(pool.sent).extracting(ScriptedPool.Sent::upstream).containsExactly(PRIMARY, SECONDARY);
+        pool.reply(1).complete(reply(pool.sent.get(1).message(), "codecrafters.io"));
+        assertThat(response.join().getAnswers()).hasSize(1);
+        assertThat(primary.failureCount()).isZero();
+        assertThat(metrics.render()).contains("dns_upstream_hedged_queries_total 1\n");
+    }
+
+    @Test
+    void forwardMessage_withPrimaryReplyingBeforeHedgeDelay_shouldCancelTheHedge() throws InterruptedException {
+
+        Upstream secondary = new Upstream(SECONDARY, now::get);
+        // the hedge would go out after the primary's p95 of 400 ms
+        for (int i = 0; i < 17; i++) {
+            primary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(400));
+        }
+        secondary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(450));
+        forwarder = hedgingForwarder(true, secondary);
+
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(
+                () -> forwarder.forwardMessage(query((short) 1, "codecrafters.io")));
+        awaitSent(1);
+        awaitScheduledHedges(1);
+        pool.reply(0).complete(reply(pool.sent.getFirst().message(), "codecrafters.io"));
+
+        assertThat(response.join().getAnswers()).hasSize(1);
+        assertThat(forwarder.scheduledHedgeCount()).isZero();
+        assertThat(pool.sent).hasSize(1);
+    }
+
+    @Test
+    void forwardMessage_withoutFreeSlotForHedge_shouldLeaveThePrimaryAlone() throws InterruptedException {
+
+        Upstream secondary = new Upstream(SECONDARY, now::get);
+        primary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+        secondary.recordSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        // the primary's query takes the only slot
+        forwarder = new DNSForwarder(new UpstreamSelector(List.of(secondary, primary), now::get), pool, 1000, true, 1,
+                null, metrics, 0, 1000);
+
+        CompletableFuture<DNSMessage> response = CompletableFuture.supplyAsync(
+                () -> forwarder.forwardMessage(query((short) 1, "codecrafters.io")));
+        awaitSent(1);
+        awaitScheduledHedges(1);
+        // the hedge ran and found no slot
+        awaitScheduledHedges(0);
+
+        assertThat(pool.sent).hasSize(1);
+        pool.reply(0).complete(reply(pool.sent.getFirst().message(), "codecrafters.io"));
+        assertThat(response.join().getAnswers()).hasSize(1);
+        assertThat(metrics.render()).contains("dns_upstream_hedged_queries_total 0\n");
+    }
+
+    @Test
+    void hedgeDelayMillis_shouldFollowP95WithinBounds() {
+
+        assertThat(forwarder.hedgeDelayMillis(withSamples(0))).isEqualTo(100);
+        assertThat(forwarder.hedgeDelayMillis(withSamples(40))).isEqualTo(40);
+        // never sooner than 5 ms, never later than half the timeout
+        assertThat(forwarder.hedgeDelayMillis(withSamples(1))).isEqualTo(5);
+        assertThat(forwarder.hedgeDelayMillis(withSamples(2000))).isEqualTo(500);
+    }
+
+    @Test
+    void hedgeDelayMillis_shouldIgnoreTheSlowestFivePercent() {
+
+        Upstream upstream = new Upstream(SECONDARY, now::get);
+        // 61 replies in 20 ms and 3 in 400 ms, p95 is refreshed with the 49th sample and covers 49 of them
+        for (int i = 0; i < 64; i++) {
+            upstream.recordSuccess(TimeUnit.MILLISECONDS.toNanos(i % 20 == 19 ? 400 : 20));
+        }
+
+        assertThat(forwarder.hedgeDelayMillis(upstream)).isEqualTo(20);
+    }
+
+    private DNSForwarder hedgingForwarder(boolean hedging, Upstream secondary) {
+
+        return new DNSForwarder(new UpstreamSelector(List.of(secondary, primary), now::get), pool, 1000, hedging, 16,
+                null, metrics, 0, 1000);
+    }
+
+    // an upstream whose recent replies all took millis, or one that never replied for 0
+    private Upstream withSamples(long millis) {
+
+        Upstream upstream = new Upstream(SECONDARY, now::get);
+        for (int i = 0; millis > 0 && i < 17; i++) {
+            upstream.recordSuccess(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        return upstream;
+    }
+
+    // starts clients asking for name with transaction ids 1 to count and returns once all of them wait
+    // for an upstream reply
+    private List<CompletableFuture<DNSMessage>> askConcurrently(int count, String name) throws InterruptedException {
+
+        List<CompletableFuture<DNSMessage>> responses = new ArrayList<>();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CompletableFuture<DNSMessage> response = new CompletableFuture<>();
+            short transactionId = (short) (i + 1);
+            clients.add(Thread.ofPlatform().start(
+                    () -> response.complete(forwarder.forwardMessage(query(transactionId, name)))));
+            responses.add(response);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!clients.stream().allMatch(client -> client.getState() == Thread.State.WAITING)) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(1);
+        }
+        return responses;
+    }
+
+    private static DNSMessage reply(DNSMessage query, String name) {
+
+        return query.toBuilder()
+                .queryIndicator(true)
+                .answerRecordCount(1)
+                .answers(List.of(Answer.defaultAnswer(name)))
+                .build();
+    }
+
+    static DNSMessage query(short transactionId, String name) {
+
+        return new DNSMessage.Builder()
+                .transactionId(transactionId)
+                .recursionDesired(true)
+                .questionCount(1)
+                .questions(List.of(new Question(name, 0)))
+                .answers(List.of())
+                .build();
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.sent.size() < count) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitScheduledHedges(int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (forwarder.scheduledHedgeCount() != count) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(1);
+        }
+    }
+}
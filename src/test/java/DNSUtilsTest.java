@@ -1,4 +1,7 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HexFormat;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -35,6 +38,219 @@ class DNSUtilsTest {
         assertThat(request.getQuestions().get(1).question()).isEqualTo("check.codecrafters.io");
     }
 
+    @Test
+    void parsePacket_withCompressedAnswers_shouldConstructCorrectMessage() {
+
+        byte[] responseBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 81 80 00 01 00 02 00 00 00 00 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                        + "c0 0c 00 01 00 01 00 00 00 3c 00 04 7f 00 00 01 "
+                        + "03 77 77 77 c0 0c 00 01 00 01 00 00 01 2c 00 04 7f 00 00 02");
+
+        DNSMessage response = DNSUtils.parsePacket(responseBytes);
+        assertThat(response.isResponse()).isTrue();
+        assertThat(response.getAnswerRecordCount()).isEqualTo(2);
+        assertThat(response.getAnswers().get(0).resource()).isEqualTo("codecrafters.io");
+        assertThat(response.getAnswers().get(0).ttlSeconds()).isEqualTo(60);
+        assertThat(response.getAnswers().get(0).rdata()).containsExactly(127, 0, 0, 1);
+        assertThat(response.getAnswers().get(1).resource()).isEqualTo("www.codecrafters.io");
+        assertThat(response.getAnswers().get(1).ttlSeconds()).isEqualTo(300);
+        assertThat(response.getAnswers().get(1).rdata()).containsExactly(127, 0, 0, 2);
+    }
+
+    @Test
+    void dnsMessageToByteArray_shouldRoundTripThroughParsePacket() {
+
+        byte[] requestBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 01 00 00 02 00 00 00 00 00 00 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                        + "05 63 68 65 63 6b c0 0c 00 1c 00 01");
+
+        DNSMessage response = DNSUtils.echoMessage(DNSUtils.parsePacket(requestBytes));
+        DNSMessage parsed = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response));
+
+        assertThat(parsed.getTransactionId()).isEqualTo((short) 1234);
+        assertThat(parsed.isResponse()).isTrue();
+        assertThat(parsed.isRecursionDesired()).isTrue();
+        assertThat(parsed.getQuestions()).extracting(Question::question)
+                .containsExactly("codecrafters.io", "check.codecrafters.io");
+        assertThat(parsed.getQuestions().get(1).type()).isEqualTo(28);
+        assertThat(parsed.getAnswers()).extracting(Answer::resource)
+                .containsExactly("codecrafters.io", "check.codecrafters.io");
+    }
+
+    @Test
+    void dnsMessageToByteArray_shouldCompressRepeatedNamesAndTrimToLength() {
+
+        byte[] requestBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 01 00 00 02 00 00 00 00 00 00 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                        + "05 63 68 65 63 6b 0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+        byte[] response = DNSUtils.dnsMessageToByteArray(DNSUtils.echoMessage(DNSUtils.parsePacket(requestBytes)));
+
+        // header, full first question, "check" + pointer, then two answers whose owners are bare pointers
+        assertThat(response).hasSize(12 + 21 + 12 + 2 * 16);
+        assertThat(response[39]).isEqualTo((byte) 0xC0);
+        assertThat(response[40]).isEqualTo((byte) 12);
+        assertThat(response[45]).isEqualTo((byte) 0xC0);
+        assertThat(response[46]).isEqualTo((byte) 12);
+        assertThat(response[61]).isEqualTo((byte) 0xC0);
+        assertThat(response[62]).isEqualTo((byte) 33);
+        assertThat(DNSUtils.parsePacket(response).getAnswers()).extracting(Answer::resource)
+                .containsExactly("codecrafters.io", "check.codecrafters.io");
+    }
+
+    @Test
+    void dnsMessageToByteArray_withResponseOverLimit_shouldTruncateAndSetTc() {
+
+        List<Answer> answers = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            answers.add(Answer.defaultAnswer("host" + i + ".codecrafters.io"));
+        }
+        DNSMessage response = new DNSMessage.Builder()
+                .transactionId((short) 1234)
+                .queryIndicator(true)
+                .questionCount(1)
+                .answerRecordCount(answers.size())
+                .questions(List.of(new Question("codecrafters.io", 17)))
+                .answers(answers)
+                .build();
+
+        DNSMessage overUdp = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response));
+        assertThat(overUdp.isTruncated()).isTrue();
+        assertThat(overUdp.getAnswers()).isEmpty();
+        assertThat(overUdp.getQuestions()).extracting(Question::question).containsExactly("codecrafters.io");
+
+        DNSMessage overTcp = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response, DNSUtils.MAX_TCP_LENGTH));
+        assertThat(overTcp.isTruncated()).isFalse();
+        assertThat(overTcp.getAnswers()).hasSize(40);
+    }
+
+    @Test
+    void parsePacket_withOptRecord_shouldReadPayloadSizeAndEchoOpt() {
+
+        byte[] requestBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 01 00 00 01 00 00 00 00 00 01 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                        + "00 00 29 10 00 00 00 00 00 00 00");
+
+        DNSMessage request = DNSUtils.parsePacket(requestBytes);
+        assertThat(request.getEdnsPayloadSize()).isEqualTo(4096);
+        assertThat(DNSUtils.udpPayloadLimit(request)).isEqualTo(4096);
+
+        byte[] response = DNSUtils.dnsMessageToByteArray(DNSUtils.echoMessage(request).toBuilder()
+                .ednsPayloadSize(1232)
+                .build(), DNSUtils.udpPayloadLimit(request));
+        assertThat(response[11]).isEqualTo((byte) 1);
+        assertThat(DNSUtils.parsePacket(response).getEdnsPayloadSize()).isEqualTo(1232);
+    }
+
+    @Test
+    void dnsMessageToByteArray_withEdnsPayload_shouldNotTruncateUpToIt() {
+
+        List<Answer> answers = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            answers.add(Answer.defaultAnswer("host" + i + ".codecrafters.io"));
+        }
+        DNSMessage response = new DNSMessage.Builder()
+                .transactionId((short) 1234)
+                .queryIndicator(true)
+                .questionCount(1)
+                .answerRecordCount(answers.size())
+                .questions(List.of(new Question("codecrafters.io", 17)))
+                .answers(answers)
+                .ednsPayloadSize(DNSUtils.MAX_EDNS_PAYLOAD)
+                .build();
+
+        DNSMessage large = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response, 1232));
+        assertThat(large.isTruncated()).isFalse();
+        assertThat(large.getAnswers()).hasSize(40);
+
+        DNSMessage small = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response, 600));
+        assertThat(small.isTruncated()).isTrue();
+        assertThat(small.hasEdns()).isTrue();
+    }
+
+    @Test
+    void parsePacket_withCnameChainAndAdditionals_shouldKeepEveryRecord() {
+
+        byte[] responseBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 81 80 00 01 00 02 00 00 00 02 "
+                        + "03 77 77 77 02 69 6f 00 00 01 00 01 "
+                        + "c0 0c 00 05 00 01 00 00 00 3c 00 06 03 63 64 6e c0 10 "
+                        + "c0 24 00 01 00 01 00 00 00 3c 00 04 7f 00 00 01 "
+                        + "c0 24 00 1c 00 01 00 00 00 3c 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 01 "
+                        + "00 00 29 04 d0 00 00 00 00 00 00");
+
+        DNSMessage response = DNSUtils.parsePacket(responseBytes);
+        assertThat(response.getAnswers()).extracting(Answer::type).containsExactly(RecordType.CNAME, RecordType.A);
+        assertThat(response.getAnswers().getFirst().rdata()).containsExactly(3, 'c', 'd', 'n', 2, 'i', 'o', 0);
+        assertThat(response.getAdditionals()).extracting(Answer::resource).containsExactly("cdn.io");
+        assertThat(response.getEdnsPayloadSize()).isEqualTo(1232);
+
+        DNSMessage reparsed = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response));
+        assertThat(reparsed.getAnswers()).extracting(Answer::resource).containsExactly("www.io", "cdn.io");
+        assertThat(reparsed.getAdditionals()).extracting(Answer::type).containsExactly(RecordType.AAAA);
+    }
+
+    @Test
+    void truncatedResponse_onEncodedResponse_shouldMatchTruncatingTheMessage() {
+
+        // CNAME and A answers, an AAAA additional and the OPT record last
+        byte[] responseBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 81 80 00 01 00 02 00 00 00 02 "
+                        + "03 77 77 77 02 69 6f 00 00 01 00 01 "
+                        + "c0 0c 00 05 00 01 00 00 00 3c 00 06 03 63 64 6e c0 10 "
+                        + "c0 24 00 01 00 01 00 00 00 3c 00 04 7f 00 00 01 "
+                        + "c0 24 00 1c 00 01 00 00 00 3c 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 01 "
+                        + "00 00 29 04 d0 00 00 00 00 00 00");
+
+        byte[] truncated = DNSUtils.truncatedResponse(responseBytes);
+
+        DNSMessage message = DNSUtils.parsePacket(truncated);
+        assertThat(message.isTruncated()).isTrue();
+        assertThat(message.getAnswers()).isEmpty();
+        assertThat(message.getAdditionals()).isEmpty();
+        assertThat(message.getEdnsPayloadSize()).isEqualTo(1232);
+        // the same sections as the message path, which does not carry the RA flag through decoding
+        byte[] fromMessage = DNSUtils.dnsMessageToByteArray(
+                DNSUtils.truncatedResponse(DNSUtils.parsePacket(responseBytes)));
+        assertThat(Arrays.copyOfRange(truncated, 4, truncated.length))
+                .isEqualTo(Arrays.copyOfRange(fromMessage, 4, fromMessage.length));
+    }
+
+    @Test
+    void questionSectionEnd_shouldStopAfterLastQuestionOrRejectShortPackets() {
+
+        byte[] requestBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 01 00 00 02 00 00 00 00 00 01 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                        + "05 63 68 65 63 6b c0 0c 00 1c 00 01 "
+                        + "00 00 29 10 00 00 00 00 00 00 00");
+
+        assertThat(DNSCodec.questionSectionEnd(requestBytes)).isEqualTo(12 + 21 + 12);
+        assertThat(DNSCodec.questionSectionEnd(Arrays.copyOf(requestBytes, 40))).isEqualTo(-1);
+    }
+
+    @Test
+    void errorResponse_shouldKeepIdAndOpCodeAndSetResponseCode() {
+
+        byte[] requestBytes = HexFormat.ofDelimiter(" ")
+                .parseHex("04 d2 21 10 00 01 00 00 00 00 00 00 "
+                        + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+        byte[] response = DNSUtils.errorResponse(requestBytes, DNSUtils.RCODE_SERVER_FAILURE);
+        DNSMessage message = DNSUtils.parsePacket(response);
+        assertThat(response).hasSize(12);
+        assertThat(message.getTransactionId()).isEqualTo((short) 1234);
+        assertThat(message.isResponse()).isTrue();
+        assertThat(message.getOpCode()).isEqualTo((byte) 4);
+        assertThat(message.isRecursionDesired()).isTrue();
+        assertThat(response[3]).isEqualTo((byte) 2);
+        assertThat(message.getQuestionCount()).isZero();
+    }
+
 //    @Test
 //    void parsePacket_withCompressedQuestion_shouldConstructCorrectMessage() {
 //
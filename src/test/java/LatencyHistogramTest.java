@@ -0,0 +1,38 @@
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LatencyHistogramTest {
+
+    @Test
+    void bucketIndex_shouldPlaceValuesBelowTheirBucketsUpperBound() {
+
+        for (long nanos : new long[] {0, 255, 256, 383, 384, 511, 512, 1_000, 150_000, 2_000_000_000L}) {
+            int index = LatencyHistogram.bucketIndex(nanos);
+            assertThat(nanos).as("upper bound for %d", nanos).isLessThan(LatencyHistogram.upperBoundNanos(index));
+            if (index > 0) {
+                assertThat(nanos).as("lower bound for %d", nanos)
+                        .isGreaterThanOrEqualTo(LatencyHistogram.upperBoundNanos(index - 1));
+            }
+        }
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+    }
+
+    @Test
+    void writeTo_shouldRenderCumulativeBucketsSumAndCount() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(1_000_000);
+        histogram.record(1_000_000);
+
+        StringBuilder out = new StringBuilder();
+        histogram.writeTo(out, "dns_test_seconds", "resolver=\"1.1.1.1:53\",");
+
+        assertThat(out.toString())
+                .contains("dns_test_seconds_bucket{resolver=\"1.1.1.1:53\",le=\"2.56E-7\"} 1\n")
+                .contains("dns_test_seconds_bucket{resolver=\"1.1.1.1:53\",le=\"+Inf\"} 3\n")
+                .contains("dns_test_seconds_sum{resolver=\"1.1.1.1:53\"} 0.0020001\n")
+                .contains("dns_test_seconds_count{resolver=\"1.1.1.1:53\"} 3\n");
+    }
+}
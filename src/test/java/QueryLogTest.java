@@ -0,0 +1,113 @@
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.HexFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryLogTest {
+
+    private static final byte[] REQUEST = HexFormat.ofDelimiter(" ")
+            .parseHex("04 d2 01 00 00 01 00 00 00 00 00 00 "
+                    + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+    @Test
+    void record_shouldWriteOneJsonLinePerQuery() {
+
+        StringWriter out = new StringWriter();
+        byte[] response = DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NAME_ERROR);
+        try (QueryLog log = new QueryLog(out, QueryLog.Level.INFO, 1.0, 16)) {
+            log.record(REQUEST, new InetSocketAddress("127.0.0.1", 5353), false, response, 42_000);
+            log.record(REQUEST, null, true, response, 1_000);
+        }
+
+        String[] lines = out.toString().split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(lines[0])
+                .startsWith("{\"ts\":\"")
+                .contains("\"client\":\"127.0.0.1:5353\",\"proto\":\"udp\",\"id\":1234")
+                .contains("\"name\":\"codecrafters.io\",\"type\":1,\"rcode\":3,\"answers\":0")
+                .contains("\"bytes\":" + response.length + ",\"duration_us\":42}")
+                .doesNotContain("\"request\"");
+        assertThat(lines[1]).contains("\"proto\":\"tcp\"").doesNotContain("\"client\"");
+    }
+
+    @Test
+    void record_atErrorLevel_shouldOnlyLogServerFailures() {
+
+        StringWriter out = new StringWriter();
+        try (QueryLog log = new QueryLog(out, QueryLog.Level.ERROR, 1.0, 16)) {
+            log.record(REQUEST, null, false, DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NAME_ERROR), 0);
+            log.record(REQUEST, null, false, DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_SERVER_FAILURE), 0);
+        }
+
+        assertThat(out.toString().split("\n")).singleElement().asString().contains("\"rcode\":2");
+    }
+
+    @Test
+    void record_withSlowWriter_shouldDropInsteadOfBlocking() throws InterruptedException {
+
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Writer stalled = new StringWriter() {
+
+            @Override
+            public StringWriter append(CharSequence line) {
+
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.append(line);
+            }
+        };
+
+        byte[] response = DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NO_ERROR);
+        try (QueryLog log = new QueryLog(stalled, QueryLog.Level.DEBUG, 1.0, 4)) {
+            log.record(REQUEST, null, false, response, 0);
+            assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // the writer is stuck on the first entry, the ring takes four more and the rest is dropped
+            for (int i = 0; i < 10; i++) {
+                log.record(REQUEST, null, false, response, 0);
+            }
+            assertThat(log.droppedCount()).isEqualTo(6);
+            release.countDown();
+        }
+
+        assertThat(stalled.toString().split("\n")).hasSize(5)
+                .allSatisfy(line -> assertThat(line).contains("\"request\":\"04d2"));
+    }
+
+    @Test
+    void record_withLargeTcpQuery_shouldKeepOnlyAPrefix() {
+
+        // REQUEST with an additional record padding it to 60000 bytes
+        byte[] large = new byte[60_000];
+        System.arraycopy(REQUEST, 0, large, 0, REQUEST.length);
+        large[11] = 1;
+        int rdataLength = large.length - REQUEST.length - 11;
+        large[REQUEST.length + 2] = 0x10;
+        large[REQUEST.length + 9] = (byte) (rdataLength >> 8);
+        large[REQUEST.length + 10] = (byte) rdataLength;
+
+        StringWriter out = new StringWriter();
+        byte[] response = DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NO_ERROR);
+        try (QueryLog log = new QueryLog(out, QueryLog.Level.DEBUG, 1.0, 4)) {
+            for (int i = 0; i < 8; i++) {
+                log.record(large, null, true, response, 0);
+            }
+            assertThat(log.retainedRequestBytes()).isEqualTo(4L * QueryLog.SLOT_REQUEST_BYTES);
+        }
+
+        assertThat(out.toString().split("\n")).isNotEmpty().allSatisfy(line -> assertThat(line)
+                .contains("\"name\":\"codecrafters.io\"")
+                .contains("\"request_bytes\":60000")
+                .doesNotContain("malformed"));
+    }
+}
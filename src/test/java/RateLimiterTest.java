@@ -0,0 +1,66 @@
+import java.net.InetSocketAddress;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateLimiterTest {
+
+    private static final byte[] RESPONSE = HexFormat.ofDelimiter(" ")
+            .parseHex("04 d2 81 80 00 01 00 01 00 00 00 00 "
+                    + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01 "
+                    + "c0 0c 00 01 00 01 00 00 00 3c 00 04 7f 00 00 01");
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    void tryAcquire_shouldAllowBurstThenRefillAtRate() {
+
+        TokenBucketTable table = new TokenBucketTable(1024, 10, 5, now::get);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(table.tryAcquire(42)).isTrue();
+        }
+        assertThat(table.tryAcquire(42)).isFalse();
+        assertThat(table.tryAcquire(43)).as("other keys have their own buckets").isTrue();
+
+        now.addAndGet(100);
+        assertThat(table.tryAcquire(42)).isTrue();
+        assertThat(table.tryAcquire(42)).isFalse();
+    }
+
+    @Test
+    void allowQuery_shouldLimitPerPrefix() {
+
+        RateLimiter limiter = new RateLimiter(new TokenBucketTable(1024, 1, 1, now::get), null, 2, new Metrics());
+
+        assertThat(limiter.allowQuery(new InetSocketAddress("192.0.2.1", 53))).isTrue();
+        assertThat(limiter.allowQuery(new InetSocketAddress("192.0.2.200", 5353))).isFalse();
+        assertThat(limiter.allowQuery(new InetSocketAddress("198.51.100.1", 53))).isTrue();
+    }
+
+    @Test
+    void checkResponse_overLimit_shouldSlipEverySecondResponse() {
+
+        RateLimiter limiter = new RateLimiter(null, new TokenBucketTable(1024, 1, 1, now::get), 2, new Metrics());
+        InetSocketAddress client = new InetSocketAddress("192.0.2.1", 53);
+
+        assertThat(limiter.checkResponse(client, RESPONSE)).isEqualTo(RateLimiter.Verdict.SEND);
+        assertThat(limiter.checkResponse(client, RESPONSE)).isEqualTo(RateLimiter.Verdict.DROP);
+        assertThat(limiter.checkResponse(client, RESPONSE)).isEqualTo(RateLimiter.Verdict.SLIP);
+        assertThat(limiter.checkResponse(client, RESPONSE)).isEqualTo(RateLimiter.Verdict.DROP);
+    }
+
+    @Test
+    void truncatedResponse_shouldKeepQuestionAndSetTc() {
+
+        byte[] truncated = DNSUtils.truncatedResponse(RESPONSE);
+
+        DNSMessage message = DNSUtils.parsePacket(truncated);
+        assertThat(message.isTruncated()).isTrue();
+        assertThat(message.getQuestions()).extracting(Question::question).containsExactly("codecrafters.io");
+        assertThat(message.getAnswers()).isEmpty();
+        assertThat(truncated).hasSize(33);
+    }
+}
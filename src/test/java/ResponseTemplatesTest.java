@@ -0,0 +1,105 @@
+import java.util.Arrays;
+import java.util.HexFormat;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResponseTemplatesTest {
+
+    private static final byte[] REQUEST = HexFormat.ofDelimiter(" ")
+            .parseHex("04 d2 01 00 00 01 00 00 00 00 00 00 "
+                    + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+    @Test
+    void respond_afterStore_shouldPatchTransactionId() {
+
+        ResponseTemplates templates = new ResponseTemplates(16);
+        byte[] response = DNSUtils.dnsMessageToByteArray(DNSUtils.echoMessage(DNSUtils.parsePacket(REQUEST)));
+        templates.store(REQUEST, response);
+        templates.store(REQUEST, response);
+
+        byte[] request = REQUEST.clone();
+        request[0] = 0x12;
+        request[1] = 0x34;
+        byte[] patched = templates.respond(request);
+
+        assertThat(patched).hasSameSizeAs(response).startsWith(0x12, 0x34);
+        assertThat(patched).endsWith(Arrays.copyOfRange(response, 2, response.length));
+        assertThat(DNSUtils.parsePacket(patched).getTransactionId()).isEqualTo((short) 0x1234);
+    }
+
+    @Test
+    void respond_withDifferentQuestion_shouldMiss() {
+
+        ResponseTemplates templates = new ResponseTemplates(16);
+        templates.store(REQUEST, DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NO_ERROR));
+        templates.store(REQUEST, DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NO_ERROR));
+
+        byte[] request = REQUEST.clone();
+        // type AAAA instead of A
+        request[request.length - 3] = 28;
+
+        assertThat(templates.respond(request)).isNull();
+    }
+
+    @Test
+    void store_withQuerySeenOnce_shouldNotAdmitIt() {
+
+        ResponseTemplates templates = new ResponseTemplates(16);
+        templates.store(REQUEST, DNSUtils.errorResponse(REQUEST, DNSUtils.RCODE_NO_ERROR));
+
+        assertThat(templates.respond(REQUEST)).isNull();
+        assertThat(templates.size()).isZero();
+    }
+
+    @Test
+    void store_withFullTable_shouldEvictTemplateNotHitSinceLastRound() {
+
+        ResponseTemplates templates = new ResponseTemplates(4);
+        for (int i = 0; i < 4; i++) {
+            storeTwice(templates, request(i));
+        }
+        templates.respond(request(0));
+        templates.respond(request(2));
+
+        storeTwice(templates, request(4));
+        storeTwice(templates, request(5));
+
+        assertThat(templates.size()).isEqualTo(4);
+        assertThat(templates.respond(request(0))).isNotNull();
+        assertThat(templates.respond(request(2))).isNotNull();
+        assertThat(templates.respond(request(4))).isNotNull();
+        assertThat(templates.respond(request(5))).isNotNull();
+        assertThat(templates.respond(request(1))).isNull();
+        assertThat(templates.respond(request(3))).isNull();
+    }
+
+    @Test
+    void handle_echoQueryTwice_shouldAnswerTheSameFromTemplate() {
+
+        RequestHandler handler = new RequestHandler(null, null, false, new Metrics(), null);
+        byte[] first = handler.handle(REQUEST);
+
+        byte[] request = REQUEST.clone();
+        request[1] = 0x00;
+        byte[] second = handler.handle(request);
+
+        assertThat(Arrays.copyOfRange(second, 2, second.length))
+                .isEqualTo(Arrays.copyOfRange(first, 2, first.length));
+        assertThat(second[1]).isZero();
+    }
+
+    private static void storeTwice(ResponseTemplates templates, byte[] request) {
+
+        templates.store(request, DNSUtils.errorResponse(request, DNSUtils.RCODE_NO_ERROR));
+        templates.store(request, DNSUtils.errorResponse(request, DNSUtils.RCODE_NO_ERROR));
+    }
+
+    // REQUEST with the first letter of the name replaced, a different question per index
+    private static byte[] request(int index) {
+
+        byte[] request = REQUEST.clone();
+        request[13] = (byte) ('a' + index);
+        return request;
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ServerConfigTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void load_withConfigFile_shouldLetCommandLineOverrideFile() throws IOException {
+
+        Path file = tempDir.resolve("dns.conf");
+        Files.writeString(file, """
+                # upstreams
+                resolver 1.1.1.1:53
+
+                rate-limit 50
+                port 5353
+                """);
+
+        ServerConfig config = ServerConfig.load(new String[] {"--config", file.toString(), "--port", "2053"});
+
+        assertThat(config.resolvers()).containsExactly("1.1.1.1:53");
+        assertThat(config.queryRateLimit()).isEqualTo(50);
+        assertThat(config.port()).isEqualTo(2053);
+        assertThat(config.configFile()).isEqualTo(file.toString());
+    }
+
+    @Test
+    void withReloadableSettingsOf_shouldOnlyTakeReloadableSettings() {
+
+        ServerConfig current = ServerConfig.fromArgs(new String[] {"--resolver", "1.1.1.1:53", "--port", "2053"});
+        ServerConfig upstreamsChanged = ServerConfig.fromArgs(new String[] {"--resolver", "9.9.9.9:53",
+                "--port", "2053", "--rrl", "5", "--zone", "example.zone"});
+        ServerConfig portChanged = ServerConfig.fromArgs(new String[] {"--resolver", "1.1.1.1:53", "--port", "53"});
+
+        assertThat(current.withReloadableSettingsOf(upstreamsChanged)).isEqualTo(upstreamsChanged);
+        assertThat(current.withReloadableSettingsOf(portChanged)).isNotEqualTo(portChanged);
+        assertThat(current.withReloadableSettingsOf(portChanged).resolvers()).isEqualTo(List.of("1.1.1.1:53"));
+    }
+
+    @Test
+    void fromArgs_withOutOfRangeNumbers_shouldNameTheOption() {
+
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--port", "70000"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("--port must be between 1 and 65535");
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--workers", "0"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("--workers");
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--query-log-sample", "1.5"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("--query-log-sample");
+    }
+
+    @Test
+    void fromArgs_withMalformedValues_shouldNameTheOption() {
+
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--upstream-timeout", "2s"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("--upstream-timeout expects a whole number");
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--transport", "epoll"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("--transport must be one of");
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--resolver", "1.1.1.1:dns"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("--resolver port");
+        assertThatThrownBy(() -> ServerConfig.fromArgs(new String[] {"--resolver", "1.1.1.1"}))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("is not host:port");
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HexFormat;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TcpListenerTest {
+
+    // codecrafters.io A IN with transaction id 0x04d2
+    private static final byte[] QUERY = HexFormat.ofDelimiter(" ").parseHex("04 d2 01 00 00 01 00 00 00 00 00 00 "
+            + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+    private final RequestHandler handler = new RequestHandler(null, null, false, new Metrics(), null);
+    private TcpListener listener;
+
+    @AfterEach
+    void tearDown() {
+
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    @Test
+    void readLoop_withPipelinedQueriesInOneSegment_shouldAnswerEach() throws IOException {
+
+        startListener(Runnable::run, 1000);
+        try (Socket client = connect()) {
+            byte[] segment = new byte[3 * (QUERY.length + 2)];
+            for (int i = 0; i < 3; i++) {
+                System.arraycopy(framed(query(i)), 0, segment, i * (QUERY.length + 2), QUERY.length + 2);
+            }
+            client.getOutputStream().write(segment);
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            for (int i = 0; i < 3; i++) {
+                assertThat(transactionId(readMessage(in))).isEqualTo(i);
+            }
+        }
+    }
+
+    @Test
+    void readLoop_withMessageSplitAcrossSegments_shouldReassembleIt() throws IOException, InterruptedException {
+
+        startListener(Runnable::run, 1000);
+        try (Socket client = connect()) {
+            byte[] framed = framed(query(7));
+            OutputStream out = client.getOutputStream();
+            out.write(framed, 0, 1);
+            out.flush();
+            Thread.sleep(50);
+            out.write(framed, 1, 10);
+            out.flush();
+            Thread.sleep(50);
+            out.write(framed, 11, framed.length - 11);
+
+            assertThat(transactionId(readMessage(new DataInputStream(client.getInputStream())))).isEqualTo(7);
+        }
+    }
+
+    @Test
+    void readLoop_withIdleClient_shouldCloseAfterIdleTimeout() throws IOException {
+
+        startListener(Runnable::run, 100);
+        try (Socket client = connect()) {
+            assertThat(client.getInputStream().read()).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void readLoop_withClientStalledInsideMessage_shouldCloseOnceAnswersAreWritten()
+            throws IOException, InterruptedException {
+
+        QueuedExecutor workers = new QueuedExecutor();
+        startListener(workers, 100);
+        try (Socket client = connect()) {
+            OutputStream out = client.getOutputStream();
+            out.write(framed(query(5)));
+            Runnable answer = workers.tasks.take();
+            // half a length prefix, reading on after the timeout would take the next byte as the rest of it
+            out.write(0);
+            Thread.sleep(300);
+
+            answer.run();
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            assertThat(transactionId(readMessage(in))).isEqualTo(5);
+            assertThat(in.read()).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void readLoop_withQueryStillBeingAnswered_shouldNotCloseWhenIdle() throws IOException, InterruptedException {
+
+        QueuedExecutor workers = new QueuedExecutor();
+        startListener(workers, 100);
+        try (Socket client = connect()) {
+            client.getOutputStream().write(framed(query(3)));
+            Runnable answer = workers.tasks.take();
+            Thread.sleep(300);
+
+            answer.run();
+
+            assertThat(transactionId(readMessage(new DataInputStream(client.getInputStream())))).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void readLoop_withTooManyPipelinedQueries_shouldStopReadingUntilOneIsAnswered()
+            throws IOException, InterruptedException {
+
+        QueuedExecutor workers = new QueuedExecutor();
+        startListener(workers, 0);
+        try (Socket client = connect()) {
+            OutputStream out = client.getOutputStream();
+            for (int i = 0; i <= TcpListener.MAX_PIPELINED_QUERIES; i++) {
+                out.write(framed(query(i)));
+            }
+
+            awaitTasks(workers, TcpListener.MAX_PIPELINED_QUERIES);
+            Thread.sleep(100);
+            assertThat(workers.tasks).hasSize(TcpListener.MAX_PIPELINED_QUERIES);
+
+            workers.tasks.take().run();
+            awaitTasks(workers, TcpListener.MAX_PIPELINED_QUERIES);
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            assertThat(transactionId(readMessage(in))).isEqualTo(0);
+            while (!workers.tasks.isEmpty()) {
+                workers.tasks.take().run();
+            }
+            for (int i = 1; i <= TcpListener.MAX_PIPELINED_QUERIES; i++) {
+                assertThat(transactionId(readMessage(in))).isEqualTo(i);
+            }
+        }
+    }
+
+    // holds every task until the test runs it
+    private static final class QueuedExecutor implements Executor {
+
+        final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+        @Override
+        public void execute(Runnable task) {
+
+            tasks.add(task);
+        }
+    }
+
+    private void startListener(Executor workers, int idleTimeoutMillis) throws IOException {
+
+        listener = new TcpListener(handler, workers, 0, 4, idleTimeoutMillis);
+        listener.start();
+    }
+
+    private Socket connect() throws IOException {
+
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.localPort());
+        client.setSoTimeout(5000);
+        return client;
+    }
+
+    private static byte[] query(int transactionId) {
+
+        byte[] query = QUERY.clone();
+        query[0] = (byte) (transactionId >> 8);
+        query[1] = (byte) transactionId;
+        return query;
+    }
+
+    private static byte[] framed(byte[] message) {
+
+        byte[] framed = new byte[message.length + 2];
+        framed[0] = (byte) (message.length >> 8);
+        framed[1] = (byte) message.length;
+        System.arraycopy(message, 0, framed, 2, message.length);
+        return framed;
+    }
+
+    private static byte[] readMessage(DataInputStream in) throws IOException {
+
+        try {
+            byte[] message = new byte[in.readUnsignedShort()];
+            in.readFully(message);
+            return message;
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("no answer", e);
+        }
+    }
+
+    private static int transactionId(byte[] message) {
+
+        return ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+    }
+
+    private static void awaitTasks(QueuedExecutor workers, int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (workers.tasks.size() < count) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(1);
+        }
+    }
+}
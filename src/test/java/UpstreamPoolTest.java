@@ -0,0 +1,267 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UpstreamPoolTest {
+
+    // codecrafters.io A IN
+    private static final byte[] RELAYED_QUERY = HexFormat.ofDelimiter(" ").parseHex("ab cd 01 00 00 01 00 00 00 00 00 00 "
+            + "0c 63 6f 64 65 63 72 61 66 74 65 72 73 02 69 6f 00 00 01 00 01");
+
+    private DatagramSocket upstream;
+    private InetSocketAddress upstreamAddress;
+    private UpstreamPool pool;
+
+    @BeforeEach
+    void setUp() throws IOException {
+
+        upstream = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        upstream.setSoTimeout(2000);
+        upstreamAddress = (InetSocketAddress) upstream.getLocalSocketAddress();
+    }
+
+    @AfterEach
+    void tearDown() {
+
+        if (pool != null) {
+            pool.close();
+        }
+        upstream.close();
+    }
+
+    @Test
+    void query_withConcurrentQueries_shouldMatchRepliesByTransactionId() throws Exception {
+
+        pool = new UpstreamPool(1, 2000, 0);
+        CompletableFuture<DNSMessage> first = pool.query(query("first.example"), upstreamAddress);
+        CompletableFuture<DNSMessage> second = pool.query(query("second.example"), upstreamAddress);
+        DatagramPacket firstSent = receive();
+        DatagramPacket secondSent = receive();
+
+        assertThat(transactionId(firstSent)).isNotEqualTo(transactionId(secondSent));
+
+        // replies in the opposite order
+        answer(secondSent);
+        answer(firstSent);
+
+        assertThat(questionOf(first.get(2, TimeUnit.SECONDS))).isEqualTo(questionOf(firstSent));
+        assertThat(questionOf(second.get(2, TimeUnit.SECONDS))).isEqualTo(questionOf(secondSent));
+        assertThat(pool.pendingCount()).isZero();
+    }
+
+    @Test
+    void query_withReplyFromAnotherAddress_shouldIgnoreIt() throws Exception {
+
+        pool = new UpstreamPool(1, 2000, 0);
+        CompletableFuture<DNSMessage> reply = pool.query(query("codecrafters.io"), upstreamAddress);
+        DatagramPacket sent = receive();
+
+        try (DatagramSocket spoofer = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            byte[] spoofed = asReply(sent);
+            spoofer.send(new DatagramPacket(spoofed, spoofed.length, sent.getSocketAddress()));
+        }
+        assertThat(waitFor(reply)).isFalse();
+        assertThat(pool.unmatchedReplyCount()).isEqualTo(1);
+
+        answer(sent);
+        assertThat(reply.get(2, TimeUnit.SECONDS).isResponse()).isTrue();
+    }
+
+    @Test
+    void query_withReplyForAnotherQuestion_shouldIgnoreIt() throws Exception {
+
+        pool = new UpstreamPool(1, 2000, 0);
+        CompletableFuture<DNSMessage> reply = pool.query(query("codecrafters.io"), upstreamAddress);
+        DatagramPacket sent = receive();
+
+        byte[] otherQuestion = asReply(sent);
+        // codecrafters.io becomes codecrafterz.io
+        otherQuestion[DNSCodec.HEADER_LENGTH + 12] = 'z';
+        upstream.send(new DatagramPacket(otherQuestion, otherQuestion.length, sent.getSocketAddress()));
+        assertThat(waitFor(reply)).isFalse();
+
+        answer(sent);
+        assertThat(questionOf(reply.get(2, TimeUnit.SECONDS))).isEqualTo("codecrafters.io");
+    }
+
+    @Test
+    void query_withoutReplyToFirstAttempt_shouldRetransmitUnderSameTransactionId() throws Exception {
+
+        pool = new UpstreamPool(1, 1000, 1);
+        CompletableFuture<DNSMessage> reply = pool.query(query("codecrafters.io"), upstreamAddress);
+
+        DatagramPacket first = receive();
+        DatagramPacket retransmitted = receive();
+        answer(retransmitted);
+
+        assertThat(transactionId(retransmitted)).isEqualTo(transactionId(first));
+        assertThat(reply.get(2, TimeUnit.SECONDS).isResponse()).isTrue();
+        assertThat(pool.retransmitCount()).isEqualTo(1);
+    }
+
+    @Test
+    void query_withoutAnyReply_shouldTimeOutAndForgetTheQuery() throws Exception {
+
+        pool = new UpstreamPool(1, 200, 1);
+        CompletableFuture<DNSMessage> reply = pool.query(query("codecrafters.io"), upstreamAddress);
+        receive();
+        DatagramPacket retransmitted = receive();
+
+        assertThatThrownBy(() -> reply.get(2, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        assertThat(pool.pendingCount()).isZero();
+
+        // a late reply finds nothing to complete and is dropped
+        answer(retransmitted);
+        Thread.sleep(50);
+        assertThat(pool.pendingCount()).isZero();
+    }
+
+    @Test
+    void queryTcp_withUnexpectedAndMalformedReplies_shouldCountThemAndKeepWaiting() throws Exception {
+
+        pool = new UpstreamPool(1, 2000, 0);
+        try (ServerSocket tcpUpstream = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<DNSMessage> reply = pool.queryTcp(query("codecrafters.io"),
+                    (InetSocketAddress) tcpUpstream.getLocalSocketAddress());
+
+            try (Socket connection = tcpUpstream.accept()) {
+                connection.setSoTimeout(2000);
+                DataInputStream in = new DataInputStream(connection.getInputStream());
+                byte[] answer = new byte[in.readUnsignedShort()];
+                in.readFully(answer);
+                answer[2] |= (byte) 0b10000000;
+                byte[] unexpected = answer.clone();
+                unexpected[1] ^= 0x01;
+                // the question name cut off after two octets
+                byte[] malformed = Arrays.copyOf(answer, DNSCodec.HEADER_LENGTH + 2);
+
+                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                for (byte[] frame : List.of(unexpected, malformed, answer)) {
+                    out.writeShort(frame.length);
+                    out.write(frame);
+                }
+                out.flush();
+
+                assertThat(questionOf(reply.get(2, TimeUnit.SECONDS))).isEqualTo("codecrafters.io");
+            }
+        }
+        assertThat(pool.unmatchedReplyCount()).isEqualTo(2);
+    }
+
+    @Test
+    void relay_shouldRestoreTheClientTransactionId() throws Exception {
+
+        pool = new UpstreamPool(1, 2000, 0);
+        CompletableFuture<byte[]> reply = pool.relay(RELAYED_QUERY.clone(),
+                DNSCodec.questionSectionEnd(RELAYED_QUERY), upstreamAddress);
+        DatagramPacket sent = receive();
+        answer(sent);
+
+        byte[] relayed = reply.get(2, TimeUnit.SECONDS);
+        assertThat(relayed[0]).isEqualTo((byte) 0xab);
+        assertThat(relayed[1]).isEqualTo((byte) 0xcd);
+        assertThat(Arrays.copyOfRange(relayed, 2, relayed.length))
+                .isEqualTo(Arrays.copyOfRange(asReply(sent), 2, relayed.length));
+    }
+
+    @Test
+    void relay_withReplyForAnotherQuestion_shouldIgnoreIt() throws Exception {
+
+        pool = new UpstreamPool(1, 2000, 0);
+        CompletableFuture<byte[]> reply = pool.relay(RELAYED_QUERY.clone(),
+                DNSCodec.questionSectionEnd(RELAYED_QUERY), upstreamAddress);
+        DatagramPacket sent = receive();
+
+        byte[] otherQuestion = asReply(sent);
+        otherQuestion[DNSCodec.HEADER_LENGTH + 12] = 'z';
+        upstream.send(new DatagramPacket(otherQuestion, otherQuestion.length, sent.getSocketAddress()));
+        assertThat(waitFor(reply)).isFalse();
+
+        answer(sent);
+        assertThat(reply.get(2, TimeUnit.SECONDS)).hasSize(RELAYED_QUERY.length);
+    }
+
+    private static DNSMessage query(String name) {
+
+        return new DNSMessage.Builder()
+                .recursionDesired(true)
+                .questionCount(1)
+                .questions(List.of(new Question(name, 0)))
+                .answers(List.of())
+                .build();
+    }
+
+    private DatagramPacket receive() throws IOException {
+
+        DatagramPacket packet = new DatagramPacket(new byte[DNSUtils.MAX_EDNS_PAYLOAD], DNSUtils.MAX_EDNS_PAYLOAD);
+        try {
+            upstream.receive(packet);
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("the pool sent nothing", e);
+        }
+        return packet;
+    }
+
+    // the query echoed back with QR set, as an upstream with nothing to add would
+    private void answer(DatagramPacket query) throws IOException {
+
+        byte[] reply = asReply(query);
+        upstream.send(new DatagramPacket(reply, reply.length, query.getSocketAddress()));
+    }
+
+    private static byte[] asReply(DatagramPacket query) {
+
+        byte[] reply = Arrays.copyOf(query.getData(), query.getLength());
+        reply[2] |= (byte) 0b10000000;
+        return reply;
+    }
+
+    private static int transactionId(DatagramPacket packet) {
+
+        return ((packet.getData()[0] & 0xFF) << 8) | (packet.getData()[1] & 0xFF);
+    }
+
+    private static String questionOf(DatagramPacket packet) {
+
+        return questionOf(DNSCodec.decode(ByteBuffer.wrap(packet.getData(), 0, packet.getLength())));
+    }
+
+    private static String questionOf(DNSMessage message) {
+
+        return message.getQuestions().getFirst().question();
+    }
+
+    // whether reply completes within a moment, long enough for the receiver to handle what was sent
+    private static boolean waitFor(CompletableFuture<?> reply) throws InterruptedException, ExecutionException {
+
+        try {
+            reply.get(100, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UpstreamSelectorTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    void ranked_shouldOrderBySmoothedRtt() {
+
+        Upstream slow = upstream(5301);
+        Upstream fast = upstream(5302);
+        slow.recordSuccess(TimeUnit.MILLISECONDS.toNanos(80));
+        fast.recordSuccess(TimeUnit.MILLISECONDS.toNanos(80));
+        // one fast reply moves the smoothed RTT an eighth of the way, enough to overtake
+        fast.recordSuccess(TimeUnit.MILLISECONDS.toNanos(8));
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(slow, fast), now::get);
+
+        assertThat(selector.ranked()).containsExactly(fast, slow);
+    }
+
+    @Test
+    void ranked_withUpstreamWithoutSamples_shouldProbeItFirst() {
+
+        Upstream measured = upstream(5301);
+        Upstream unmeasured = upstream(5302);
+        measured.recordSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(measured, unmeasured), now::get);
+
+        assertThat(selector.ranked()).containsExactly(unmeasured, measured);
+    }
+
+    @Test
+    void ranked_withBackedOffUpstream_shouldSkipItUntilBackoffPassed() {
+
+        Upstream fast = upstream(5301);
+        Upstream slow = upstream(5302);
+        fast.recordSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+        slow.recordSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        UpstreamSelector selector = new UpstreamSelector(List.of(fast, slow), now::get);
+
+        fast.recordFailure();
+        assertThat(selector.ranked()).containsExactly(slow, fast);
+
+        // the first failure backs off for a second
+        now.addAndGet(999);
+        assertThat(selector.ranked()).containsExactly(slow, fast);
+        now.addAndGet(1);
+        assertThat(selector.ranked()).containsExactly(fast, slow);
+    }
+
+    @Test
+    void ranked_withEveryUpstreamDown_shouldOrderByWhenTheyComeBack() {
+
+        Upstream flapping = upstream(5301);
+        Upstream once = upstream(5302);
+        flapping.recordFailure();
+        flapping.recordFailure();
+        once.recordFailure();
+
+        UpstreamSelector selector = new UpstreamSelector(List.of(flapping, once), now::get);
+
+        assertThat(selector.ranked()).containsExactly(once, flapping);
+        assertThat(flapping.downUntilMillis()).isEqualTo(now.get() + 2000);
+    }
+
+    private Upstream upstream(int port) {
+
+        return new Upstream(new InetSocketAddress("127.0.0.1", port), now::get);
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ZoneSnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    private ZoneRecords records;
+    private ZoneSnapshot snapshot;
+
+    @BeforeEach
+    void setUp() throws IOException {
+
+        records = new ZoneRecords();
+        records.addZone(ZoneParser.parse(new BufferedReader(new StringReader(ZoneStoreTest.ZONE)), null));
+
+        Path path = tempDir.resolve("zones.snapshot");
+        ZoneSnapshot.write(records, path);
+        snapshot = ZoneSnapshot.open(path);
+    }
+
+    @Test
+    void rrset_shouldMatchCompiledRecords() {
+
+        for (String name : records.nodes().keySet()) {
+            assertThat(snapshot.contains(name)).as(name).isTrue();
+            assertThat(snapshot.rrset(name, RecordType.ANY)).as(name).hasSameSizeAs(records.rrset(name, RecordType.ANY));
+            records.nodes().get(name).forEach((type, rrset) -> assertThat(snapshot.rrset(name, type))
+                    .extracting(Answer::rdata)
+                    .containsExactlyElementsOf(rrset.stream().map(Answer::rdata).toList()));
+        }
+    }
+
+    @Test
+    void rrset_withUnknownName_shouldReturnNull() {
+
+        assertThat(snapshot.rrset("missing.example.com", RecordType.A)).isNull();
+        assertThat(snapshot.contains("com")).isFalse();
+        assertThat(snapshot.rrset("www.example.com", RecordType.MX)).isEmpty();
+    }
+
+    @Test
+    void soa_shouldOnlyBeFoundAtTheApex() {
+
+        assertThat(snapshot.soa("example.com").rdata()).isEqualTo(records.soa("example.com").rdata());
+        assertThat(snapshot.soa("www.example.com")).isNull();
+        assertThat(snapshot.soa("missing.example.com")).isNull();
+    }
+
+    @Test
+    void open_withTruncatedFile_shouldRejectIt() throws IOException {
+
+        Path path = tempDir.resolve("zones.snapshot");
+        byte[] bytes = Files.readAllBytes(path);
+        Path truncated = Files.write(tempDir.resolve("truncated.snapshot"), Arrays.copyOf(bytes, 20));
+
+        assertThatThrownBy(() -> ZoneSnapshot.open(truncated))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("too short for an index");
+    }
+
+    @Test
+    void open_withIndexPointingPastTheEnd_shouldRejectIt() throws IOException {
+
+        byte[] bytes = Files.readAllBytes(tempDir.resolve("zones.snapshot"));
+        ByteBuffer.wrap(bytes).putInt(12, bytes.length);
+        Path corrupt = Files.write(tempDir.resolve("corrupt.snapshot"), bytes);
+
+        assertThatThrownBy(() -> ZoneSnapshot.open(corrupt))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("index entry 0");
+    }
+
+    @Test
+    void answer_fromSnapshot_shouldMatchInMemoryStore() {
+
+        ZoneStore fromSnapshot = new ZoneStore(snapshot);
+        ZoneStore inMemory = new ZoneStore(records);
+
+        for (String name : List.of("www.example.com", "alias.example.com", "x.apps.example.com", "nope.example.com")) {
+            DNSMessage expected = inMemory.answer(query(name));
+            DNSMessage actual = fromSnapshot.answer(query(name));
+
+            assertThat(actual.getResponseCode()).as(name).isEqualTo(expected.getResponseCode());
+            assertThat(actual.getAnswers()).as(name).extracting(Answer::rdata)
+                    .containsExactlyElementsOf(expected.getAnswers().stream().map(Answer::rdata).toList());
+            assertThat(actual.getAuthorities()).as(name).extracting(Answer::type)
+                    .containsExactlyElementsOf(expected.getAuthorities().stream().map(Answer::type).toList());
+        }
+    }
+
+    private static DNSMessage query(String name) {
+
+        return new DNSMessage.Builder()
+                .questionCount(1)
+                .questions(List.of(new Question(name, 0)))
+                .answers(List.of())
+                .build();
+    }
+}
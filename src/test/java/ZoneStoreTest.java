@@ -0,0 +1,186 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ZoneStoreTest {
+
+    static final String ZONE = """
+            $ORIGIN example.com.
+            $TTL 300
+            @       IN SOA ns1 hostmaster (
+                        2024010101 ; serial
+                        3600 900 604800 60 )
+                    IN NS  ns1
+                    IN MX  10 mail
+            ns1     IN A   192.0.2.1
+            www  60 IN A   192.0.2.10
+                    IN AAAA 2001:db8::10
+            alias   IN CNAME www
+            *.apps  IN A   192.0.2.20
+            txt     IN TXT "hello world" second
+            a.b.deep IN A  192.0.2.30
+            """;
+
+    private ZoneStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+
+        ZoneRecords records = new ZoneRecords();
+        records.addZone(ZoneParser.parse(new BufferedReader(new StringReader(ZONE)), null));
+        store = new ZoneStore(records);
+    }
+
+    @Test
+    void answer_withExistingName_shouldReturnRecordsOfRequestedType() {
+
+        DNSMessage response = store.answer(query("WWW.example.com", RecordType.AAAA));
+
+        assertThat(response.isAuthoritativeAnswer()).isTrue();
+        assertThat(response.getResponseCode()).isEqualTo(DNSUtils.RCODE_NO_ERROR);
+        assertThat(response.getAnswers()).singleElement().satisfies(answer -> {
+            assertThat(answer.type()).isEqualTo(RecordType.AAAA);
+            // $TTL applies, the explicit TTL on the line above does not carry over
+            assertThat(answer.ttlSeconds()).isEqualTo(300);
+            assertThat(answer.rdata()).hasSize(16);
+        });
+    }
+
+    @Test
+    void answer_withCname_shouldFollowChainInsideZone() {
+
+        DNSMessage response = store.answer(query("alias.example.com", RecordType.A));
+
+        assertThat(response.getAnswers()).extracting(Answer::type).containsExactly(RecordType.CNAME, RecordType.A);
+        assertThat(response.getAnswers().get(1).rdata()).containsExactly(192, 0, 2, 10);
+    }
+
+    @Test
+    void answer_withWildcard_shouldSynthesizeOwnerName() {
+
+        DNSMessage response = store.answer(query("billing.apps.example.com", RecordType.A));
+
+        assertThat(response.getAnswers()).singleElement().satisfies(answer -> {
+            assertThat(answer.resource()).isEqualTo("billing.apps.example.com");
+            assertThat(answer.rdata()).containsExactly(192, 0, 2, 20);
+        });
+    }
+
+    @Test
+    void answer_withMissingName_shouldReturnNameErrorWithSoa() {
+
+        DNSMessage response = store.answer(query("missing.example.com", RecordType.A));
+
+        assertThat(response.getResponseCode()).isEqualTo(DNSUtils.RCODE_NAME_ERROR);
+        assertThat(response.getAnswers()).isEmpty();
+        assertThat(response.getAuthorities()).singleElement().satisfies(soa -> {
+            assertThat(soa.type()).isEqualTo(RecordType.SOA);
+            assertThat(soa.ttlSeconds()).isEqualTo(60);
+        });
+    }
+
+    @Test
+    void answer_withEmptyNonTerminal_shouldReturnNoData() {
+
+        DNSMessage response = store.answer(query("b.deep.example.com", RecordType.A));
+
+        assertThat(response.getResponseCode()).isEqualTo(DNSUtils.RCODE_NO_ERROR);
+        assertThat(response.getAnswers()).isEmpty();
+        assertThat(response.getAuthorities()).extracting(Answer::type).containsExactly(RecordType.SOA);
+    }
+
+    @Test
+    void answer_withTxtRecord_shouldEncodeCharacterStrings() {
+
+        DNSMessage response = store.answer(query("txt.example.com", RecordType.TXT));
+
+        assertThat(response.getAnswers().getFirst().rdata())
+                .isEqualTo("\u000bhello world\u0006second".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void answer_outsideOfZones_shouldReturnNull() {
+
+        assertThat(store.answer(query("codecrafters.io", RecordType.A))).isNull();
+    }
+
+    @Test
+    void answer_shouldSurviveEncoding() {
+
+        DNSMessage response = store.answer(query("example.com", RecordType.MX));
+        DNSMessage parsed = DNSUtils.parsePacket(DNSUtils.dnsMessageToByteArray(response));
+
+        assertThat(parsed.isAuthoritativeAnswer()).isTrue();
+        assertThat(parsed.getAnswers()).singleElement().satisfies(answer -> {
+            assertThat(answer.type()).isEqualTo(RecordType.MX);
+            assertThat(answer.rdata()).isEqualTo(response.getAnswers().getFirst().rdata());
+        });
+    }
+
+    @Test
+    void parse_withOctetOutOfRange_shouldRejectLine() {
+
+        String zone = "$ORIGIN example.com.\n$TTL 300\nwww IN A 192.0.2.256\n";
+
+        assertThatThrownBy(() -> ZoneParser.parse(new BufferedReader(new StringReader(zone)), null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 3")
+                .hasMessageContaining("192.0.2.256");
+    }
+
+    @Test
+    void parse_withDirectiveWithoutArgument_shouldRejectLine() {
+
+        for (String directive : List.of("$ORIGIN", "$TTL")) {
+            String zone = "$ORIGIN example.com.\n" + directive + "\nwww IN A 192.0.2.1\n";
+
+            assertThatThrownBy(() -> ZoneParser.parse(new BufferedReader(new StringReader(zone)), null))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("line 2")
+                    .hasMessageContaining(directive);
+        }
+    }
+
+    @Test
+    void parse_withOverlongLabel_shouldRejectLine() {
+
+        String zone = "$ORIGIN example.com.\n$TTL 300\n" + "a".repeat(64) + " IN A 192.0.2.1\n";
+
+        assertThatThrownBy(() -> ZoneParser.parse(new BufferedReader(new StringReader(zone)), null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 3")
+                .hasMessageContaining("label of 64 octets");
+    }
+
+    @Test
+    void parse_withOverlongName_shouldRejectLine() {
+
+        // four labels of 63 octets under example.com take 269 octets on the wire
+        String label = "a".repeat(63);
+        String zone = "$ORIGIN example.com.\n$TTL 300\nwww IN CNAME " + String.join(".", label, label, label, label)
+                + "\n";
+
+        assertThatThrownBy(() -> ZoneParser.parse(new BufferedReader(new StringReader(zone)), null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 3")
+                .hasMessageContaining("name of 269 octets");
+    }
+
+    private static DNSMessage query(String name, int type) {
+
+        return new DNSMessage.Builder()
+                .transactionId((short) 1234)
+                .recursionDesired(true)
+                .questionCount(1)
+                .questions(List.of(new Question(name, 0, type, RecordType.CLASS_IN)))
+                .answers(List.of())
+                .build();
+    }
+}